@@ -1,6 +1,7 @@
 package jHandlerExample;
 
 import jhandler.Handler;
+import jhandler.HandlerThread;
 import jhandler.Looper;
 import jhandler.Message;
 
@@ -15,69 +16,46 @@ import jhandler.Message;
 class PingPonExample {
     private static final int MAX_ROUND = 10;
 
-    private static volatile Handler mPingHandler;
-    private static volatile Handler mPongHandler;
-    
-    static class PingThread extends Thread {
-        @Override
-        public void run() {
-            Looper.prepare();
-            mPingHandler = new Handler() {
-                @Override
-                public void handleMessage(Message msg) {
-                    System.out.println("Ping: received message, what=" + msg.what + ", arg1=" + msg.arg1);
-                    if (msg.arg1 >= MAX_ROUND) {
-                        Looper.myLooper().quit();
-                    }
-                    Message m = new Message();
-                    m.what = 0;
-                    m.arg1 = msg.arg1 + 1;
-                    mPongHandler.sendMessageDelayed(m, 2 * 1000);
-                }
-            };
+    private static Handler mPingHandler;
+    private static Handler mPongHandler;
+
+    public static void run() throws InterruptedException {
+        // start() returns once the looper is ready, no need to poll for the peer
+        final HandlerThread pingThread = HandlerThread.start("ping");
+        final HandlerThread pongThread = HandlerThread.start("pong");
 
-            while (mPongHandler == null) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        mPingHandler = new Handler(pingThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                System.out.println("Ping: received message, what=" + msg.what + ", arg1=" + msg.arg1);
+                if (msg.arg1 >= MAX_ROUND) {
+                    Looper.myLooper().quit();
                 }
+                Message m = new Message();
+                m.what = 0;
+                m.arg1 = msg.arg1 + 1;
+                mPongHandler.sendMessageDelayed(m, 2 * 1000);
             }
-            
-            // kick off
-            System.out.println("Ping: kick off");
-            mPongHandler.sendEmptyMessage(0);
-            
-            Looper.loop();
-        }
-    }
+        };
 
-    static class PongThread extends Thread {
-        @Override
-        public void run() {
-            Looper.prepare();
-            mPongHandler = new Handler() {
-                @Override
-                public void handleMessage(Message msg) {
-                    System.out.println("Pong: received message, what=" + msg.what + ", arg1=" + msg.arg1);
-                    if (msg.arg1 >= MAX_ROUND) {
-                        Looper.myLooper().quit();
-                    }
-                    Message m = new Message();
-                    m.what = 1;
-                    m.arg1 = msg.arg1 + 1;
-                    mPingHandler.sendMessageDelayed(m, 2 * 1000);
+        mPongHandler = new Handler(pongThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                System.out.println("Pong: received message, what=" + msg.what + ", arg1=" + msg.arg1);
+                if (msg.arg1 >= MAX_ROUND) {
+                    Looper.myLooper().quit();
                 }
-            };
-            Looper.loop();
-        }
-    }
+                Message m = new Message();
+                m.what = 1;
+                m.arg1 = msg.arg1 + 1;
+                mPingHandler.sendMessageDelayed(m, 2 * 1000);
+            }
+        };
+
+        // kick off
+        System.out.println("Ping: kick off");
+        mPongHandler.sendEmptyMessage(0);
 
-    public static void run() throws InterruptedException {
-        PingThread pingThread = new PingThread();
-        PongThread pongThread = new PongThread();
-        pingThread.start();
-        pongThread.start();
         pingThread.join();
         pongThread.join();
         System.out.println("finished");
@@ -0,0 +1,44 @@
+package jhandler.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+import jdk.jfr.Timestamp;
+
+/** A message handled by a looper, the event lasts as long as its dispatch */
+@Name("jhandler.Dispatch")
+@Label("Message Dispatch")
+@Category("jhandler")
+@Description("A message handled by a looper")
+@Threshold("1 ms")
+@StackTrace(false)
+final class DispatchEvent extends jdk.jfr.Event {
+    @Label("Looper")
+    String looper;
+
+    @Label("Handler")
+    Class<?> handler;
+
+    @Label("Callback")
+    Class<?> callback;
+
+    @Label("What")
+    int what;
+
+    @Label("Queue Depth")
+    @Description("The number of pending messages after the dispatch")
+    int queueDepth;
+
+    @Label("Scheduled Time")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    long scheduledTime;
+
+    @Label("Lateness")
+    @Description("How long the message waited past its scheduled time")
+    @Timespan(Timespan.NANOSECONDS)
+    long lateness;
+}
@@ -0,0 +1,48 @@
+package jhandler.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timestamp;
+
+/** A message sent to a looper, recorded on the sending thread */
+@Name("jhandler.Enqueue")
+@Label("Message Enqueue")
+@Category("jhandler")
+@Description("A message sent to a looper, one in 'sampling' of them is recorded")
+@StackTrace(true)
+final class EnqueueEvent extends jdk.jfr.Event {
+    @Label("Looper")
+    String looper;
+
+    @Label("Handler")
+    Class<?> handler;
+
+    @Label("Callback")
+    Class<?> callback;
+
+    @Label("What")
+    int what;
+
+    @Label("Messages")
+    @Description("The number of messages sent together")
+    int count;
+
+    @Label("Queue Depth")
+    @Description("The number of pending messages before these")
+    int queueDepth;
+
+    @Label("Scheduled Time")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    long scheduledTime;
+
+    @Name("sampling")
+    @Label("Sampling")
+    @SettingDefinition
+    protected boolean sampling(SamplingControl control) {
+        return control.sample();
+    }
+}
@@ -0,0 +1,163 @@
+package jhandler.jfr;
+
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jhandler.internal.EventTracer;
+import jhandler.internal.MessageExt;
+import jhandler.internal.MessageQueue;
+
+/**
+ * Emits JDK Flight Recorder events for the loopers of the process, to be read
+ * in JDK Mission Control next to the GC and lock events:
+ *
+ * <ul>
+ * <li><code>jhandler.Enqueue</code>: a message sent, with the stack of the
+ * sender, one in "sampling" of them (16 by default).</li>
+ * <li><code>jhandler.Dispatch</code>: a message handled, lasting as long as
+ * the dispatch, above the threshold (1 ms by default).</li>
+ * <li><code>jhandler.Wait</code>: a looper waiting for messages, above the
+ * threshold (10 ms by default).</li>
+ * </ul>
+ *
+ * <p> Call register() once at startup. The events may then stay enabled:
+ * the loopers only trace while a recording runs, and pay a volatile read per
+ * message otherwise. The settings go in a .jfc file or on a recording, e.g.
+ * <code>recording.enable("jhandler.Dispatch").withThreshold(Duration.ofMillis(5))</code>.
+ * Integer-only messages are only traced as dispatched, scheduled at the
+ * time the looper took them.
+ */
+public final class FlightRecorderEvents {
+    private static final Tracer sTracer = new Tracer();
+    private static final FlightRecorderListener sListener = new FlightRecorderListener() {
+        @Override
+        public void recordingStateChanged(Recording recording) {
+            update();
+        }
+    };
+    private static boolean sRegistered = false;
+
+    private FlightRecorderEvents() {
+    }
+
+    /** Registers the events, the loopers trace them whenever a recording runs */
+    public static synchronized void register() {
+        if (sRegistered) {
+            return;
+        }
+        sRegistered = true;
+        FlightRecorder.register(EnqueueEvent.class);
+        FlightRecorder.register(DispatchEvent.class);
+        FlightRecorder.register(WaitEvent.class);
+        FlightRecorder.addListener(sListener);
+        update();
+    }
+
+    /** Stops tracing and unregisters the events */
+    public static synchronized void unregister() {
+        if (!sRegistered) {
+            return;
+        }
+        sRegistered = false;
+        FlightRecorder.removeListener(sListener);
+        EventTracer.install(null);
+        FlightRecorder.unregister(EnqueueEvent.class);
+        FlightRecorder.unregister(DispatchEvent.class);
+        FlightRecorder.unregister(WaitEvent.class);
+    }
+
+    // Traces while any recording runs, the recordings decide which events they take
+    private static synchronized void update() {
+        boolean running = false;
+        if (sRegistered && FlightRecorder.isInitialized()) {
+            for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+                running |= RecordingState.RUNNING == recording.getState();
+            }
+        }
+        EventTracer.install(running ? sTracer : null);
+    }
+
+    private static final class Tracer extends EventTracer {
+        @Override
+        public void onEnqueue(MessageQueue queue, MessageExt msg, int count) {
+            final EnqueueEvent event = new EnqueueEvent();
+            if (!event.shouldCommit()) {
+                return;
+            }
+            event.looper = looperOf(queue);
+            event.handler = msg.target.getClass();
+            event.callback = (null == msg.callback ? null : msg.callback.getClass());
+            event.what = msg.message.what;
+            event.count = count;
+            event.queueDepth = queue.size();
+            event.scheduledTime = toEpochMillis(msg.when - msg.slack, queue.uptimeNanos());
+            event.commit();
+        }
+
+        @Override
+        public Object beginDispatch(MessageQueue queue, MessageExt msg) {
+            final DispatchEvent event = new DispatchEvent();
+            final long now = queue.uptimeNanos();
+            if (MessageExt.RING_NONE == msg.ringKind) {
+                event.lateness = now - msg.when;
+                event.scheduledTime = toEpochMillis(msg.when, now);
+            } else {
+                event.scheduledTime = toEpochMillis(now, now); // not timed by the ring
+            }
+            event.begin();
+            return event;
+        }
+
+        @Override
+        public void endDispatch(Object e, MessageQueue queue, MessageExt msg) {
+            final DispatchEvent event = (DispatchEvent) e;
+            event.end();
+            if (!event.shouldCommit()) {
+                return;
+            }
+            event.looper = looperOf(queue);
+            event.handler = msg.target.getClass();
+            event.callback = (null == msg.callback ? null : msg.callback.getClass());
+            event.what = msg.message.what;
+            event.queueDepth = queue.size();
+            event.commit();
+        }
+
+        @Override
+        public Object beginWait(MessageQueue queue, long deadline) {
+            final WaitEvent event = new WaitEvent();
+            event.timeout = (Long.MAX_VALUE == deadline ? Long.MAX_VALUE
+                    : Math.max(0, deadline - queue.uptimeNanos()));
+            event.begin();
+            return event;
+        }
+
+        @Override
+        public void endWait(Object e, MessageQueue queue) {
+            final WaitEvent event = (WaitEvent) e;
+            event.end();
+            if (!event.shouldCommit()) {
+                return;
+            }
+            event.looper = looperOf(queue);
+            event.queueDepth = queue.size();
+            event.commit();
+        }
+    }
+
+    private static String looperOf(MessageQueue queue) {
+        final Thread thread = queue.getLooperThread();
+        return null == thread ? null : thread.getName();
+    }
+
+    /**
+     * Converts an uptime of the clock of a queue to the wall clock, given the
+     * current uptime of that clock, which may not be the system one.
+     */
+    private static long toEpochMillis(long uptimeNanos, long now) {
+        return System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(uptimeNanos - now);
+    }
+}
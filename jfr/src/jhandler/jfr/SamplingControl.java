@@ -0,0 +1,51 @@
+package jhandler.jfr;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.SettingControl;
+
+/**
+ * The "sampling" setting of an event, recording about one in N of them, e.g.
+ * <code>recording.enable("jhandler.Enqueue").with("sampling", "100")</code>.
+ * Concurrent recordings get the most frequent sampling of theirs.
+ */
+public final class SamplingControl extends SettingControl {
+    /** One in DEFAULT_SAMPLING events are recorded unless set otherwise */
+    public static final int DEFAULT_SAMPLING = 16;
+
+    private volatile int mSampling = DEFAULT_SAMPLING;
+
+    /** Checks if this event is one of the samples */
+    boolean sample() {
+        final int sampling = mSampling;
+        return sampling <= 1 || 0 == ThreadLocalRandom.current().nextInt(sampling);
+    }
+
+    @Override
+    public String combine(Set<String> values) {
+        int min = Integer.MAX_VALUE;
+        for (String value : values) {
+            min = Math.min(min, parse(value));
+        }
+        return Integer.toString(Integer.MAX_VALUE == min ? DEFAULT_SAMPLING : min);
+    }
+
+    @Override
+    public void setValue(String value) {
+        mSampling = parse(value);
+    }
+
+    @Override
+    public String getValue() {
+        return Integer.toString(mSampling);
+    }
+
+    private static int parse(String value) {
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return DEFAULT_SAMPLING;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package jhandler.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/** A looper waiting for messages, the event lasts as long as the wait */
+@Name("jhandler.Wait")
+@Label("Looper Wait")
+@Category("jhandler")
+@Description("A looper waiting in MessageQueue.next() for a message to be sent or due")
+@Threshold("10 ms")
+@StackTrace(false)
+final class WaitEvent extends jdk.jfr.Event {
+    @Label("Looper")
+    String looper;
+
+    @Label("Timeout")
+    @Description("How long it would wait at most, until the next delayed message")
+    @Timespan(Timespan.NANOSECONDS)
+    long timeout;
+
+    @Label("Queue Depth")
+    @Description("The number of pending messages after the wait")
+    int queueDepth;
+}
@@ -0,0 +1,163 @@
+package jhandler.jfr;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import jhandler.Handler;
+import jhandler.HandlerThread;
+import jhandler.Message;
+import jhandler.SimulatedLooper;
+import jhandler.internal.EventTracer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlightRecorderEventsTest {
+    static class SlowHandler extends Handler {
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        SlowHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == 7) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mDone.countDown();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        FlightRecorderEvents.register();
+    }
+
+    @After
+    public void tearDown() {
+        FlightRecorderEvents.unregister();
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        final HandlerThread t = HandlerThread.start("jfr looper");
+        final SlowHandler handler = new SlowHandler(t);
+        Assert.assertNull(EventTracer.installed());
+
+        final File file = File.createTempFile("jhandler", ".jfr");
+        file.deleteOnExit();
+        try (Recording recording = new Recording()) {
+            recording.enable("jhandler.Enqueue").with("sampling", "1");
+            recording.enable("jhandler.Dispatch").withThreshold(Duration.ofMillis(10));
+            recording.enable("jhandler.Wait").withThreshold(Duration.ofMillis(10));
+            recording.start();
+            Assert.assertNotNull(EventTracer.installed());
+
+            handler.sendEmptyMessage(1);
+            Thread.sleep(30); // the looper waits meanwhile
+            handler.sendEmptyMessage(7);
+            Assert.assertTrue(handler.mDone.await(5, TimeUnit.SECONDS));
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+        Assert.assertNull(EventTracer.installed());
+        t.quit();
+        t.join();
+
+        final List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+        int enqueued = 0;
+        int dispatched = 0;
+        int waits = 0;
+        for (RecordedEvent event : events) {
+            final String name = event.getEventType().getName();
+            if ("jhandler.Enqueue".equals(name)) {
+                ++enqueued;
+                Assert.assertEquals(SlowHandler.class.getName(), event.getClass("handler").getName());
+                Assert.assertEquals(1, event.getInt("count"));
+                Assert.assertNotNull(event.getStackTrace());
+            } else if ("jhandler.Dispatch".equals(name)) {
+                ++dispatched;
+                Assert.assertEquals("jfr looper", event.getString("looper"));
+                Assert.assertEquals(7, event.getInt("what"));
+                Assert.assertTrue(event.getDuration().toMillis() >= 10);
+                Assert.assertTrue(event.getLong("lateness") >= 0);
+            } else if ("jhandler.Wait".equals(name)) {
+                ++waits;
+                Assert.assertEquals("jfr looper", event.getString("looper"));
+            }
+        }
+        Assert.assertEquals(2, enqueued);
+        Assert.assertEquals(1, dispatched); // under the threshold otherwise
+        Assert.assertTrue(waits >= 1);
+    }
+
+    @Test
+    public void testScheduledTimeOnVirtualClock() throws Exception {
+        final SimulatedLooper sim = SimulatedLooper.prepare();
+        final File file = File.createTempFile("jhandler", ".jfr");
+        file.deleteOnExit();
+        final long before;
+        final long after;
+        try (Recording recording = new Recording()) {
+            recording.enable("jhandler.Dispatch").withThreshold(Duration.ofMillis(10));
+            recording.start();
+            final Handler handler = new Handler(sim.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            // due in an hour of the virtual clock, which is now on the wall clock once advanced
+            handler.sendEmptyMessageDelayed(7, 1, TimeUnit.HOURS);
+            before = System.currentTimeMillis();
+            Assert.assertEquals(1, sim.advanceBy(1, TimeUnit.HOURS));
+            after = System.currentTimeMillis();
+            recording.stop();
+            recording.dump(file.toPath());
+        } finally {
+            sim.close();
+        }
+
+        final List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+        Assert.assertEquals(1, events.size());
+        final long scheduled = events.get(0).getInstant("scheduledTime").toEpochMilli();
+        Assert.assertTrue(scheduled >= before - 1000 && scheduled <= after + 1000);
+    }
+
+    @Test
+    public void testSampling() {
+        final SamplingControl control = new SamplingControl();
+        Assert.assertEquals(Integer.toString(SamplingControl.DEFAULT_SAMPLING), control.getValue());
+        Assert.assertEquals("4", control.combine(new HashSet<String>(Arrays.asList("4", "100"))));
+
+        control.setValue("1");
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertTrue(control.sample());
+        }
+        control.setValue("1000000");
+        int samples = 0;
+        for (int i = 0; i < 1000; ++i) {
+            samples += control.sample() ? 1 : 0;
+        }
+        Assert.assertTrue(samples < 10);
+    }
+}
@@ -0,0 +1,102 @@
+package jhandler.benchmark;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jhandler.Handler;
+import jhandler.Looper;
+import jhandler.TimerEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Arming and cancelling timeouts through the public API against the number
+ * of pending timeouts, the pattern of request timeouts which rarely fire.
+ *
+ * <p> The baseline schedules and cancels on a ScheduledThreadPoolExecutor
+ * which removes cancelled tasks from its queue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DelayedMessageBenchmark {
+    private static final long DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int ARMED = 1;
+    private static final int MISSING = 2;
+
+    @Param({ "heap", "wheel" })
+    public String engine;
+
+    @Param({ "1000", "10000", "100000" })
+    public int depth;
+
+    private Looper mLooper;
+    private Handler mHandler;
+    private ScheduledThreadPoolExecutor mExecutor;
+    private final Runnable mTask = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        TimerEngine timerEngine = "heap".equals(engine) ? TimerEngine.HEAP : TimerEngine.TIMING_WHEEL;
+        Object[] looper = Loopers.start("timeouts", timerEngine, new Loopers.HandlerFactory() {
+            @Override
+            public Handler create() {
+                return new Handler();
+            }
+        });
+        mLooper = (Looper) looper[0];
+        mHandler = (Handler) looper[1];
+
+        mExecutor = new ScheduledThreadPoolExecutor(1);
+        mExecutor.setRemoveOnCancelPolicy(true);
+
+        // the pending timeouts use other "what"s than the measured ones
+        for (int i = 0; i < depth; ++i) {
+            mHandler.sendEmptyMessageDelayed(100 + i, DELAY_MILLIS + i);
+            mExecutor.schedule(mTask, DELAY_MILLIS + i, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mLooper.quit();
+        mExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public void armAndCancel() {
+        mHandler.sendEmptyMessageDelayed(ARMED, DELAY_MILLIS);
+        mHandler.removeMessages(ARMED);
+    }
+
+    @Benchmark
+    public void removeMissing() {
+        mHandler.removeMessages(MISSING);
+    }
+
+    @Benchmark
+    public boolean scheduledExecutorArmAndCancel() {
+        ScheduledFuture<?> future = mExecutor.schedule(mTask, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        return future.cancel(false);
+    }
+}
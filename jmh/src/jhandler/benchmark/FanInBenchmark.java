@@ -0,0 +1,153 @@
+package jhandler.benchmark;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jhandler.Handler;
+import jhandler.Looper;
+import jhandler.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of N producer threads sending to one handler (N = the JMH
+ * thread count, 4 unless overridden with -t). Each invocation sends a burst
+ * and waits until the consumer has handled all of it, so the queue can't grow
+ * without bound. Run with -prof gc for the allocation per message.
+ *
+ * <p> The primitive variant sends integer-only messages through the ring of
+ * the looper, handled by <code>handleMessage(int, int, int)</code>.
+ *
+ * <p> The baseline feeds one consumer thread through a LinkedBlockingQueue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class FanInBenchmark {
+    private static final int BURST = 100;
+    private static final int MAX_PRODUCERS = 64;
+
+    @State(Scope.Benchmark)
+    public static class Consumer {
+        Looper mLooper;
+        Handler mHandler;
+        Handler mPrimitiveHandler;
+        Thread mQueueThread;
+        final AtomicInteger mProducers = new AtomicInteger();
+        final Producer[] mByIndex = new Producer[MAX_PRODUCERS];
+        final LinkedBlockingQueue<AtomicLong> mQueue = new LinkedBlockingQueue<AtomicLong>();
+
+        @Setup(Level.Trial)
+        public void setUp() throws InterruptedException {
+            Object[] looper = Loopers.start("consumer", null, new Loopers.HandlerFactory() {
+                @Override
+                public Handler create() {
+                    return new Handler() {
+                        @Override
+                        public void handleMessage(Message msg) {
+                            ((AtomicLong) msg.obj).lazySet(((AtomicLong) msg.obj).get() + 1);
+                        }
+                    };
+                }
+            });
+            mLooper = (Looper) looper[0];
+            mHandler = (Handler) looper[1];
+            mPrimitiveHandler = new Handler(mLooper) {
+                @Override
+                public void handleMessage(int what, int arg1, int arg2) {
+                    final AtomicLong handled = mByIndex[arg1].mHandled;
+                    handled.lazySet(handled.get() + 1);
+                }
+            };
+
+            mQueueThread = new Thread("queue-consumer") {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            AtomicLong handled = mQueue.take();
+                            handled.lazySet(handled.get() + 1);
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+            mQueueThread.setDaemon(true);
+            mQueueThread.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mLooper.quit();
+            mQueueThread.interrupt();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        // only written by the consumer thread
+        final AtomicLong mHandled = new AtomicLong();
+        long mSent;
+        int mIndex;
+
+        @Setup(Level.Trial)
+        public void setUp(Consumer consumer) {
+            mIndex = consumer.mProducers.getAndIncrement();
+            consumer.mByIndex[mIndex] = this;
+        }
+
+        void await() {
+            while (mHandled.get() != mSent) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void handler(Consumer consumer, Producer producer) {
+        for (int i = 0; i < BURST; ++i) {
+            consumer.mHandler.sendMessage(Message.obtain(0, producer.mHandled));
+        }
+        producer.mSent += BURST;
+        producer.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void primitive(Consumer consumer, Producer producer) {
+        for (int i = 0; i < BURST; ++i) {
+            consumer.mPrimitiveHandler.sendMessage(0, producer.mIndex, i);
+        }
+        producer.mSent += BURST;
+        producer.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void linkedBlockingQueue(Consumer consumer, Producer producer) throws InterruptedException {
+        for (int i = 0; i < BURST; ++i) {
+            consumer.mQueue.put(producer.mHandled);
+        }
+        producer.mSent += BURST;
+        producer.await();
+    }
+}
@@ -0,0 +1,43 @@
+package jhandler.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jhandler.Handler;
+import jhandler.Looper;
+import jhandler.TimerEngine;
+
+/** Starts looper threads for the benchmarks. */
+final class Loopers {
+    /** Creates the handler on the new looper thread */
+    interface HandlerFactory {
+        Handler create();
+    }
+
+    private Loopers() {
+    }
+
+    /** Starts a daemon looper thread and returns its looper and handler */
+    static Object[] start(String name, final TimerEngine engine, final HandlerFactory factory)
+            throws InterruptedException {
+        final AtomicReference<Object[]> result = new AtomicReference<Object[]>();
+        final CountDownLatch ready = new CountDownLatch(1);
+        Thread t = new Thread(name) {
+            @Override
+            public void run() {
+                if (null == engine) {
+                    Looper.prepare();
+                } else {
+                    Looper.prepare(engine);
+                }
+                result.set(new Object[] { Looper.myLooper(), factory.create() });
+                ready.countDown();
+                Looper.loop();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        ready.await();
+        return result.get();
+    }
+}
@@ -0,0 +1,172 @@
+package jhandler.benchmark;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import jhandler.Handler;
+import jhandler.Looper;
+import jhandler.Message;
+import jhandler.WaitStrategy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round-trip latency between two looper threads: ping handles a message by
+ * sending one to pong, which sends one back, until the rounds are done.
+ *
+ * <p> The baseline does the same with two threads blocking on
+ * LinkedBlockingQueues. In both cases the benchmark thread kicks off the
+ * rounds and parks until they are done. The loopers run with each wait
+ * strategy, busy-spinning is left out as it needs a core per looper.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PingPongBenchmark {
+    private static final int ROUNDS = 1000;
+
+    /** The wait strategy of the two loopers, see {@link #strategy()} */
+    @Param({ "BLOCKING", "SPIN_THEN_PARK", "YIELDING" })
+    public String waitStrategy;
+
+    private Looper mPingLooper;
+    private Looper mPongLooper;
+    private Handler mPing;
+    private volatile Handler mPong;
+    private volatile boolean mDone;
+    private volatile Thread mWaiter;
+
+    private Thread mQueuePing;
+    private Thread mQueuePong;
+    private final LinkedBlockingQueue<Integer> mToPong = new LinkedBlockingQueue<Integer>();
+    private final LinkedBlockingQueue<Integer> mToPing = new LinkedBlockingQueue<Integer>();
+
+    private void done() {
+        mDone = true;
+        LockSupport.unpark(mWaiter);
+    }
+
+    private void await() {
+        while (!mDone) {
+            LockSupport.park(this);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        Object[] ping = Loopers.start("ping", null, new Loopers.HandlerFactory() {
+            @Override
+            public Handler create() {
+                return new Handler() {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        if (msg.arg1 == 0) {
+                            done();
+                        } else {
+                            mPong.sendMessage(Message.obtain(0, msg.arg1 - 1, 0));
+                        }
+                    }
+                };
+            }
+        });
+        Object[] pong = Loopers.start("pong", null, new Loopers.HandlerFactory() {
+            @Override
+            public Handler create() {
+                return new Handler() {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        mPing.sendMessage(Message.obtain(0, msg.arg1, 0));
+                    }
+                };
+            }
+        });
+        mPingLooper = (Looper) ping[0];
+        mPing = (Handler) ping[1];
+        mPongLooper = (Looper) pong[0];
+        mPong = (Handler) pong[1];
+        mPingLooper.setWaitStrategy(strategy());
+        mPongLooper.setWaitStrategy(strategy());
+
+        mQueuePing = new Thread("queue-ping") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final int rounds = mToPing.take();
+                        if (rounds == 0) {
+                            done();
+                        } else {
+                            mToPong.put(rounds - 1);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        mQueuePong = new Thread("queue-pong") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        mToPing.put(mToPong.take());
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        mQueuePing.setDaemon(true);
+        mQueuePong.setDaemon(true);
+        mQueuePing.start();
+        mQueuePong.start();
+    }
+
+    private WaitStrategy strategy() {
+        if ("SPIN_THEN_PARK".equals(waitStrategy)) {
+            return WaitStrategy.spinThenPark(50, TimeUnit.MICROSECONDS);
+        }
+        return "YIELDING".equals(waitStrategy) ? WaitStrategy.YIELDING : WaitStrategy.BLOCKING;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPingLooper.quit();
+        mPongLooper.quit();
+        mQueuePing.interrupt();
+        mQueuePong.interrupt();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROUNDS)
+    public void handler() {
+        mDone = false;
+        mWaiter = Thread.currentThread();
+        mPing.sendMessage(Message.obtain(0, ROUNDS, 0));
+        await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROUNDS)
+    public void linkedBlockingQueue() throws InterruptedException {
+        mDone = false;
+        mWaiter = Thread.currentThread();
+        mToPing.put(ROUNDS);
+        await();
+    }
+}
@@ -0,0 +1,100 @@
+package jhandler.benchmark;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import jhandler.LooperExecutor;
+import jhandler.internal.MessagePool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LooperExecutor against ScheduledThreadPoolExecutor(1), through the
+ * ScheduledExecutorService interface only.
+ *
+ * <p> submitAndGet samples the round trip of a task to show the tail
+ * latency, burst measures the cost per task of a burst of scheduled tasks,
+ * and the benchmark thread parks until the last one has run.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScheduledExecutorBenchmark {
+    private static final int BURST = 1000;
+
+    @Param({ "looper", "stpe" })
+    public String executor;
+
+    private ScheduledExecutorService mExecutor;
+    private volatile Thread mWaiter;
+    private volatile int mRemaining;
+
+    private final Callable<Integer> mCallable = new Callable<Integer>() {
+        @Override
+        public Integer call() {
+            return 1;
+        }
+    };
+
+    // runs on the executor thread only
+    private final Runnable mCountDown = new Runnable() {
+        @Override
+        public void run() {
+            if (0 == --mRemaining) {
+                LockSupport.unpark(mWaiter);
+            }
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // a burst keeps BURST messages queued, more than the pool keeps by default
+        MessagePool.setMaxPoolSize(BURST);
+        mExecutor = "looper".equals(executor) ? LooperExecutor.start("executor") : new ScheduledThreadPoolExecutor(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Integer submitAndGet() throws Exception {
+        return mExecutor.submit(mCallable).get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(BURST)
+    public void burst() {
+        mWaiter = Thread.currentThread();
+        mRemaining = BURST;
+        for (int i = 0; i < BURST; ++i) {
+            mExecutor.schedule(mCountDown, 0, TimeUnit.NANOSECONDS);
+        }
+        while (mRemaining > 0) {
+            LockSupport.park(this);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package jhandler.benchmark;
+
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import jhandler.Message;
+import jhandler.internal.HeapTimerQueue;
+import jhandler.internal.MessageExt;
+import jhandler.internal.SortedLinkedList;
+import jhandler.internal.TimerQueue;
+import jhandler.internal.TimingWheelTimerQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of inserting a delayed message against the queue depth, with the
+ * classic "hold" model: each operation takes the earliest message and
+ * re-inserts it a random delay later, so the depth stays constant.
+ *
+ * <p> "list" is the SortedLinkedList the queue used to be built on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimerQueueBenchmark {
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({ "heap", "wheel", "list" })
+    public String engine;
+
+    @Param({ "1000", "10000", "100000" })
+    public int depth;
+
+    private TimerQueue mQueue;
+    private Random mRandom;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("heap".equals(engine)) {
+            mQueue = new HeapTimerQueue();
+        } else if ("wheel".equals(engine)) {
+            mQueue = new TimingWheelTimerQueue();
+        } else {
+            mQueue = new SortedListTimerQueue();
+        }
+
+        mRandom = new Random(42);
+        for (int i = 0; i < depth; ++i) {
+            MessageExt msg = new MessageExt(null, new Message(), nextDelay());
+            mQueue.add(msg);
+        }
+    }
+
+    private long nextDelay() {
+        return (long) (mRandom.nextDouble() * MAX_DELAY);
+    }
+
+    @Benchmark
+    public MessageExt hold() {
+        final MessageExt msg = mQueue.removeFirst();
+        msg.when += nextDelay();
+        mQueue.add(msg);
+        return msg;
+    }
+
+    /** The old O(n) sorted list behind the TimerQueue interface */
+    static final class SortedListTimerQueue implements TimerQueue {
+        private final SortedLinkedList<MessageExt> mList = new SortedLinkedList<MessageExt>(
+                new Comparator<MessageExt>() {
+                    @Override
+                    public int compare(MessageExt e1, MessageExt e2) {
+                        return Long.compare(e1.when, e2.when);
+                    }
+                });
+
+        @Override
+        public int size() {
+            return mList.size();
+        }
+
+        @Override
+        public void add(MessageExt msg) {
+            mList.add(msg);
+        }
+
+        @Override
+        public MessageExt peekFirst() {
+            return mList.peekFirst();
+        }
+
+        @Override
+        public MessageExt removeFirst() {
+            if (mList.size() == 0) {
+                throw new NoSuchElementException();
+            }
+            return mList.removeFirst();
+        }
+
+        @Override
+        public boolean remove(final MessageExt msg) {
+            return mList.removeElements(new Predicate<MessageExt>() {
+                @Override
+                public boolean test(MessageExt t) {
+                    return t == msg;
+                }
+            }) > 0;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package jhandler;
+
+/**
+ * Handle of one pending message or Runnable, returned by the cancellable
+ * send and post methods of {@link Handler}.
+ */
+public interface Cancellable {
+    /**
+     * Cancels the message unless it was dispatched, removed or cancelled
+     * already. It takes no lock and doesn't search the queue, the looper drops
+     * the message later.
+     *
+     * @return true if this call prevented the dispatch
+     */
+    boolean cancel();
+}
@@ -0,0 +1,21 @@
+package jhandler;
+
+import jhandler.internal.TimeUtils;
+
+/**
+ * The time source of a looper: its messages are scheduled, and fall due, in
+ * the uptime of its clock. A virtual clock lets a simulation jump over
+ * delays, see {@link SimulatedLooper}.
+ */
+public interface Clock {
+    /** The uptime of {@link SystemClock}, which all the loopers use by default */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long uptimeNanos() {
+            return TimeUtils.uptimeNanos();
+        }
+    };
+
+    /** Returns the uptime in nanoseconds, which never goes back */
+    long uptimeNanos();
+}
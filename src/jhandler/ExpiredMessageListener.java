@@ -0,0 +1,18 @@
+package jhandler;
+
+/**
+ * Notified of the messages dropped instead of dispatched because they were
+ * stale, see {@link Message#setDeadline} and {@link Looper#setMaxLag}.
+ */
+public interface ExpiredMessageListener {
+    /**
+     * Called on the looper thread in place of the dispatch. The message is
+     * recycled once this returns, so it must not be kept.
+     *
+     * @param target The handler of the message
+     * @param msg The message, of a posted Runnable too
+     * @param callback The posted Runnable, null for a message
+     * @param lagNanos How late the message was, after it was due
+     */
+    void onExpired(Handler target, Message msg, Runnable callback, long lagNanos);
+}
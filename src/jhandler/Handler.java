@@ -1,6 +1,17 @@
 package jhandler;
 
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import jhandler.internal.MessageExt;
+import jhandler.internal.MessagePool;
 import jhandler.internal.MessageQueue;
 import jhandler.internal.TimeUtils;
 
@@ -10,24 +21,127 @@ import jhandler.internal.TimeUtils;
  * <p> Message can be sent from any thread to this handler, while message handling
  * is always in the Looper thread hosting this handler.
  * 
+ * <p> A handler is also an Executor running the tasks on its looper, e.g. for
+ * the async methods of CompletableFuture.
+ * 
  * @author Dagang Wei
  */
-public class Handler {
+public class Handler implements Executor {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Handler, ConcurrentHashMap> THROTTLES =
+            AtomicReferenceFieldUpdater.newUpdater(Handler.class, ConcurrentHashMap.class, "mThrottles");
+
+    // Looper and queue of a handler bound to a looper, null if bound to a pool
+    private final Looper mLooper;
     private final MessageQueue mQueue;
 
+    // Pool and shard key of a handler bound to a LooperPool, null otherwise
+    private final LooperPool mPool;
+    final Object mKey;
+
+    // State of throttle() per "what", created on first use
+    private volatile ConcurrentHashMap<Integer, Throttle> mThrottles;
+
+    /** Creates a handler bound to the looper of the current thread */
     public Handler() {
-        this.mQueue = Looper.myQueue();
+        this(Looper.myLooper());
+    }
+
+    /**
+     * Creates a handler bound to the given looper, it may be called from any
+     * thread, e.g. with the looper of a {@link HandlerThread}.
+     */
+    public Handler(Looper looper) {
+        if (null == looper) {
+            throw new NullPointerException("looper");
+        }
+        this.mLooper = looper;
+        this.mQueue = looper.mQueue;
+        this.mPool = null;
+        this.mKey = null;
+    }
+
+    /**
+     * Creates a handler bound to a shard key of the pool. The messages of all
+     * the handlers of a key are handled in order on one looper of the pool,
+     * which may change when the key is rebalanced.
+     *
+     * @see LooperPool#rebalance(Object, int)
+     */
+    public Handler(LooperPool pool, Object key) {
+        if (null == pool) {
+            throw new NullPointerException("pool");
+        }
+        if (null == key) {
+            throw new NullPointerException("key");
+        }
+        this.mLooper = null;
+        this.mQueue = null;
+        this.mPool = pool;
+        this.mKey = key;
+    }
+
+    /** Returns the looper this handler is bound to, for a pooled handler the current one of its key */
+    public final Looper getLooper() {
+        return null == mPool ? mLooper : mPool.getLooper(mKey);
     }
 
     /** Subclass must override this method to receive messages */
     public void handleMessage(Message msg) {
     }
 
+    /**
+     * Receives a message sent with {@link #sendMessage(int, int, int)}. By
+     * default it is handed to handleMessage(Message) in a pooled Message,
+     * recycled afterwards unless the handler sent it on, override it to
+     * handle integer-only messages without any object.
+     */
+    public void handleMessage(int what, int arg1, int arg2) {
+        final Message msg = Message.obtain(what, arg1, arg2);
+        try {
+            handleMessage(msg);
+        } finally {
+            if (!msg.ext.isInUse()) {
+                msg.recycle();
+            }
+        }
+    }
+
+    /**
+     * Receives a message sent with {@link #sendMessage(int, long)}. By default
+     * it is handled like <code>handleMessage(what, (int) (payload >>> 32), (int) payload)</code>.
+     */
+    public void handleMessage(int what, long payload) {
+        handleMessage(what, (int) (payload >>> 32), (int) payload);
+    }
+
+    /**
+     * Sends an integer-only message without allocating anything, through a
+     * ring of struct-of-arrays slots per looper, handled by
+     * {@link #handleMessage(int, int, int)}. These messages keep their order
+     * among themselves, but not with the other messages and posts. While the
+     * ring is full the overflow policy of the looper applies, see
+     * {@link Looper#setCapacity}, or the sender waits if it has none. A pooled
+     * handler sends a Message instead.
+     */
+    public final boolean sendMessage(int what, int arg1, int arg2) {
+        if (null != mPool) {
+            return sendMessage(Message.obtain(what, arg1, arg2));
+        }
+        return mQueue.enqueueInts(this, what, arg1, arg2);
+    }
+
+    /** Like {@link #sendMessage(int, int, int)} with a long payload, handled by {@link #handleMessage(int, long)} */
+    public final boolean sendMessage(int what, long payload) {
+        if (null != mPool) {
+            return sendMessage(Message.obtain(what, (int) (payload >>> 32), (int) payload));
+        }
+        return mQueue.enqueueLong(this, what, payload);
+    }
+
     /** Sends empty message to this handler */
     public final boolean sendEmptyMessage(int what) {
-        Message msg = new Message();
-        msg.what = what;
-        return sendMessage(msg);
+        return sendMessage(Message.obtain(what));
     }
 
     /** Sends message to this handler */
@@ -35,18 +149,96 @@ public class Handler {
         return sendMessageDelayed(msg, 0);
     }
 
+    /**
+     * Sends messages to this handler as one batch, with a single insertion
+     * into the queue and at most one wake-up of the looper. They are handled
+     * in the iteration order of the collection.
+     *
+     * @throws IllegalStateException if any message is already queued or has
+     *             been recycled, in which case none is sent
+     */
+    public final boolean sendMessages(Collection<Message> msgs) {
+        final MessageExt[] batch = new MessageExt[msgs.size()];
+        final long now = now();
+        int n = 0;
+        try {
+            for (Message msg : msgs) {
+                msg.ext.prepare(this, null, now);
+                batch[n++] = msg.ext;
+            }
+        } catch (IllegalStateException e) {
+            for (int i = 0; i < n; ++i) {
+                batch[i].abandon();
+            }
+            throw e;
+        }
+        return enqueueBatch(batch, n);
+    }
+
     /**
      * Sends empty message to this handler which will be handled after the delay
      */
     public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
-        Message msg = new Message();
-        msg.what = what;
-        return sendMessageDelayed(msg, delayMillis);
+        return sendMessageDelayed(Message.obtain(what), delayMillis);
     }
 
-    /** Sends message to this handler which will be handled after the delay */
+    /**
+     * Sends empty message to this handler which will be handled after the delay
+     */
+    public final boolean sendEmptyMessageDelayed(int what, long delay, TimeUnit unit) {
+        return sendMessageDelayed(Message.obtain(what), delay, unit);
+    }
+
+    /**
+     * Sends message to this handler which will be handled after the delay
+     *
+     * @throws IllegalStateException if the message is already queued or has been recycled
+     */
     public final boolean sendMessageDelayed(Message msg, long delayMillis) {
-        return mQueue.enqueue(new MessageExt(this, msg, TimeUtils.uptime() + delayMillis));
+        return sendMessageDelayed(msg, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends message to this handler which will be handled after the delay
+     *
+     * @throws IllegalStateException if the message is already queued or has been recycled
+     */
+    public final boolean sendMessageDelayed(Message msg, long delay, TimeUnit unit) {
+        return enqueueDelayed(msg.ext, null, unit.toNanos(delay));
+    }
+
+    /**
+     * Sends message to this handler which will be handled after the delay,
+     * and returns a handle cancelling this very message without searching
+     * the queue, e.g. for request timeouts which are mostly cancelled.
+     *
+     * @return The handle, or null if the message queue refused the message
+     * @throws IllegalStateException if the message is already queued or has been recycled
+     */
+    public final Cancellable sendMessageDelayedCancellable(Message msg, long delay, TimeUnit unit) {
+        return enqueueCancellable(msg.ext, null, unit.toNanos(delay));
+    }
+
+    /**
+     * Sends message to this handler which will be handled at the given uptime
+     * of {@link SystemClock#uptimeMillis()}
+     *
+     * @throws IllegalStateException if the message is already queued or has been recycled
+     */
+    public final boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        return sendMessageAtTime(msg, uptimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends message to this handler which will be handled at the given uptime
+     * of {@link SystemClock}, e.g. <code>SystemClock.uptimeNanos() + period</code>
+     * with <code>TimeUnit.NANOSECONDS</code>, or of the clock of the looper if
+     * it has its own, see {@link Looper#uptimeNanos()}
+     *
+     * @throws IllegalStateException if the message is already queued or has been recycled
+     */
+    public final boolean sendMessageAtTime(Message msg, long uptime, TimeUnit unit) {
+        return enqueueAtTime(msg.ext, null, unit.toNanos(uptime));
     }
 
     /**
@@ -54,22 +246,122 @@ public class Handler {
      * the next iteration of the message loop.
      */
     public final boolean sendMessageAtFrontOfQueue(Message msg) {
-        return mQueue.enqueueAtFront(new MessageExt(this, msg, 0));
+        final MessageExt ext = msg.ext;
+        ext.prepare(this, null, 0);
+        return enqueueAtFront(ext);
+    }
+
+    /**
+     * Sends a message unless a message sent with the same key is still pending
+     * for this handler. The pending message then takes the content of msg in
+     * place, keeping its place in the queue, and msg is recycled. It gives
+     * "latest wins" in one step, instead of removeMessages() then send.
+     *
+     * @throws IllegalStateException if the message is already queued or has been recycled
+     */
+    public final boolean sendMessageCoalesced(Message msg, Object key) {
+        return sendMessageCoalesced(msg, key, 0, TimeUnit.MILLISECONDS, false, null);
     }
 
-    /** Checks if there're any pending messages with "what" */
+    /**
+     * Sends a message after the delay, unless a message sent with the same
+     * key is still pending for this handler, in which case msg is merged into
+     * the pending message and recycled.
+     *
+     * @param reschedule Whether the merge moves the pending message to the
+     *            deadline of msg, instead of keeping its place
+     * @param merger How to merge msg into the pending message, null to replace its content
+     * @throws IllegalStateException if the message is already queued or has been recycled
+     */
+    public final boolean sendMessageCoalesced(Message msg, Object key, long delay, TimeUnit unit,
+            boolean reschedule, MessageMerger merger) {
+        if (null == key) {
+            throw new NullPointerException("key");
+        }
+        final MessageExt ext = msg.ext;
+        ext.prepare(this, null, TimeUtils.add(now(), Math.max(0, unit.toNanos(delay))));
+        ext.setCoalescing(key, reschedule, merger);
+        return enqueueTimed(ext);
+    }
+
+    /**
+     * Sends an empty message with "what" after the delay, unless debounce()
+     * is called again for "what" meanwhile, which pushes the deadline back. A
+     * burst of calls ends in a single dispatch, the delay after the last call.
+     */
+    public final boolean debounce(int what, long delay, TimeUnit unit) {
+        return debounce(Message.obtain(what), delay, unit);
+    }
+
+    /** Like {@link #debounce(int, long, TimeUnit)}, dispatching the content of the latest message */
+    public final boolean debounce(Message msg, long delay, TimeUnit unit) {
+        return sendMessageCoalesced(msg, new DebounceKey(msg.what), delay, unit, true, null);
+    }
+
+    /**
+     * Sends an empty message with "what" at most once per interval. A call
+     * after a quiet interval is dispatched right away, the calls within the
+     * next interval collapse into a single dispatch at its end.
+     */
+    public final boolean throttle(int what, long interval, TimeUnit unit) {
+        return throttle(Message.obtain(what), interval, unit);
+    }
+
+    /** Like {@link #throttle(int, long, TimeUnit)}, dispatching the content of the latest message */
+    public final boolean throttle(Message msg, long interval, TimeUnit unit) {
+        final Throttle throttle = throttleOf(msg.what);
+        throttle.mInterval = unit.toNanos(interval);
+        final MessageExt ext = msg.ext;
+        ext.prepare(this, null, Math.max(now(), throttle.mNextAllowed));
+        ext.setCoalescing(throttle, false, null);
+        return enqueueTimed(ext);
+    }
+
+    private Throttle throttleOf(int what) {
+        ConcurrentHashMap<Integer, Throttle> throttles = mThrottles;
+        if (null == throttles) {
+            THROTTLES.compareAndSet(this, null, new ConcurrentHashMap<Integer, Throttle>());
+            throttles = mThrottles;
+        }
+        Throttle throttle = throttles.get(what);
+        if (null == throttle) {
+            throttle = new Throttle();
+            final Throttle raced = throttles.putIfAbsent(what, throttle);
+            if (null != raced) {
+                throttle = raced;
+            }
+        }
+        return throttle;
+    }
+
+    /** Checks if there're any pending messages with "what" sent to this handler */
     public final boolean hasMessages(int what) {
-        return mQueue.hasMessages(what);
+        return hasMessages(what, null);
+    }
+
+    /** Checks if there're any pending messages with "what" and "obj" sent to this handler */
+    public final boolean hasMessages(int what, Object obj) {
+        if (null != mPool) {
+            return mPool.hasMessages(this, what, obj);
+        }
+        return mQueue.hasMessages(this, what, obj);
     }
 
-    /** Remove all the messages with "what" */
+    /** Remove all the messages with "what" sent to this handler */
     public final void removeMessages(int what) {
-        mQueue.removeMessages(what);
+        removeMessages(what, null);
     }
 
-    /** Remove all the messages with "what" and "obj" */
+    /**
+     * Remove all the messages with "what" and "obj" sent to this handler. A
+     * null obj removes all the messages with "what".
+     */
     public final void removeMessages(int what, Object obj) {
-        mQueue.removeMessages(what, obj);
+        if (null != mPool) {
+            mPool.removeMessages(this, what, obj);
+            return;
+        }
+        mQueue.removeMessages(this, what, obj);
     }
 
     /** Adds the Runnable r to the message queue. */
@@ -77,13 +369,237 @@ public class Handler {
         return postDelayed(r, 0);
     }
 
+    /**
+     * Adds the Runnable r to the message queue with a priority, one of the
+     * <code>Message.PRIORITY_*</code> constants.
+     *
+     * @see Message#setPriority(int)
+     */
+    public final boolean post(Runnable r, int priority) {
+        if (priority < Message.PRIORITY_CRITICAL || priority > Message.PRIORITY_BACKGROUND) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        final MessageExt ext = Message.obtainExt();
+        ext.priority = priority;
+        return enqueueDelayed(ext, r, 0);
+    }
+
+    /**
+     * Adds the Runnable r to the message queue, to be dropped instead of run
+     * if the looper only reaches it after the timeout, e.g. the reply to a
+     * request the caller stops waiting for.
+     *
+     * @see Message#setDeadline(long, TimeUnit)
+     */
+    public final boolean postWithTimeout(Runnable r, long timeout, TimeUnit unit) {
+        final MessageExt ext = Message.obtainExt();
+        ext.deadline = TimeUtils.add(now(), Math.max(0, unit.toNanos(timeout)));
+        return enqueueDelayed(ext, r, 0);
+    }
+
+    /**
+     * Adds the Runnables to the message queue as one batch, with a single
+     * insertion into the queue and at most one wake-up of the looper. They
+     * are run in the iteration order of the collection.
+     */
+    public final boolean postAll(Collection<? extends Runnable> rs) {
+        final MessageExt[] batch = new MessageExt[rs.size()];
+        final long now = now();
+        int n = 0;
+        for (Runnable r : rs) {
+            final MessageExt ext = Message.obtainExt();
+            ext.prepare(this, r, now);
+            batch[n++] = ext;
+        }
+        return enqueueBatch(batch, n);
+    }
+
     /**
      * Adds the Runnable r to the message queue, to be run after the specified
      * amount of time elapses.
      */
     public final boolean postDelayed(Runnable r, long delayMillis) {
-        MessageExt msg = new MessageExt(this, r, TimeUtils.uptime() + delayMillis);
-        return mQueue.enqueue(msg);
+        return postDelayed(r, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the Runnable r to the message queue, to be run after the specified
+     * amount of time elapses.
+     */
+    public final boolean postDelayed(Runnable r, long delay, TimeUnit unit) {
+        return enqueueDelayed(Message.obtainExt(), r, unit.toNanos(delay));
+    }
+
+    /**
+     * Adds the Runnable r to the message queue, to be run after the delay,
+     * and returns a handle cancelling this very post without searching the
+     * queue, unlike removeCallbacks().
+     *
+     * @return The handle, or null if the message queue refused the Runnable
+     */
+    public final Cancellable postDelayedCancellable(Runnable r, long delay, TimeUnit unit) {
+        return enqueueCancellable(Message.obtainExt(), r, unit.toNanos(delay));
+    }
+
+    /**
+     * Adds the Runnable r to the message queue, to be run at the given uptime
+     * of {@link SystemClock#uptimeMillis()}
+     */
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        return postAtTime(r, uptimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the Runnable r to the message queue, to be run at the given uptime
+     * of {@link SystemClock}
+     */
+    public final boolean postAtTime(Runnable r, long uptime, TimeUnit unit) {
+        return enqueueAtTime(Message.obtainExt(), r, unit.toNanos(uptime));
+    }
+
+    /** Checks if there're any pending posts of Runnable r to this handler */
+    public final boolean hasCallbacks(Runnable r) {
+        if (null != mPool) {
+            return mPool.hasCallbacks(this, r);
+        }
+        return mQueue.hasCallbacks(this, r);
+    }
+
+    /** Removes any pending posts of Runnable r to this handler */
+    public final void removeCallbacks(Runnable r) {
+        if (null != mPool) {
+            mPool.removeCallbacks(this, r);
+            return;
+        }
+        mQueue.removeCallbacks(this, r);
+    }
+
+    /**
+     * Posts the Runnable, as an Executor.
+     *
+     * @throws RejectedExecutionException if the message queue refuses it
+     */
+    @Override
+    public final void execute(Runnable command) {
+        if (null == command) {
+            throw new NullPointerException("command");
+        }
+        if (!post(command)) {
+            throw new RejectedExecutionException("The message queue refused the task");
+        }
+    }
+
+    /**
+     * Runs the task on the looper of this handler, and returns the future of
+     * its result. The future fails with RejectedExecutionException if the
+     * message queue refuses the task, or drops it instead of running it, by
+     * its overflow policy or for its lag (see {@link Looper#setMaxLag}).
+     * Cancelling the future removes the task from the queue.
+     */
+    public final <T> HandlerFuture<T> submit(Callable<T> task) {
+        if (null == task) {
+            throw new NullPointerException("task");
+        }
+        return submit(new HandlerFuture<T>(this, task));
+    }
+
+    /** Like {@link #submit(Callable)}, for a task without result */
+    public final HandlerFuture<Void> submit(Runnable task) {
+        if (null == task) {
+            throw new NullPointerException("task");
+        }
+        return submit(new HandlerFuture<Void>(this, task));
+    }
+
+    private <T> HandlerFuture<T> submit(HandlerFuture<T> future) {
+        if (!post(future)) {
+            future.completeExceptionally(new RejectedExecutionException("The message queue refused the task"));
+        }
+        return future;
+    }
+
+    /**
+     * Runs the Runnable on the looper of this handler and waits for it, like
+     * Android's <code>Handler.runWithScissors</code>. It runs inline if called
+     * on that looper. An exception thrown by r is rethrown to the caller.
+     *
+     * <p> Two loopers waiting for each other this way deadlock, so only call
+     * it from threads the target looper never waits for.
+     *
+     * @return false if the queue refused r, or on timeout or interrupt, in
+     *         which case r is removed from the queue unless it is running
+     */
+    public final boolean runWithScissors(Runnable r, long timeout, TimeUnit unit) {
+        if (null == r) {
+            throw new NullPointerException("r");
+        }
+        if (getLooper().isCurrentThread()) {
+            r.run();
+            return true;
+        }
+
+        final HandlerFuture<Void> future = new HandlerFuture<Void>(this, r);
+        if (!post(future)) {
+            return false;
+        }
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            return false;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            if (future.isDropped()) {
+                return false; // refused by the queue after all
+            }
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Calls the task on the looper of this handler and returns its result,
+     * inline if called on that looper. See runWithScissors() about deadlocks.
+     *
+     * @throws RejectedExecutionException if the message queue refuses the task
+     * @throws TimeoutException on timeout, the task is removed from the queue
+     *             unless it is running
+     * @throws Exception thrown by the task
+     */
+    public final <T> T call(Callable<T> task, long timeout, TimeUnit unit) throws Exception {
+        if (getLooper().isCurrentThread()) {
+            return task.call();
+        }
+
+        final HandlerFuture<T> future = submit(task);
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw rethrow(cause);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new RuntimeException(e);
     }
 
     /**
@@ -91,17 +607,136 @@ public class Handler {
      * on the next iterator of the message loop
      */
     public final boolean postAtFrontOfQueue(Runnable r) {
-        return mQueue.enqueueAtFront(new MessageExt(this, r, 0));
+        final MessageExt ext = Message.obtainExt();
+        ext.prepare(this, r, 0);
+        return enqueueAtFront(ext);
+    }
+
+    // zero-delay messages skip the queue lock
+    private boolean enqueueDelayed(MessageExt msg, Runnable r, long delayNanos) {
+        final long now = now();
+        if (delayNanos <= 0) {
+            msg.prepare(this, r, now);
+            if (null != mPool) {
+                return checkQueued(msg, mPool.enqueue(mKey, LooperPool.IMMEDIATE, msg, null, 0));
+            }
+            return checkQueued(msg, mQueue.enqueueImmediate(msg));
+        }
+        msg.prepare(this, r, TimeUtils.add(now, delayNanos));
+        return enqueueTimed(msg);
+    }
+
+    private Cancellable enqueueCancellable(MessageExt msg, Runnable r, long delayNanos) {
+        msg.prepare(this, r, TimeUtils.add(now(), Math.max(0, delayNanos)));
+        // taken before enqueueing, the message may be dispatched and reused right after
+        final MessageToken token = new MessageToken(this, msg, msg.makeCancellable());
+        if (delayNanos <= 0 && null == mPool) {
+            return checkQueued(msg, mQueue.enqueueImmediate(msg)) ? token : null;
+        }
+        return enqueueTimed(msg) ? token : null;
+    }
+
+    private boolean enqueueAtTime(MessageExt msg, Runnable r, long uptimeNanos) {
+        msg.prepare(this, r, uptimeNanos);
+        return enqueueTimed(msg);
+    }
+
+    private boolean enqueueTimed(MessageExt msg) {
+        if (null != mPool) {
+            return checkQueued(msg, mPool.enqueue(mKey, LooperPool.TIMED, msg, null, 0));
+        }
+        return checkQueued(msg, mQueue.enqueue(msg));
+    }
+
+    private boolean enqueueBatch(MessageExt[] batch, int count) {
+        final boolean queued = null != mPool
+                ? mPool.enqueue(mKey, LooperPool.BATCH, null, batch, count)
+                : mQueue.enqueueImmediate(batch, count);
+        if (queued) {
+            return true;
+        }
+        for (int i = 0; i < count; ++i) {
+            MessagePool.recycle(batch[i]); // the looper has quit
+        }
+        return false;
+    }
+
+    private boolean enqueueAtFront(MessageExt msg) {
+        if (null != mPool) {
+            return checkQueued(msg, mPool.enqueue(mKey, LooperPool.AT_FRONT, msg, null, 0));
+        }
+        return checkQueued(msg, mQueue.enqueueAtFront(msg));
+    }
+
+    /** The uptime of the clock of the looper, that of SystemClock for a pooled handler */
+    private long now() {
+        return null == mQueue ? TimeUtils.uptimeNanos() : mQueue.uptimeNanos();
+    }
+
+    private static boolean checkQueued(MessageExt msg, boolean queued) {
+        if (!queued) {
+            MessagePool.recycle(msg); // the looper has quit
+        }
+        return queued;
     }
 
     /** Receives a message dispatched from Looper, to be handled immediately */
     void dispatch(MessageExt msg) {
         assert (this == msg.target);
 
+        if (MessageExt.RING_INTS == msg.ringKind) {
+            handleMessage(msg.message.what, msg.message.arg1, msg.message.arg2);
+            return;
+        } else if (MessageExt.RING_LONG == msg.ringKind) {
+            handleMessage(msg.message.what, msg.ringPayload);
+            return;
+        }
+
+        if (msg.getCoalesceKey() instanceof Throttle) {
+            final Throttle throttle = (Throttle) msg.getCoalesceKey();
+            throttle.mNextAllowed = TimeUtils.add(now(), throttle.mInterval);
+        }
+
         if (null != msg.callback) {
             msg.callback.run();
         } else {
             handleMessage(msg.message);
         }
     }
+
+    /**
+     * Told about a message of this handler the queue dropped instead of
+     * dispatching it, e.g. by OverflowPolicy.DROP_OLDEST or for its lag,
+     * before it is recycled. The future of a submitted task fails.
+     */
+    void onDropped(MessageExt msg) {
+        if (msg.callback instanceof HandlerFuture) {
+            ((HandlerFuture<?>) msg.callback).drop();
+        }
+    }
+
+    /** Coalescing key of debounce() */
+    private static final class DebounceKey {
+        private final int mWhat;
+
+        DebounceKey(int what) {
+            mWhat = what;
+        }
+
+        @Override
+        public int hashCode() {
+            return mWhat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DebounceKey && ((DebounceKey) o).mWhat == mWhat;
+        }
+    }
+
+    /** Coalescing key of throttle(), compared by identity, one per "what" */
+    private static final class Throttle {
+        volatile long mInterval;
+        volatile long mNextAllowed = Long.MIN_VALUE;
+    }
 }
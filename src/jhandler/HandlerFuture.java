@@ -0,0 +1,152 @@
+package jhandler;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Future of a task submitted with {@link Handler#submit(Callable)}, completed
+ * on the looper of the handler. The future itself is the Runnable posted to
+ * the handler, so a submit costs one allocation besides the pooled message.
+ *
+ * <p> The thenXxxOn() methods continue on another looper, and return the
+ * HandlerFuture of the continuation, so hops chain. It is posted to that
+ * handler once this future completes normally, and fails along otherwise.
+ * The continuation is the posted Runnable too, holding the action and the
+ * result it is passed, so a hop adds no wrapper around the action.
+ */
+public class HandlerFuture<T> extends CompletableFuture<T> implements Runnable {
+    // Kinds of task
+    private static final int CALLABLE = 0;
+    private static final int RUNNABLE = 1;
+    private static final int FUNCTION = 2;
+    private static final int CONSUMER = 3;
+
+    private final Handler mHandler;
+
+    // A Callable or a Runnable, or for a hop a Function or a Consumer of mInput
+    private final int mKind;
+    private final Object mTask;
+
+    // The result of the upstream future of a hop, set before it is posted
+    private Object mInput;
+
+    // Set if the queue dropped the task instead of running it
+    private volatile boolean mDropped = false;
+
+    HandlerFuture(Handler handler, Callable<T> callable) {
+        this(handler, CALLABLE, callable);
+    }
+
+    HandlerFuture(Handler handler, Runnable runnable) {
+        this(handler, RUNNABLE, runnable);
+    }
+
+    private HandlerFuture(Handler handler, int kind, Object task) {
+        this.mHandler = handler;
+        this.mKind = kind;
+        this.mTask = task;
+    }
+
+    /** Runs the task and completes the future, called on the looper of the handler */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        if (isDone()) {
+            return; // cancelled before it ran
+        }
+        final Object input = mInput;
+        mInput = null;
+        try {
+            switch (mKind) {
+            case CALLABLE:
+                complete(((Callable<T>) mTask).call());
+                break;
+            case RUNNABLE:
+                ((Runnable) mTask).run();
+                complete(null);
+                break;
+            case FUNCTION:
+                complete(((Function<Object, T>) mTask).apply(input));
+                break;
+            default:
+                ((Consumer<Object>) mTask).accept(input);
+                complete(null);
+                break;
+            }
+        } catch (Throwable e) {
+            completeExceptionally(e);
+        }
+    }
+
+    /** Fails the future of a task the queue dropped, e.g. shed for its lag, see Looper.setMaxLag() */
+    void drop() {
+        mDropped = true;
+        completeExceptionally(new RejectedExecutionException("The message queue dropped the task"));
+    }
+
+    boolean isDropped() {
+        return mDropped;
+    }
+
+    /** Cancels the future, and removes the task from the queue if it hasn't run yet */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            mHandler.removeCallbacks(this);
+        }
+        return cancelled;
+    }
+
+    /** Runs the action on the looper of the handler once this future completes normally */
+    public HandlerFuture<Void> thenRunOn(Handler handler, Runnable action) {
+        if (null == action) {
+            throw new NullPointerException("action");
+        }
+        return hop(new HandlerFuture<Void>(handler, action));
+    }
+
+    /** Passes the result to the action on the looper of the handler */
+    public HandlerFuture<Void> thenAcceptOn(Handler handler, Consumer<? super T> action) {
+        if (null == action) {
+            throw new NullPointerException("action");
+        }
+        return hop(new HandlerFuture<Void>(handler, CONSUMER, action));
+    }
+
+    /** Maps the result with fn on the looper of the handler */
+    public <U> HandlerFuture<U> thenApplyOn(Handler handler, Function<? super T, ? extends U> fn) {
+        if (null == fn) {
+            throw new NullPointerException("fn");
+        }
+        return hop(new HandlerFuture<U>(handler, FUNCTION, fn));
+    }
+
+    /** Posts the continuation to its handler once this future completes normally, or fails it along */
+    private <U> HandlerFuture<U> hop(final HandlerFuture<U> next) {
+        if (null == next.mHandler) {
+            throw new NullPointerException("handler");
+        }
+        whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable failure) {
+                if (null != failure) {
+                    next.completeExceptionally(failure instanceof CompletionException
+                            ? failure : new CompletionException(failure));
+                    return;
+                }
+                next.mInput = result; // published to the looper by the post
+                if (!next.mHandler.post(next)) {
+                    next.mInput = null;
+                    next.completeExceptionally(new RejectedExecutionException("The message queue refused the task"));
+                }
+            }
+        });
+        return next;
+    }
+}
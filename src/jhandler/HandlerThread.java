@@ -0,0 +1,147 @@
+package jhandler;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A thread running a looper, started from a ThreadFactory so it can be a
+ * platform or a virtual thread. The start methods return once the looper is
+ * prepared, so its Looper and Handler can be used right away.
+ *
+ * <p> The message queue waits with LockSupport and ReentrantLock, so a looper
+ * on a virtual thread never pins its carrier thread while idle, and thousands
+ * of them can run on a few carriers.
+ */
+public final class HandlerThread {
+    private final CountDownLatch mReady = new CountDownLatch(1);
+    private final Thread mThread;
+    private volatile Looper mLooper;
+    private volatile Handler mHandler;
+    private volatile Throwable mFailure;
+
+    private HandlerThread(ThreadFactory factory, final TimerEngine engine) {
+        mThread = factory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (null == engine) {
+                        Looper.prepare();
+                    } else {
+                        Looper.prepare(engine);
+                    }
+                    mLooper = Looper.myLooper();
+                    mHandler = new Handler();
+                } catch (RuntimeException e) {
+                    mFailure = e;
+                    return;
+                } finally {
+                    mReady.countDown();
+                }
+                Looper.loop();
+            }
+        });
+        if (null == mThread) {
+            throw new IllegalStateException("The thread factory did not create a thread");
+        }
+    }
+
+    /** Starts a looper on a new platform thread */
+    public static HandlerThread start(String name) {
+        return start(platformThreadFactory(name));
+    }
+
+    /**
+     * Starts a looper on a new virtual thread.
+     *
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public static HandlerThread startVirtual(String name) {
+        return start(virtualThreadFactory(name));
+    }
+
+    /** Starts a looper on a thread created by the factory */
+    public static HandlerThread start(ThreadFactory factory) {
+        return start(factory, null);
+    }
+
+    /**
+     * Starts a looper on a thread created by the factory, keeping its pending
+     * messages in the given timer engine.
+     */
+    public static HandlerThread start(ThreadFactory factory, TimerEngine engine) {
+        final HandlerThread t = new HandlerThread(factory, engine);
+        t.mThread.start();
+        t.awaitReady();
+        return t;
+    }
+
+    /**
+     * Returns a factory of virtual threads with the given name.
+     *
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            final Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name);
+            }
+        };
+    }
+
+    private void awaitReady() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mReady.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (null != mFailure) {
+            throw new IllegalStateException("Failed to prepare the looper", mFailure);
+        }
+    }
+
+    /** Returns the looper running on this thread */
+    public Looper getLooper() {
+        return mLooper;
+    }
+
+    /** Returns a handler bound to the looper of this thread */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /** Returns the underlying thread */
+    public Thread getThread() {
+        return mThread;
+    }
+
+    /** Quits the looper, the thread ends after the message being handled */
+    public void quit() {
+        mLooper.quit();
+    }
+
+    /** Waits for the thread to end */
+    public void join() throws InterruptedException {
+        mThread.join();
+    }
+}
@@ -0,0 +1,85 @@
+package jhandler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, with power of 2 buckets.
+ * Recording is a few atomic increments, percentiles are rounded up to the
+ * upper bound of their bucket (within a factor of 2).
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    // bucket i counts the durations in [2^(i-1), 2^i), bucket 0 the ones <= 0
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /** Records a duration */
+    public void record(long nanos) {
+        final int bucket = nanos <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mTotal.addAndGet(Math.max(0, nanos));
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    /** The number of recorded durations */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** The sum of the recorded durations */
+    public long getTotalNanos() {
+        return mTotal.get();
+    }
+
+    /** The longest recorded duration */
+    public long getMaxNanos() {
+        return mMax.get();
+    }
+
+    /** The mean of the recorded durations, 0 if none */
+    public long getMeanNanos() {
+        final long count = mCount.get();
+        return 0 == count ? 0 : mTotal.get() / count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, e.g. 99 for the p99
+     *
+     * @param percentile In (0, 100]
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in (0, 100]");
+        }
+        long total = 0;
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        final long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                final long upper = 0 == i ? 0 : (i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, mMax.get());
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanNanos() + "ns, p50<=" + getPercentileNanos(50)
+                + "ns, p99<=" + getPercentileNanos(99) + "ns, max=" + getMaxNanos() + "ns";
+    }
+}
@@ -1,5 +1,8 @@
 package jhandler;
 
+import java.util.concurrent.TimeUnit;
+
+import jhandler.internal.EventTracer;
 import jhandler.internal.MessageExt;
 import jhandler.internal.MessageQueue;
 
@@ -14,40 +17,129 @@ public class Looper {
     private static final ThreadLocal<Looper> sLooperHolder = new ThreadLocal<Looper>();
 
     // Message queue associated with this looper
-    private final MessageQueue mQueue;
+    final MessageQueue mQueue;
+
+    // The thread running this looper
+    private final Thread mThread;
+
+    // Whether any of the observers below is set, so that loop() checks a single flag
+    private volatile boolean mObserved = false;
+    private volatile Printer mLogging;
+    private volatile LooperMetrics mMetrics;
+    private volatile SlowDispatchListener mSlowDispatchListener;
+    private volatile long mSlowDispatchThreshold;
 
     // No public constructor
-    private Looper() {
-        this.mQueue = new MessageQueue();
+    private Looper(MessageQueue queue) {
+        this.mQueue = queue;
+        this.mThread = Thread.currentThread();
+        queue.setDropHook(new MessageQueue.DropHook() {
+            @Override
+            public void onDropped(MessageExt msg) {
+                msg.target.onDropped(msg);
+            }
+        });
     }
 
     /**
      * Prepares looper for the current thread
      */
     public static final void prepare() {
+        setUp(new MessageQueue());
+    }
+
+    /**
+     * Prepares looper for the current thread, keeping pending messages in the
+     * given timer engine, e.g. <code>TimerEngine.TIMING_WHEEL</code> for huge
+     * numbers of short timeouts. The default is <code>TimerEngine.HEAP</code>.
+     * Every priority lane gets its own timer queue of the engine.
+     */
+    public static final void prepare(TimerEngine engine) {
+        setUp(new MessageQueue(engine.factory));
+    }
+
+    /**
+     * Prepares looper for the current thread, scheduling its messages in the
+     * time of the clock instead of the uptime of {@link SystemClock}, e.g.
+     * a virtual clock, see {@link SimulatedLooper}.
+     */
+    public static final void prepare(TimerEngine engine, Clock clock) {
+        setUp(new MessageQueue(engine.factory, clock));
+    }
+
+    private static void setUp(MessageQueue queue) {
         if (sLooperHolder.get() != null) {
             throw new RuntimeException("Only one Looper may be created per thread");
         }
-        sLooperHolder.set(new Looper());
+        sLooperHolder.set(new Looper(queue));
+    }
+
+    /** Unbinds the looper from the current thread, which may then prepare another one */
+    static void release(Looper looper) {
+        if (sLooperHolder.get() == looper) {
+            sLooperHolder.remove();
+        }
     }
 
     /**
      * Runs message loop in this thread.
      */
     public static final void loop() {
-        final MessageQueue queue = myQueue();
+        final Looper me = myLooper();
+        final MessageQueue queue = me.mQueue;
+
+        while (me.dispatch(queue.next())) { // might block
+        }
+    }
 
-        while (true) {
-            MessageExt msg = queue.next(); // might block
-            assert (null != msg);
+    /** Dispatches and finishes a message of the queue, false for the quit message */
+    boolean dispatch(MessageExt msg) {
+        assert (null != msg);
 
-            // message w/o target means stop
-            if (msg.target == null) {
-                return;
-            }
+        // message w/o target means stop
+        if (msg.target == null) {
+            return false;
+        }
 
+        final EventTracer tracer = EventTracer.installed();
+        if (mObserved || null != tracer) {
+            dispatchObserved(msg, tracer);
+        } else {
             msg.target.dispatch(msg);
         }
+        mQueue.finish(msg);
+        return true;
+    }
+
+    private void dispatchObserved(MessageExt msg, EventTracer tracer) {
+        final Printer logging = mLogging;
+        final LooperMetrics metrics = mMetrics;
+        final SlowDispatchListener slowDispatchListener = mSlowDispatchListener;
+
+        if (null != logging) {
+            logging.println(">>>>> Dispatching to " + msg.target + " " + msg.callback + ": " + msg.message.what);
+        }
+        final Object event = (null == tracer ? null : tracer.beginDispatch(mQueue, msg));
+        final long start = mQueue.uptimeNanos();
+        final long lag = start - msg.when; // before a periodic task moves "when" to its next run
+        msg.target.dispatch(msg);
+        final long took = mQueue.uptimeNanos() - start;
+        if (null != event) {
+            tracer.endDispatch(event, mQueue, msg);
+        }
+        if (null != logging) {
+            logging.println("<<<<< Finished to " + msg.target + " " + msg.callback);
+        }
+
+        if (null != metrics) {
+            metrics.onDispatched(msg, lag, took);
+        }
+        if (null != slowDispatchListener && took >= mSlowDispatchThreshold) {
+            if (null != metrics) {
+                metrics.onSlowDispatch();
+            }
+            slowDispatchListener.onSlowDispatch(msg.target, msg.message, msg.callback, took);
+        }
     }
 
     /** Returns the Looper object associated with the current thread. */
@@ -58,12 +150,187 @@ public class Looper {
         return sLooperHolder.get();
     }
 
+    /** Returns the thread associated with this looper */
+    public Thread getThread() {
+        return mThread;
+    }
+
+    /**
+     * Returns the current uptime of the clock of this looper in nanoseconds,
+     * the time its messages are scheduled in. It is the uptime of
+     * {@link SystemClock} unless the looper was prepared with another clock.
+     */
+    public long uptimeNanos() {
+        return mQueue.uptimeNanos();
+    }
+
+    /** Checks if the current thread is the thread of this looper */
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
     /** Quits the message loop */
     public void quit() {
         // a message without target for quite
         mQueue.enqueue(new MessageExt(null, (Message) null, 0));
     }
 
+    /**
+     * Sets how the looper waits when it has nothing to do, e.g.
+     * <code>WaitStrategy.spinThenPark(50, TimeUnit.MICROSECONDS)</code> for a
+     * latency-critical looper. It is <code>WaitStrategy.BLOCKING</code> by default.
+     */
+    public void setWaitStrategy(WaitStrategy strategy) {
+        if (null == strategy) {
+            throw new NullPointerException("strategy");
+        }
+        mQueue.setWaitMode(strategy.mode);
+    }
+
+    /**
+     * Sets how long before a deadline a parked looper stops parking and spins,
+     * for wake-ups more precise than the OS timer at the cost of burning CPU,
+     * e.g. a few microseconds for sub-millisecond pacing. It applies to the
+     * parking wait strategies, and is 0 (never spin) by default.
+     */
+    public void setWakeupSpin(long duration, TimeUnit unit) {
+        mQueue.setSpin(duration, unit);
+    }
+
+    /**
+     * Sets how late a delayed message may be dispatched, like the timer slack
+     * of Linux: deadlines within the window share one wake-up of the looper
+     * and are dispatched as a batch, instead of waking it up for each one.
+     * A message may have its own, see {@link Message#setTimerSlack} and
+     * {@link Message#setPrecise}. It is 0 (precise) by default.
+     */
+    public void setTimerSlack(long duration, TimeUnit unit) {
+        mQueue.setTimerSlack(duration, unit);
+    }
+
+    /**
+     * Sheds the messages dispatched later than the maximum lag after they
+     * were due, e.g. sent without delay while a burst was being handled, so
+     * an overloaded looper catches up on fresh messages instead of spending
+     * its time on stale ones. Critical and cancellable messages, and the
+     * tasks of a {@link LooperExecutor}, are never shed. The future
+     * of a task of {@link Handler#submit} fails with a
+     * RejectedExecutionException if it is shed, and runWithScissors() returns
+     * false. The shed messages are counted in {@link LooperMetrics} and passed
+     * to the listener of {@link #setExpiredMessageListener}. It is off by default.
+     */
+    public void setMaxLag(long duration, TimeUnit unit) {
+        mQueue.setMaxLag(duration, unit);
+    }
+
+    /**
+     * Sets the listener of the messages dropped instead of dispatched, past
+     * their deadline (see {@link Message#setDeadline}) or shed for their lag
+     * (see {@link #setMaxLag}), null for none.
+     */
+    public void setExpiredMessageListener(ExpiredMessageListener listener) {
+        mQueue.setExpiredMessageListener(listener);
+    }
+
+    /**
+     * Sets the maximum number of due messages the loop takes out of the queue
+     * in one critical section, to be dispatched one by one outside the lock.
+     * Larger batches amortize the locking over bursts, smaller ones bound how
+     * long a newly due message may wait behind a batch. It is
+     * {@value MessageQueue#DEFAULT_MAX_BATCH_SIZE} by default, 1 disables batching.
+     */
+    public void setMaxBatchSize(int size) {
+        mQueue.setMaxBatchSize(size);
+    }
+
+    /**
+     * Sets how long a due message may wait behind messages of higher
+     * priorities before the due messages go by age, so a steady stream of
+     * critical messages can't starve the background ones. It is 100
+     * milliseconds by default.
+     *
+     * @see Message#setPriority(int)
+     */
+    public void setPriorityAging(long duration, TimeUnit unit) {
+        mQueue.setPriorityAging(duration, unit);
+    }
+
+    /**
+     * Bounds the number of pending messages, so a fast producer can't grow
+     * the queue without limit. The policy decides what a send does while the
+     * queue is full, OverflowPolicy.BLOCK waits for room without timeout. 0
+     * (the default) is unbounded. Set it before sending messages.
+     */
+    public void setCapacity(int capacity, OverflowPolicy policy) {
+        setCapacity(capacity, policy, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Like setCapacity(int, OverflowPolicy), OverflowPolicy.BLOCK refuses the
+     * message after waiting for blockTimeout. The looper thread itself never
+     * blocks on, nor runs inline for, its own full queue: its sends are
+     * refused right away with OverflowPolicy.BLOCK and CALLER_RUNS.
+     */
+    public void setCapacity(int capacity, OverflowPolicy policy, long blockTimeout, TimeUnit unit) {
+        mQueue.setCapacity(capacity, policy, unit.toNanos(blockTimeout), new MessageQueue.Dispatcher() {
+            @Override
+            public void dispatch(MessageExt msg) {
+                Looper.this.dispatch(msg);
+            }
+        });
+    }
+
+    /**
+     * Calls the listener once the number of pending messages reaches high,
+     * and again once it falls back to low, e.g. to pause and resume an
+     * upstream source. Null removes the listener.
+     */
+    public void setWatermarks(int high, int low, WatermarkListener listener) {
+        mQueue.setWatermarks(high, low, listener);
+    }
+
+    /**
+     * Logs a line before and after each dispatch, like Android's
+     * <code>Looper.setMessageLogging</code>. Null stops logging.
+     */
+    public void setMessageLogging(Printer printer) {
+        mLogging = printer;
+        updateObserved();
+    }
+
+    /**
+     * Enables or disables the metrics of this looper. They cost a volatile
+     * read per message while disabled, which is the default.
+     */
+    public synchronized void setMetricsEnabled(boolean enabled) {
+        if (enabled == (null != mMetrics)) {
+            return;
+        }
+        final LooperMetrics metrics = enabled ? new LooperMetrics(this) : null;
+        mQueue.setStats(enabled ? metrics.mQueueStats : null);
+        mMetrics = metrics;
+        updateObserved();
+    }
+
+    /** Returns the metrics of this looper, null if they are disabled */
+    public LooperMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Calls the listener on the looper thread after any dispatch which took
+     * at least the threshold. A null listener disables the detection.
+     */
+    public void setSlowDispatchListener(long threshold, TimeUnit unit, SlowDispatchListener listener) {
+        mSlowDispatchThreshold = unit.toNanos(threshold);
+        mSlowDispatchListener = listener;
+        updateObserved();
+    }
+
+    private void updateObserved() {
+        mObserved = null != mLogging || null != mMetrics || null != mSlowDispatchListener;
+    }
+
     /** Gets the message queue associated with the loop of the current thread */
     static MessageQueue myQueue() {
         return myLooper().mQueue;
@@ -0,0 +1,561 @@
+package jhandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+import jhandler.internal.MessageExt;
+import jhandler.internal.MessagePool;
+import jhandler.internal.TimeUtils;
+
+/**
+ * ScheduledExecutorService running its tasks on a looper, for code written
+ * against java.util.concurrent. The tasks are messages of the looper's queue,
+ * in order with its other messages.
+ *
+ * <p> A periodic task keeps one queue entry for its whole life, moved to the
+ * next tick in place after each run, so ticking allocates nothing. Cancelling
+ * a scheduled task takes no lock, the looper drops its entry.
+ *
+ * <p> Like ScheduledThreadPoolExecutor, shutdown() cancels the periodic tasks
+ * and lets the other ones run. The looper quits once they are all done.
+ */
+public class LooperExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+    private static final int TASK = 1;
+
+    private static final long MAX_DRAIN_BACKOFF_NANOS = 1000000;
+
+    private final Looper mLooper;
+    private final Handler mHandler;
+
+    // Tasks queued or running, the looper quits when it drops to 0 after shutdown
+    private final AtomicInteger mActive = new AtomicInteger(0);
+    private volatile boolean mShutdown = false;
+    // Set by shutdown() when the queue is full, the next task cancels the periodic ones
+    private volatile boolean mCancelPeriodic = false;
+    private final AtomicBoolean mQuit = new AtomicBoolean(false);
+    private final CountDownLatch mTerminated = new CountDownLatch(1);
+    // Awaited by shutdownNow(), counted down by its drain or by a termination beating it
+    private volatile CountDownLatch mDrained;
+
+    // Whether a task is running, and whether shutdownNow() interrupted it,
+    // guarded by mRunLock so the interrupt never outlives the task
+    private final Object mRunLock = new Object();
+    private boolean mRunning = false;
+    private boolean mInterrupted = false;
+
+    /** Creates an executor running its tasks on the looper, which it quits once terminated */
+    public LooperExecutor(Looper looper) {
+        this.mLooper = looper;
+        this.mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                runTask(msg);
+            }
+
+            @Override
+            void onDropped(MessageExt msg) {
+                if (null == msg.callback) {
+                    dropTask(msg.message.obj);
+                }
+            }
+        };
+    }
+
+    /** Creates an executor on a new looper thread */
+    public static LooperExecutor start(String name) {
+        return new LooperExecutor(HandlerThread.start(name).getLooper());
+    }
+
+    /** Returns the looper running the tasks */
+    public Looper getLooper() {
+        return mLooper;
+    }
+
+    private void runTask(Message msg) {
+        synchronized (mRunLock) {
+            mRunning = true;
+        }
+        try {
+            dispatchTask(msg);
+        } finally {
+            synchronized (mRunLock) {
+                mRunning = false;
+                if (mInterrupted) {
+                    mInterrupted = false;
+                    Thread.interrupted(); // from shutdownNow(), not for the next message
+                }
+            }
+        }
+    }
+
+    private void dispatchTask(Message msg) {
+        if (mCancelPeriodic) {
+            mCancelPeriodic = false;
+            cancelPeriodic();
+        }
+        if (!(msg.obj instanceof ScheduledTask)) {
+            try {
+                ((Runnable) msg.obj).run();
+            } catch (Throwable t) {
+                // like a pool thread, report it and go on with the next task
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+            } finally {
+                settle();
+            }
+            return;
+        }
+
+        final ScheduledTask<?> task = (ScheduledTask<?>) msg.obj;
+        if (task.runTick()) {
+            msg.ext.when = task.mWhen;
+            msg.ext.requeue = true; // the same entry, see MessageQueue.finish()
+        } else {
+            task.settle();
+        }
+    }
+
+    /** Settles a task the queue dropped without running it, cancelling its future */
+    private void dropTask(Object task) {
+        if (task instanceof ScheduledTask) {
+            ((ScheduledTask<?>) task).drop();
+            return;
+        }
+        if (task instanceof Future) {
+            ((Future<?>) task).cancel(false);
+        }
+        settle();
+    }
+
+    /** Counts a task in, or refuses it after shutdown */
+    private void admit() {
+        mActive.incrementAndGet();
+        if (mShutdown) {
+            settle();
+            throw new RejectedExecutionException("The executor is shut down");
+        }
+    }
+
+    /** Counts a task out, it is done or won't run */
+    private void settle() {
+        if (0 == mActive.decrementAndGet() && mShutdown) {
+            terminate();
+        }
+    }
+
+    private void terminate() {
+        if (mQuit.compareAndSet(false, true)) {
+            mLooper.quit();
+            mTerminated.countDown();
+            final CountDownLatch drained = mDrained;
+            if (null != drained) {
+                drained.countDown(); // the looper won't run the drain, nothing is left to drain
+            }
+        }
+    }
+
+    /**
+     * Runs the command on the looper. What it throws goes to the uncaught
+     * exception handler of the looper thread, which goes on with the next task.
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (null == command) {
+            throw new NullPointerException("command");
+        }
+        admit();
+        final Message msg = Message.obtain(TASK, command);
+        msg.ext.neverShed = true; // see Looper.setMaxLag()
+        if (!mHandler.sendMessage(msg)) {
+            settle();
+            throw new RejectedExecutionException("The looper refused the task");
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        if (null == command) {
+            throw new NullPointerException("command");
+        }
+        return schedule(new ScheduledTask<Void>(this, command, null, trigger(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        if (null == callable) {
+            throw new NullPointerException("callable");
+        }
+        return schedule(new ScheduledTask<V>(this, callable, trigger(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (null == command) {
+            throw new NullPointerException("command");
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return schedule(new ScheduledTask<Void>(this, command, null, trigger(initialDelay, unit),
+                unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+            TimeUnit unit) {
+        if (null == command) {
+            throw new NullPointerException("command");
+        }
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        return schedule(new ScheduledTask<Void>(this, command, null, trigger(initialDelay, unit),
+                -unit.toNanos(delay)));
+    }
+
+    private long trigger(long delay, TimeUnit unit) {
+        return TimeUtils.add(mLooper.uptimeNanos(), Math.max(0, unit.toNanos(delay)));
+    }
+
+    private <V> ScheduledTask<V> schedule(ScheduledTask<V> task) {
+        admit();
+        final Message msg = Message.obtain(TASK, task);
+        // the task cancels its entry itself, without a token
+        task.mGeneration = msg.ext.makeCancellable();
+        task.mEntry = msg.ext;
+        if (!mHandler.sendMessageDelayed(msg, task.mWhen - mLooper.uptimeNanos(), TimeUnit.NANOSECONDS)) {
+            settle();
+            throw new RejectedExecutionException("The looper refused the task");
+        }
+        return task;
+    }
+
+    /**
+     * Runs the tasks and waits for all of them. They are sent as one batch, so
+     * the looper is woken up once. Called on the looper, it runs them inline.
+     */
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        final List<Future<T>> futures = submitAll(tasks);
+        for (Future<T> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // reported by the future
+            } catch (CancellationException e) {
+                // reported by the future
+            }
+        }
+        return futures;
+    }
+
+    /** Like invokeAll(tasks), cancelling the tasks not done by the timeout */
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final long deadline = TimeUtils.add(TimeUtils.uptimeNanos(), unit.toNanos(timeout));
+        final List<Future<T>> futures = submitAll(tasks);
+        for (Future<T> future : futures) {
+            try {
+                future.get(Math.max(0, deadline - TimeUtils.uptimeNanos()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                // reported by the future
+            } catch (CancellationException e) {
+                // reported by the future
+            } catch (TimeoutException e) {
+                for (Future<T> f : futures) {
+                    f.cancel(true);
+                }
+                break;
+            }
+        }
+        return futures;
+    }
+
+    private <T> List<Future<T>> submitAll(Collection<? extends Callable<T>> tasks) {
+        final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        final List<Message> msgs = new ArrayList<Message>(tasks.size());
+        for (Callable<T> task : tasks) {
+            final FutureTask<T> future = new FutureTask<T>(task);
+            futures.add(future);
+            final Message msg = Message.obtain(TASK, future);
+            msg.ext.neverShed = true; // like execute()
+            msgs.add(msg);
+        }
+        if (mLooper.isCurrentThread()) {
+            for (Future<T> future : futures) {
+                ((FutureTask<T>) future).run();
+            }
+            return futures;
+        }
+
+        for (int i = 0; i < msgs.size(); ++i) {
+            admit();
+        }
+        if (!mHandler.sendMessages(msgs)) {
+            for (int i = 0; i < msgs.size(); ++i) {
+                settle();
+            }
+            throw new RejectedExecutionException("The looper refused the tasks");
+        }
+        return futures;
+    }
+
+    /** Cancels the periodic tasks and refuses new ones, the others still run */
+    @Override
+    public void shutdown() {
+        mShutdown = true;
+        if (0 == mActive.get()) {
+            terminate();
+            return;
+        }
+        final Runnable cancelPeriodic = new Runnable() {
+            @Override
+            public void run() {
+                cancelPeriodic();
+            }
+        };
+        if (mHandler.postAtFrontOfQueue(cancelPeriodic)) {
+            return;
+        }
+        if (mLooper.mQueue.isQuitting()) {
+            terminate(); // the looper has quit, nothing runs anymore
+        } else {
+            mCancelPeriodic = true; // refused by a full queue, the next task does it
+        }
+    }
+
+    /** Cancels the queued periodic tasks, on the looper */
+    private void cancelPeriodic() {
+        drain(new Predicate<Object>() {
+            @Override
+            public boolean test(Object task) {
+                return task instanceof ScheduledTask && ((ScheduledTask<?>) task).isPeriodic();
+            }
+        }, null);
+    }
+
+    /**
+     * Cancels all the queued tasks and returns them, and interrupts a running
+     * one. It waits for the looper to take the tasks out of its queue, after
+     * the task it is running if any, and for room in a full queue.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        mShutdown = true;
+        final List<Runnable> pending = new ArrayList<Runnable>();
+        final Predicate<Object> all = new Predicate<Object>() {
+            @Override
+            public boolean test(Object task) {
+                return true;
+            }
+        };
+        if (mLooper.isCurrentThread()) {
+            drain(all, pending);
+        } else {
+            final CountDownLatch drained = new CountDownLatch(1);
+            mDrained = drained;
+            if (isTerminated()) {
+                return pending; // by the last task settling
+            }
+            final Runnable drainAll = new Runnable() {
+                @Override
+                public void run() {
+                    drain(all, pending);
+                    drained.countDown();
+                }
+            };
+            long backoff = 1000;
+            boolean posted;
+            while (!(posted = mHandler.postAtFrontOfQueue(drainAll)) && !mLooper.mQueue.isQuitting()) {
+                interruptRunning(); // a full queue, wait for the looper to make room
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_DRAIN_BACKOFF_NANOS);
+            }
+            if (!posted) {
+                terminate(); // the looper has quit, nothing runs anymore
+                return pending;
+            }
+            interruptRunning();
+            try {
+                drained.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (0 == mActive.get()) {
+            terminate();
+        }
+        return pending;
+    }
+
+    /** Interrupts the task running on the looper, if any */
+    private void interruptRunning() {
+        synchronized (mRunLock) {
+            if (mRunning && !mInterrupted) {
+                mInterrupted = true;
+                mLooper.getThread().interrupt();
+            }
+        }
+    }
+
+    /** Takes the tasks accepted by the filter out of the queue and cancels them, on the looper */
+    private void drain(final Predicate<Object> filter, List<Runnable> out) {
+        final List<MessageExt> drained = new ArrayList<MessageExt>();
+        mLooper.mQueue.drainTo(new Predicate<MessageExt>() {
+            @Override
+            public boolean test(MessageExt m) {
+                return m.target == mHandler && null == m.callback && filter.test(m.message.obj);
+            }
+        }, drained);
+
+        for (MessageExt m : drained) {
+            final Runnable task = (Runnable) m.message.obj;
+            MessagePool.recycle(m);
+            if (task instanceof ScheduledTask) {
+                final ScheduledTask<?> scheduled = (ScheduledTask<?>) task;
+                if (scheduled.isDone()) {
+                    scheduled.settle(); // cancelled, its entry was waiting to be dropped
+                    continue;
+                }
+                scheduled.cancel(false);
+            }
+            // listed before it settles, the last settle wakes up shutdownNow()
+            if (null != out) {
+                out.add(task);
+            }
+            if (task instanceof ScheduledTask) {
+                ((ScheduledTask<?>) task).settle();
+            } else {
+                settle();
+            }
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return 0 == mTerminated.getCount();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mTerminated.await(timeout, unit);
+    }
+
+    /** A scheduled task and its future, periodic if mPeriod isn't 0 */
+    private static final class ScheduledTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<ScheduledTask> SETTLED =
+                AtomicIntegerFieldUpdater.newUpdater(ScheduledTask.class, "mSettled");
+
+        private final LooperExecutor mExecutor;
+        volatile long mWhen; // uptime nanos of the next run
+        private final long mPeriod; // > 0 at a fixed rate, < 0 with a fixed delay
+        // The queue entry, for its whole life, and the generation cancelling it
+        MessageExt mEntry;
+        long mGeneration;
+        private volatile int mSettled = 0;
+
+        ScheduledTask(LooperExecutor executor, Runnable runnable, V result, long when, long period) {
+            super(runnable, result);
+            this.mExecutor = executor;
+            this.mWhen = when;
+            this.mPeriod = period;
+        }
+
+        ScheduledTask(LooperExecutor executor, Callable<V> callable, long when, long period) {
+            super(callable);
+            this.mExecutor = executor;
+            this.mWhen = when;
+            this.mPeriod = period;
+        }
+
+        /** Runs the task on the looper, returns true if it runs again at mWhen */
+        boolean runTick() {
+            if (!isPeriodic()) {
+                run();
+                return false;
+            }
+            if (mExecutor.mShutdown) {
+                cancel(false); // due before shutdown() could cancel it
+                return false;
+            }
+            if (!runAndReset()) {
+                return false; // cancelled or failed
+            }
+            if (mExecutor.mShutdown) {
+                cancel(false);
+                return false;
+            }
+            mWhen = mPeriod > 0 ? TimeUtils.add(mWhen, mPeriod)
+                    : TimeUtils.add(mExecutor.mLooper.uptimeNanos(), -mPeriod);
+            return true;
+        }
+
+        /** Cancels the task, whose entry the queue dropped, and counts it out */
+        void drop() {
+            super.cancel(false);
+            settle();
+        }
+
+        /** Counts the task out of the executor, once */
+        void settle() {
+            if (SETTLED.compareAndSet(this, 0, 1)) {
+                mExecutor.settle();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mEntry.cancel(mGeneration)) {
+                mExecutor.mLooper.mQueue.onCancelled();
+                settle(); // the looper drops the entry without running it
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return 0 != mPeriod;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mWhen - mExecutor.mLooper.uptimeNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            if (o == this) {
+                return 0;
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package jhandler;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jhandler.internal.MessageExt;
+import jhandler.internal.QueueStats;
+
+/**
+ * Counters and latency histograms of a looper, see
+ * {@link Looper#setMetricsEnabled(boolean)}. They are written by the looper
+ * and its producers without locking, and may be read from any thread.
+ *
+ * <p> The lag of a message is how late its dispatch started after it was due,
+ * the dispatch time is how long its <code>handleMessage</code> or Runnable took.
+ */
+public final class LooperMetrics implements LooperMetricsMXBean {
+    private final Looper mLooper;
+    final QueueStats mQueueStats = new QueueStats();
+    private final AtomicLong mDispatched = new AtomicLong();
+    private final AtomicLong mSlowDispatches = new AtomicLong();
+    private final LatencyHistogram mLag = new LatencyHistogram();
+    private final LatencyHistogram mDispatchTime = new LatencyHistogram();
+    private final ConcurrentHashMap<MessageKind, LatencyHistogram> mByMessage =
+            new ConcurrentHashMap<MessageKind, LatencyHistogram>();
+
+    // Reused by the looper thread to look mByMessage up without allocating
+    private final MessageKind mProbe = new MessageKind();
+
+    private ObjectName mObjectName;
+
+    LooperMetrics(Looper looper) {
+        mLooper = looper;
+    }
+
+    /** Records a dispatch, on the looper thread or a sender running it for OverflowPolicy.CALLER_RUNS */
+    void onDispatched(MessageExt msg, long lagNanos, long dispatchNanos) {
+        mDispatched.incrementAndGet();
+        if (MessageExt.RING_NONE == msg.ringKind) { // integer-only messages aren't timed by the ring
+            mLag.record(lagNanos);
+        }
+        mDispatchTime.record(dispatchNanos);
+
+        final MessageKind probe = mLooper.isCurrentThread() ? mProbe : new MessageKind();
+        probe.set(msg.target.getClass(), null == msg.callback ? null : msg.callback.getClass(), msg.message.what);
+        LatencyHistogram histogram = mByMessage.get(probe);
+        if (null == histogram) {
+            histogram = new LatencyHistogram();
+            final LatencyHistogram raced = mByMessage.putIfAbsent(probe.copy(), histogram);
+            if (null != raced) {
+                histogram = raced;
+            }
+        }
+        histogram.record(dispatchNanos);
+    }
+
+    void onSlowDispatch() {
+        mSlowDispatches.incrementAndGet();
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return mQueueStats.enqueued.sum();
+    }
+
+    @Override
+    public long getDispatchedCount() {
+        return mDispatched.get();
+    }
+
+    @Override
+    public long getRemovedCount() {
+        return mQueueStats.removed.sum();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return mQueueStats.coalesced.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return mQueueStats.rejected.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return mQueueStats.dropped.sum();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return mQueueStats.expired.sum();
+    }
+
+    @Override
+    public long getShedCount() {
+        return mQueueStats.shed.sum();
+    }
+
+    @Override
+    public long getSlowDispatchCount() {
+        return mSlowDispatches.get();
+    }
+
+    /** The number of pending messages, sampled under the queue lock */
+    @Override
+    public int getQueueDepth() {
+        return mLooper.mQueue.size();
+    }
+
+    /** The histogram of how late the dispatches started after the messages were due */
+    public LatencyHistogram getLag() {
+        return mLag;
+    }
+
+    /** The histogram of how long the dispatches took */
+    public LatencyHistogram getDispatchTime() {
+        return mDispatchTime;
+    }
+
+    /**
+     * The histograms of the dispatch times per kind of message, named
+     * <code>HandlerClass#what</code> for messages and
+     * <code>HandlerClass:RunnableClass</code> for posted Runnables.
+     */
+    public Map<String, LatencyHistogram> getDispatchTimeByMessage() {
+        final Map<String, LatencyHistogram> result = new TreeMap<String, LatencyHistogram>();
+        for (Map.Entry<MessageKind, LatencyHistogram> e : mByMessage.entrySet()) {
+            result.put(e.getKey().toString(), e.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getDispatchCountByMessage() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<MessageKind, LatencyHistogram> e : mByMessage.entrySet()) {
+            result.put(e.getKey().toString(), e.getValue().getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public long getLagMeanNanos() {
+        return mLag.getMeanNanos();
+    }
+
+    @Override
+    public long getLagP99Nanos() {
+        return mLag.getPercentileNanos(99);
+    }
+
+    @Override
+    public long getLagMaxNanos() {
+        return mLag.getMaxNanos();
+    }
+
+    @Override
+    public long getDispatchMeanNanos() {
+        return mDispatchTime.getMeanNanos();
+    }
+
+    @Override
+    public long getDispatchP99Nanos() {
+        return mDispatchTime.getPercentileNanos(99);
+    }
+
+    @Override
+    public long getDispatchMaxNanos() {
+        return mDispatchTime.getMaxNanos();
+    }
+
+    /**
+     * Registers these metrics to the platform MBean server as
+     * <code>jhandler:type=Looper,name=&lt;name&gt;</code>.
+     *
+     * @throws IllegalStateException if the registration fails, e.g. the name is taken
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        try {
+            final ObjectName objectName = new ObjectName("jhandler:type=Looper,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            mObjectName = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register the MBean " + name, e);
+        }
+    }
+
+    /** Unregisters these metrics from the platform MBean server, if registered */
+    public synchronized void unregisterMBean() {
+        if (null == mObjectName) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(mObjectName);
+        } catch (JMException e) {
+            // unregistered already
+        }
+        mObjectName = null;
+    }
+
+    /** (Handler class, Runnable class or what) */
+    private static final class MessageKind {
+        private Class<?> mHandlerClass;
+        private Class<?> mCallbackClass;
+        private int mWhat;
+
+        void set(Class<?> handlerClass, Class<?> callbackClass, int what) {
+            mHandlerClass = handlerClass;
+            mCallbackClass = callbackClass;
+            mWhat = null == callbackClass ? what : 0;
+        }
+
+        MessageKind copy() {
+            final MessageKind kind = new MessageKind();
+            kind.set(mHandlerClass, mCallbackClass, mWhat);
+            return kind;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mHandlerClass.hashCode() * 31 + (null == mCallbackClass ? 0 : mCallbackClass.hashCode())) * 31
+                    + mWhat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MessageKind)) {
+                return false;
+            }
+            final MessageKind other = (MessageKind) o;
+            return mHandlerClass == other.mHandlerClass && mCallbackClass == other.mCallbackClass
+                    && mWhat == other.mWhat;
+        }
+
+        @Override
+        public String toString() {
+            return null == mCallbackClass ? mHandlerClass.getName() + "#" + mWhat
+                    : mHandlerClass.getName() + ":" + mCallbackClass.getName();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package jhandler;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link LooperMetrics}, see
+ * {@link LooperMetrics#registerMBean(String)}. Durations are in nanoseconds.
+ */
+public interface LooperMetricsMXBean {
+    long getEnqueuedCount();
+
+    long getDispatchedCount();
+
+    long getRemovedCount();
+
+    long getCoalescedCount();
+
+    long getRejectedCount();
+
+    long getDroppedCount();
+
+    long getExpiredCount();
+
+    long getShedCount();
+
+    long getSlowDispatchCount();
+
+    int getQueueDepth();
+
+    long getLagMeanNanos();
+
+    long getLagP99Nanos();
+
+    long getLagMaxNanos();
+
+    long getDispatchMeanNanos();
+
+    long getDispatchP99Nanos();
+
+    long getDispatchMaxNanos();
+
+    /** The number of dispatches per message kind, see {@link LooperMetrics#getDispatchTimeByMessage()} */
+    Map<String, Long> getDispatchCountByMessage();
+}
@@ -0,0 +1,624 @@
+package jhandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import jhandler.internal.MessageExt;
+import jhandler.internal.MessagePool;
+import jhandler.internal.MessageQueue;
+
+/**
+ * A fixed set of looper threads sharing the load of many handlers.
+ *
+ * <p> A handler created with {@link Handler#Handler(LooperPool, Object)} is
+ * bound to a shard key. All the messages of a key are handled in order on one
+ * looper, while different keys spread over all the loopers. A hot key can be
+ * moved to another looper with {@link #rebalance}, keeping the order of its
+ * messages.
+ *
+ * <p> Tasks of {@link #post} have no key and no order. With work stealing
+ * enabled they wait in per-looper deques, and idle loopers steal from busy ones.
+ */
+public final class LooperPool {
+    // Operations of enqueue()
+    static final int TIMED = 0;
+    static final int IMMEDIATE = 1;
+    static final int BATCH = 2;
+    static final int AT_FRONT = 3;
+
+    // Operations of Route.lookup()
+    private static final int HAS_MESSAGES = 0;
+    private static final int HAS_CALLBACKS = 1;
+    private static final int REMOVE_MESSAGES = 2;
+    private static final int REMOVE_CALLBACKS = 3;
+
+    // How many posted tasks a looper runs in a row before handling its other messages
+    private static final int MAX_TASKS_PER_TURN = 64;
+
+    // The longest a rebalance sleeps between two looks at the senders it waits for
+    private static final long MAX_QUIESCE_BACKOFF_NANOS = 1000000;
+
+    private final HandlerThread[] mThreads;
+    private final Route[] mShardRoutes;
+    private final Worker[] mWorkers;
+
+    /**
+     * Routes of the keys away from the shard of their hash, the others go by
+     * their hash. A moving key has a route of its own, and the route of its
+     * new shard once it is released, see retire().
+     */
+    private final ConcurrentHashMap<Object, Route> mMovedRoutes = new ConcurrentHashMap<Object, Route>();
+
+    private final ReentrantLock mRebalanceLock = new ReentrantLock();
+    // Keys whose own route is being retired, guarded by mRebalanceLock
+    private final Set<Object> mRetiring = new HashSet<Object>();
+    private final AtomicInteger mNextShard = new AtomicInteger();
+    private volatile boolean mWorkStealing = false;
+    private volatile boolean mQuit = false;
+
+    /** Creates a pool with one looper per available processor */
+    public LooperPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a pool of the given number of loopers */
+    public LooperPool(int size) {
+        this(size, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "LooperPool-" + mCount.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * Creates a pool of the given number of loopers, running on threads of the
+     * factory, e.g. {@link HandlerThread#virtualThreadFactory(String)}.
+     */
+    public LooperPool(int size, ThreadFactory factory) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        if (null == factory) {
+            throw new NullPointerException("factory");
+        }
+        mThreads = new HandlerThread[size];
+        mShardRoutes = new Route[size];
+        mWorkers = new Worker[size];
+        for (int i = 0; i < size; ++i) {
+            mThreads[i] = HandlerThread.start(factory);
+            mShardRoutes[i] = new Route(i, mThreads[i].getLooper(), null);
+            mWorkers[i] = new Worker(mThreads[i].getHandler());
+        }
+    }
+
+    /** Returns the number of loopers */
+    public int size() {
+        return mThreads.length;
+    }
+
+    /** Returns the looper of the shard */
+    public Looper getLooper(int shard) {
+        return mThreads[shard].getLooper();
+    }
+
+    /** Returns the looper currently handling the messages of the key */
+    public Looper getLooper(Object key) {
+        return route(key).looper;
+    }
+
+    /** Returns the shard currently handling the messages of the key */
+    public int shardOf(Object key) {
+        return route(key).shard;
+    }
+
+    /**
+     * Enables or disables work stealing for the tasks of {@link #post}. It is
+     * disabled by default, each task then runs on the looper it was posted to.
+     */
+    public void setWorkStealing(boolean enabled) {
+        mWorkStealing = enabled;
+    }
+
+    /**
+     * Runs the task on any looper of the pool, with no ordering guarantee.
+     *
+     * @return false if the pool has quit, the task won't run then
+     */
+    public boolean post(Runnable task) {
+        if (null == task) {
+            throw new NullPointerException("task");
+        }
+        final int shard = (mNextShard.getAndIncrement() & Integer.MAX_VALUE) % mWorkers.length;
+        if (!mWorkStealing) {
+            return mThreads[shard].getHandler().post(task);
+        }
+
+        final Worker worker = mWorkers[shard];
+        worker.mTasks.offerLast(task);
+        if (!worker.schedule()) {
+            // the looper is busy, wake an idle one up to steal the task
+            for (int i = 1; i < mWorkers.length; ++i) {
+                if (mWorkers[(shard + i) % mWorkers.length].schedule()) {
+                    break;
+                }
+            }
+        }
+        // unless a looper took it already, the task would never run once the pool has quit
+        return !(mQuit && worker.mTasks.removeLastOccurrence(task));
+    }
+
+    /**
+     * Moves a key to another shard, e.g. to spread hot keys. The messages
+     * pending on the old looper move along, and the new looper only handles
+     * the key after the old one has handled all its earlier messages, so the
+     * order of the messages of the key is kept. It returns before the move is
+     * complete, and may be called from any thread, including the loopers.
+     *
+     * @return false if the key is still moving from a previous rebalance
+     */
+    public boolean rebalance(final Object key, int shard) {
+        if (shard < 0 || shard >= mThreads.length) {
+            throw new IllegalArgumentException("shard out of range: " + shard);
+        }
+
+        final Route from;
+        final Route to;
+        mRebalanceLock.lock();
+        try {
+            from = route(key);
+            if (from.isHolding() || mRetiring.contains(key)) {
+                return false;
+            }
+            if (from.shard == shard) {
+                return true;
+            }
+            to = new Route(shard, mThreads[shard].getLooper(), from.queue);
+            mMovedRoutes.put(key, to);
+        } finally {
+            mRebalanceLock.unlock();
+        }
+
+        // the senders which may still use the old route are waited for without the lock,
+        // and by the new looper if this is the old one, which they may wait for
+        if (from.looper.getThread() == Thread.currentThread()) {
+            mThreads[to.shard].getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    hand(key, from, to);
+                }
+            });
+        } else {
+            hand(key, from, to);
+        }
+        return true;
+    }
+
+    /** Hands a key over from the old route to the new one, once nothing goes to the old queue anymore */
+    private void hand(final Object key, final Route from, final Route to) {
+        from.quiesce(); // no message of the key goes to the old queue from now on
+
+        // once the old looper gets here, it has handled the earlier messages of the key
+        mThreads[from.shard].getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                to.takeOver(key);
+                mThreads[to.shard].getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        to.release();
+                        // not on the new looper, which senders on the released route may wait for
+                        mThreads[from.shard].getHandler().post(new Runnable() {
+                            @Override
+                            public void run() {
+                                retire(key, to);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Replaces the own route of a released key with the route of its shard,
+     * or forgets it if that is the shard of its hash, so the moved routes
+     * only hold the keys away from home. Rebalancing the key waits until the
+     * senders still on the old route are gone.
+     */
+    private void retire(Object key, Route released) {
+        final Route shared = mShardRoutes[released.shard];
+        mRebalanceLock.lock();
+        try {
+            if (released != mMovedRoutes.get(key)) {
+                return; // moved on meanwhile
+            }
+            if (shared == home(key)) {
+                mMovedRoutes.remove(key);
+            } else {
+                mMovedRoutes.put(key, shared);
+            }
+            mRetiring.add(key);
+        } finally {
+            mRebalanceLock.unlock();
+        }
+
+        released.quiesce();
+        mRebalanceLock.lock();
+        try {
+            mRetiring.remove(key);
+        } finally {
+            mRebalanceLock.unlock();
+        }
+    }
+
+    /** Quits all the loopers */
+    public void quit() {
+        mQuit = true;
+        for (HandlerThread t : mThreads) {
+            t.quit();
+        }
+    }
+
+    /** Waits for all the loopers to end */
+    public void join() throws InterruptedException {
+        for (HandlerThread t : mThreads) {
+            t.join();
+        }
+    }
+
+    /** Enqueues a message of the key with one of the operations of MessageQueue */
+    boolean enqueue(Object key, int op, MessageExt msg, MessageExt[] batch, int count) {
+        while (true) {
+            final Route route = route(key);
+            final int epoch = route.enter();
+            try {
+                if (route == route(key)) {
+                    return route.enqueue(op, msg, batch, count);
+                }
+                // moved meanwhile
+            } finally {
+                route.exit(epoch);
+            }
+        }
+    }
+
+    boolean hasMessages(Handler target, int what, Object obj) {
+        return lookup(target, HAS_MESSAGES, what, obj, null);
+    }
+
+    boolean hasCallbacks(Handler target, Runnable r) {
+        return lookup(target, HAS_CALLBACKS, 0, null, r);
+    }
+
+    void removeMessages(Handler target, int what, Object obj) {
+        lookup(target, REMOVE_MESSAGES, what, obj, null);
+    }
+
+    void removeCallbacks(Handler target, Runnable r) {
+        lookup(target, REMOVE_CALLBACKS, 0, null, r);
+    }
+
+    private boolean lookup(Handler target, int op, int what, Object obj, Runnable r) {
+        while (true) {
+            final Route route = route(target.mKey);
+            final int epoch = route.enter();
+            try {
+                if (route == route(target.mKey)) {
+                    return route.lookup(op, target, what, obj, r);
+                }
+            } finally {
+                route.exit(epoch);
+            }
+        }
+    }
+
+    private Route route(Object key) {
+        if (!mMovedRoutes.isEmpty()) {
+            final Route moved = mMovedRoutes.get(key);
+            if (null != moved) {
+                return moved;
+            }
+        }
+        return home(key);
+    }
+
+    /** Returns the route of the shard of the key's hash */
+    private Route home(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return mShardRoutes[(h & Integer.MAX_VALUE) % mShardRoutes.length];
+    }
+
+    private Runnable steal(Worker thief) {
+        if (!mWorkStealing) {
+            return null;
+        }
+        final int n = mWorkers.length;
+        final int start = ThreadLocalRandom.current().nextInt(n);
+        for (int i = 0; i < n; ++i) {
+            final Worker victim = mWorkers[(start + i) % n];
+            if (victim != thief) {
+                final Runnable task = victim.mTasks.pollLast();
+                if (null != task) {
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Runs the posted tasks of a looper as one message, stealing when its own deque is empty */
+    private final class Worker implements Runnable {
+        final ConcurrentLinkedDeque<Runnable> mTasks = new ConcurrentLinkedDeque<Runnable>();
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        private final Handler mHandler;
+
+        Worker(Handler handler) {
+            mHandler = handler;
+        }
+
+        /** Posts this worker to its looper unless it is scheduled already */
+        boolean schedule() {
+            if (mScheduled.compareAndSet(false, true)) {
+                if (!mHandler.post(this)) {
+                    mScheduled.set(false); // the looper has quit
+                    return false;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            for (int n = 0; n < MAX_TASKS_PER_TURN; ++n) {
+                Runnable task = mTasks.pollFirst();
+                if (null == task) {
+                    task = steal(this);
+                }
+                if (null == task) {
+                    mScheduled.set(false);
+                    // a task offered after the poll above may have seen mScheduled still set
+                    if (mTasks.isEmpty() || !mScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                task.run();
+            }
+            mHandler.post(this); // let the other messages of the looper in, still scheduled
+        }
+    }
+
+    /**
+     * Where the messages of a shard, or of a rebalanced key, go. While a key
+     * moves here its messages are held aside, until the old looper has
+     * handled the earlier ones.
+     */
+    private static final class Route {
+        final int shard;
+        final Looper looper;
+        final MessageQueue queue;
+
+        // Senders in flight, counted per parity of the epoch, see quiesce()
+        private final AtomicInteger[] mSenders = { new AtomicInteger(), new AtomicInteger() };
+        private volatile int mEpoch = 0;
+
+        private final ReentrantLock mLock = new ReentrantLock();
+        private volatile boolean mHolding;
+        private MessageQueue mSource; // guarded by mLock
+        private List<MessageExt> mHeld; // guarded by mLock
+
+        Route(int shard, Looper looper, MessageQueue source) {
+            this.shard = shard;
+            this.looper = looper;
+            this.queue = looper.mQueue;
+            this.mSource = source;
+            this.mHolding = null != source;
+            this.mHeld = mHolding ? new ArrayList<MessageExt>() : null;
+        }
+
+        boolean isHolding() {
+            return mHolding;
+        }
+
+        int enter() {
+            final int epoch = mEpoch;
+            mSenders[epoch & 1].incrementAndGet();
+            return epoch;
+        }
+
+        void exit(int epoch) {
+            mSenders[epoch & 1].decrementAndGet();
+        }
+
+        /**
+         * Waits for the senders which may still use this route. A sender
+         * entering after the epoch flip sees the new route of its key, so
+         * only the senders of the old epoch are waited for. Serialized per
+         * route, so that each flip finds the senders of the previous one gone.
+         */
+        synchronized void quiesce() {
+            final int epoch = mEpoch;
+            mEpoch = epoch + 1;
+            long backoff = 1000;
+            while (0 != mSenders[epoch & 1].get()) {
+                // a sender may be blocked for room in the queue, the looper makes it
+                LockSupport.parkNanos(this, backoff);
+                backoff = Math.min(backoff * 2, MAX_QUIESCE_BACKOFF_NANOS);
+            }
+        }
+
+        boolean enqueue(int op, MessageExt msg, MessageExt[] batch, int count) {
+            if (mHolding && hold(op, msg, batch, count)) {
+                return true;
+            }
+            switch (op) {
+            case TIMED:
+                return queue.enqueue(msg);
+            case IMMEDIATE:
+                return queue.enqueueImmediate(msg);
+            case BATCH:
+                return queue.enqueueImmediate(batch, count);
+            default:
+                return queue.enqueueAtFront(msg);
+            }
+        }
+
+        private boolean hold(int op, MessageExt msg, MessageExt[] batch, int count) {
+            mLock.lock();
+            try {
+                if (!mHolding) {
+                    return false;
+                }
+                if (BATCH == op) {
+                    for (int i = 0; i < count; ++i) {
+                        mHeld.add(batch[i]);
+                    }
+                } else {
+                    mHeld.add(msg); // at front ones have "when" 0, sort first on release and are stamped then
+                }
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /** Moves the messages of the key left in the old queue aside, on the old looper */
+        void takeOver(final Object key) {
+            final List<MessageExt> moved = new ArrayList<MessageExt>();
+            mLock.lock();
+            try {
+                mSource.drainTo(new Predicate<MessageExt>() {
+                    @Override
+                    public boolean test(MessageExt m) {
+                        return key.equals(m.target.mKey);
+                    }
+                }, moved);
+                moved.addAll(mHeld); // held ones were sent later
+                mHeld = moved;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /** Queues the held messages and stops holding, on the new looper */
+        void release() {
+            final List<MessageExt> refused = new ArrayList<MessageExt>();
+            mLock.lock();
+            try {
+                final List<MessageExt> held = mHeld;
+                Collections.sort(held, new Comparator<MessageExt>() { // stable
+                    @Override
+                    public int compare(MessageExt a, MessageExt b) {
+                        return Long.compare(a.when, b.when);
+                    }
+                });
+
+                // the at front ones are sent now, for their lag
+                final long now = SystemClock.uptimeNanos();
+                for (int i = 0; i < held.size() && 0 == held.get(i).when; ++i) {
+                    held.get(i).when = now;
+                }
+
+                // the due ones go through the lane as one batch, which is FIFO, so they stay
+                // ahead of anything sent after the release, whatever "when" that was stamped with
+                int due = 0;
+                while (due < held.size() && held.get(due).when <= now) {
+                    ++due;
+                }
+                if (due > 0) {
+                    final MessageExt[] batch = held.subList(0, due).toArray(new MessageExt[due]);
+                    if (!queue.enqueueImmediate(batch, due)) {
+                        Collections.addAll(refused, batch);
+                    }
+                }
+                for (int i = due; i < held.size(); ++i) {
+                    if (!queue.enqueue(held.get(i))) {
+                        refused.add(held.get(i));
+                    }
+                }
+
+                mHeld = null;
+                mSource = null;
+                mHolding = false;
+            } finally {
+                mLock.unlock();
+            }
+
+            // full or quit, they are dropped like the queue drops its own, out
+            // of the lock as the drop hook may settle tasks or send messages
+            for (MessageExt m : refused) {
+                queue.drop(m);
+            }
+        }
+
+        boolean lookup(int op, Handler target, int what, Object obj, Runnable r) {
+            if (mHolding) {
+                mLock.lock();
+                try {
+                    if (mHolding) {
+                        if (lookup(mSource, op, target, what, obj, r) | lookupHeld(op, target, what, obj, r)) {
+                            return true;
+                        }
+                    }
+                } finally {
+                    mLock.unlock();
+                }
+            }
+            return lookup(queue, op, target, what, obj, r);
+        }
+
+        /** Applies the operation to the queue, returns true if a query found a match */
+        private static boolean lookup(MessageQueue q, int op, Handler target, int what, Object obj, Runnable r) {
+            switch (op) {
+            case HAS_MESSAGES:
+                return q.hasMessages(target, what, obj);
+            case HAS_CALLBACKS:
+                return q.hasCallbacks(target, r);
+            case REMOVE_MESSAGES:
+                q.removeMessages(target, what, obj);
+                return false;
+            default:
+                q.removeCallbacks(target, r);
+                return false;
+            }
+        }
+
+        private boolean lookupHeld(int op, Handler target, int what, Object obj, Runnable r) {
+            for (Iterator<MessageExt> it = mHeld.iterator(); it.hasNext();) {
+                final MessageExt m = it.next();
+                final boolean matched = HAS_MESSAGES == op || REMOVE_MESSAGES == op
+                        ? m.target == target && null == m.callback && what == m.message.what
+                                && (null == obj || obj == m.message.obj)
+                        : m.target == target && m.callback == r;
+                if (!matched) {
+                    continue;
+                }
+                if (HAS_MESSAGES == op || HAS_CALLBACKS == op) {
+                    return true;
+                }
+                it.remove();
+                MessagePool.recycle(m);
+            }
+            return false;
+        }
+    }
+}
@@ -1,14 +1,200 @@
 package jhandler;
 
+import java.util.concurrent.TimeUnit;
+
+import jhandler.internal.MessageExt;
+import jhandler.internal.MessagePool;
+
 /**
  * Message containing a description and arbitrary data object that can be sent
  * to a Handler.
- * 
+ *
+ * <p> While the constructor of Message is public, the best way to get one of
+ * these is to call one of the <code>obtain()</code> methods, which will pull
+ * them from a pool of recycled objects. A message is recycled automatically
+ * after it has been handled, so it must not be kept or used after
+ * <code>handleMessage</code> returns.
+ *
  * @author Dagang Wei
  */
 public final class Message {
+    /**
+     * Priority of messages dispatched before the other due messages, e.g.
+     * control-plane messages. They still wait for the due messages the
+     * looper has taken already, see {@link Looper#setMaxBatchSize(int)}.
+     */
+    public static final int PRIORITY_CRITICAL = 0;
+
+    /** The default priority */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /** Priority of bulk work, dispatched when nothing else is due or once it is aged */
+    public static final int PRIORITY_BACKGROUND = 2;
+
     public int what;
     public int arg1;
     public int arg2;
     public Object obj;
+
+    // The queue node of this message, it lives as long as the message.
+    final MessageExt ext = new MessageExt(null, this, 0);
+
+    /** Returns a new Message instance from the global pool */
+    public static Message obtain() {
+        return obtainExt().message;
+    }
+
+    /** Same as {@link #obtain()}, but sets the value of <code>what</code> */
+    public static Message obtain(int what) {
+        final Message m = obtain();
+        m.what = what;
+        return m;
+    }
+
+    /** Same as {@link #obtain()}, but sets the values of <code>what</code> and <code>obj</code> */
+    public static Message obtain(int what, Object obj) {
+        final Message m = obtain();
+        m.what = what;
+        m.obj = obj;
+        return m;
+    }
+
+    /**
+     * Same as {@link #obtain()}, but sets the values of <code>what</code>,
+     * <code>arg1</code> and <code>arg2</code>
+     */
+    public static Message obtain(int what, int arg1, int arg2) {
+        final Message m = obtain();
+        m.what = what;
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        return m;
+    }
+
+    /**
+     * Same as {@link #obtain()}, but sets the values of <code>what</code>,
+     * <code>arg1</code>, <code>arg2</code> and <code>obj</code>
+     */
+    public static Message obtain(int what, int arg1, int arg2, Object obj) {
+        final Message m = obtain(what, arg1, arg2);
+        m.obj = obj;
+        return m;
+    }
+
+    /** Same as {@link #obtain()}, but copies the values of an existing message */
+    public static Message obtain(Message orig) {
+        if (orig.ext.isRecycled()) {
+            throw new IllegalStateException("Message used after recycle", orig.ext.getRecycleSite());
+        }
+        final Message m = obtain(orig.what, orig.arg1, orig.arg2, orig.obj);
+        m.ext.priority = orig.ext.priority;
+        m.ext.timerSlack = orig.ext.timerSlack;
+        m.ext.deadline = orig.ext.deadline;
+        return m;
+    }
+
+    /**
+     * Sets the priority lane of this message, one of the PRIORITY_*
+     * constants. Due messages of a higher priority are dispatched first, the
+     * order within a priority is kept. A message waiting longer than the
+     * aging limit goes by age instead, see {@link Looper#setPriorityAging}.
+     *
+     * @throws IllegalStateException if the message is queued
+     */
+    public void setPriority(int priority) {
+        if (priority < PRIORITY_CRITICAL || priority > PRIORITY_BACKGROUND) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        if (ext.isInUse()) {
+            throw new IllegalStateException("This message is already in use");
+        }
+        ext.priority = priority;
+    }
+
+    /** Returns the priority lane of this message, PRIORITY_NORMAL by default */
+    public int getPriority() {
+        return ext.priority;
+    }
+
+    /**
+     * Sets the uptime after which this message is useless, e.g. a response
+     * whose caller has timed out: a looper reaching it later drops it
+     * without dispatching it, see {@link Looper#setExpiredMessageListener}.
+     * The uptime is in the clock of the looper, see {@link Looper#uptimeNanos()}.
+     *
+     * @throws IllegalStateException if the message is queued
+     */
+    public void setDeadline(long uptime, TimeUnit unit) {
+        if (ext.isInUse()) {
+            throw new IllegalStateException("This message is already in use");
+        }
+        ext.deadline = unit.toNanos(uptime);
+    }
+
+    /**
+     * Sets how late this message may be dispatched after its delay, in place
+     * of the timer slack of the looper, see {@link Looper#setTimerSlack}.
+     *
+     * @throws IllegalStateException if the message is queued
+     */
+    public void setTimerSlack(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        if (ext.isInUse()) {
+            throw new IllegalStateException("This message is already in use");
+        }
+        ext.timerSlack = unit.toNanos(duration);
+    }
+
+    /**
+     * Exempts this message from timer slack, so it is dispatched at its
+     * deadline and never held for a shared wake-up, or gives it the slack of
+     * the looper back.
+     *
+     * @throws IllegalStateException if the message is queued
+     */
+    public void setPrecise(boolean precise) {
+        if (ext.isInUse()) {
+            throw new IllegalStateException("This message is already in use");
+        }
+        ext.timerSlack = (precise ? 0 : -1);
+    }
+
+    /**
+     * Returns this message to the global pool. It must not be touched after
+     * calling this.
+     *
+     * @throws IllegalStateException if the message is queued or being handled
+     */
+    public void recycle() {
+        if (ext.isRecycled()) {
+            throw new IllegalStateException("Message recycled twice", ext.getRecycleSite());
+        }
+        if (ext.isInUse()) {
+            throw new IllegalStateException("This message cannot be recycled because it is still in use");
+        }
+        MessagePool.recycle(ext);
+    }
+
+    /** Sets the maximum number of messages kept in the global pool, 50 by default */
+    public static void setMaxPoolSize(int size) {
+        MessagePool.setMaxPoolSize(size);
+    }
+
+    /**
+     * Turns on or off the use-after-recycle checks. When on, recycled messages
+     * are never reused, and sending or recycling one again throws
+     * IllegalStateException with the stack trace of the first recycle. Also
+     * enabled with <code>-Djhandler.debugRecycle=true</code>.
+     */
+    public static void setDebugRecycle(boolean debug) {
+        MessagePool.setDebug(debug);
+    }
+
+    /** Takes a queue node from the pool, or allocates a new message */
+    static MessageExt obtainExt() {
+        final MessageExt ext = MessagePool.poll();
+        return null != ext ? ext : new Message().ext;
+    }
 }
@@ -0,0 +1,490 @@
+package jhandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import jhandler.internal.JournalHook;
+
+/**
+ * Durable messages of one handler, journaled to a memory-mapped file so the
+ * pending ones survive a restart of the process.
+ *
+ * <p> Sending a message through the journal appends an enqueue record, and a
+ * done record is appended by a thread of the journal once the message is
+ * dispatched or removed, so the looper never waits for the file.
+ * Opening the journal again re-sends the pending messages to the given
+ * handler, the overdue ones right away. A message dispatched just before a
+ * crash may be dispatched again after the restart.
+ *
+ * <p> A record is in the page cache once written, which survives a crash of
+ * the process. The records are forced to the disk, which survives a crash of
+ * the OS, in groups (see {@link #setGroupCommit(int)}) or by {@link #commit()}.
+ * When the file is full it is rewritten with the pending records only, and
+ * grown if they fill half of it.
+ *
+ * <p> Messages sent to the handler directly are not journaled, and cost
+ * nothing more than before.
+ */
+public final class MessageJournal implements JournalHook {
+    /** The size of a new journal file by default */
+    public static final int DEFAULT_SIZE = 1 << 20;
+
+    private static final int MAGIC = 0x4a484a31; // "JHJ1"
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+
+    // Record: int body length, byte type, body, int CRC32 of type and body
+    private static final int FRAMING = 4 + 1 + 4;
+    private static final byte ENQUEUE = 1; // id, when, what, arg1, arg2, obj length (-1 for null), obj
+    private static final byte DONE = 2; // id
+    private static final int ENQUEUE_BODY = 8 + 8 + 4 + 4 + 4 + 4;
+
+    private final File mFile;
+    private final Handler mTarget;
+    private final ObjectCodec mCodec;
+    private final int mSize; // the size of the file unless the pending records need more
+
+    // Guards everything below, appends come from any sender and the looper
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final CRC32 mCrc = new CRC32();
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer; // positioned at the end of the last record
+
+    /** Offsets of the enqueue records of the pending messages by id */
+    private final Map<Long, Integer> mPending = new HashMap<Long, Integer>();
+    private int mPendingBytes = 0;
+    private long mNextId = 1;
+
+    private int mGroupCommit = 64;
+    private int mUncommitted = 0;
+    private volatile boolean mClosed = false;
+
+    /** Ids of the messages done, added without locking when they are recycled */
+    private final ConcurrentLinkedQueue<Long> mDone = new ConcurrentLinkedQueue<Long>();
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean(false);
+
+    /** Writes the done records, forcing and compacting the file as needed */
+    private final HandlerThread mWriter;
+    private final Runnable mWriteDone = new Runnable() {
+        @Override
+        public void run() {
+            mWriteScheduled.set(false);
+            mLock.lock();
+            try {
+                writeDone();
+            } catch (IOException e) {
+                mFailure = e;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    };
+
+    /** The first failure of the writer, thrown to the next sender */
+    private volatile IOException mFailure;
+
+    private MessageJournal(File file, int size, Handler target, ObjectCodec codec) {
+        this.mFile = file;
+        this.mSize = size;
+        this.mTarget = target;
+        this.mCodec = codec;
+        this.mWriter = HandlerThread.start(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "jhandler-journal");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Same as open(file, DEFAULT_SIZE, target, codec) */
+    public static MessageJournal open(File file, Handler target, ObjectCodec codec) throws IOException {
+        return open(file, DEFAULT_SIZE, target, codec);
+    }
+
+    /**
+     * Opens or creates a journal, and re-sends its pending messages to the
+     * target, whose looper must be running.
+     *
+     * @param size The size of the file in bytes, it grows while the pending records need more
+     * @param codec Encodes Message.obj, may be null if obj is always null
+     * @throws IOException if the file can't be mapped or isn't a journal
+     */
+    public static MessageJournal open(File file, int size, Handler target, ObjectCodec codec) throws IOException {
+        if (null == target) {
+            throw new NullPointerException("target");
+        }
+        if (size < HEADER + FRAMING + ENQUEUE_BODY) {
+            throw new IllegalArgumentException("size is too small");
+        }
+        final MessageJournal journal = new MessageJournal(file, size, target, codec);
+        try {
+            journal.load();
+        } catch (IOException e) {
+            journal.mWriter.quit();
+            throw e;
+        }
+        journal.recover();
+        return journal;
+    }
+
+    /** Forces the records to the disk every count records, 64 by default, 1 for every record */
+    public void setGroupCommit(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        mLock.lock();
+        try {
+            mGroupCommit = count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Sends a durable message to the target, see Handler.sendMessage() */
+    public boolean sendMessage(Message msg) {
+        return sendMessageDelayed(msg, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a durable message to the target, handled after the delay, even
+     * if the process restarts meanwhile. The delay is kept in milliseconds of
+     * the wall clock.
+     *
+     * @return false if the queue refused the message, it is not kept then
+     * @throws IllegalStateException if the message is already queued, or the journal is closed
+     * @throws UncheckedIOException if the journal can't be written, or failed to be
+     */
+    public boolean sendMessageDelayed(Message msg, long delay, TimeUnit unit) {
+        if (msg.ext.isInUse()) {
+            throw new IllegalStateException("This message is already in use");
+        }
+        byte[] obj = null;
+        if (null != msg.obj) {
+            if (null == mCodec) {
+                throw new IllegalArgumentException("A codec is needed to journal Message.obj");
+            }
+            obj = mCodec.encode(msg.obj);
+        }
+        final long delayMillis = Math.max(0, unit.toMillis(delay));
+        final long id;
+        mLock.lock();
+        try {
+            if (mClosed) {
+                throw new IllegalStateException("The journal is closed");
+            }
+            if (null != mFailure) {
+                throw mFailure;
+            }
+            id = mNextId++;
+            appendEnqueue(id, System.currentTimeMillis() + delayMillis, msg, obj);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            mLock.unlock();
+        }
+
+        msg.ext.journal = this;
+        msg.ext.journalId = id;
+        return mTarget.sendMessageDelayed(msg, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the number of pending durable messages */
+    public int getPendingCount() {
+        mLock.lock();
+        try {
+            writeDone();
+            return mPending.size();
+        } catch (IOException e) {
+            mFailure = e;
+            return mPending.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Forces the records written so far to the disk */
+    public void commit() {
+        mLock.lock();
+        try {
+            if (!mClosed) {
+                writeDone();
+                mBuffer.force();
+                mUncommitted = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Rewrites the file with the pending records only, shrinking it back if it has grown */
+    public void checkpoint() throws IOException {
+        mLock.lock();
+        try {
+            if (!mClosed) {
+                writeDone();
+                compact(0);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Commits and closes the file. The messages still queued stay pending in
+     * the file, and are re-sent when it is opened again.
+     */
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (!mClosed) {
+                try {
+                    writeDone();
+                    mBuffer.force();
+                } finally {
+                    mChannel.close();
+                    mClosed = true;
+                    mDone.clear();
+                }
+            }
+        } finally {
+            mLock.unlock();
+            mWriter.quit();
+        }
+    }
+
+    /**
+     * Hands the id of a message leaving the queue to the writer, called when
+     * it is recycled, possibly under the lock of the queue. It neither blocks
+     * nor throws.
+     */
+    @Override
+    public void onDone(long id) {
+        if (mClosed) {
+            return;
+        }
+        mDone.offer(id);
+        if (!mWriteScheduled.get() && mWriteScheduled.compareAndSet(false, true)) {
+            mWriter.getHandler().post(mWriteDone);
+        }
+    }
+
+    /** Appends the done records handed over by onDone() so far, must hold mLock */
+    private void writeDone() throws IOException {
+        Long id;
+        while (!mClosed && null != (id = mDone.poll())) {
+            final Integer offset = mPending.remove(id);
+            if (null == offset) {
+                continue;
+            }
+            mPendingBytes -= recordSize(offset);
+            ensure(FRAMING + 8);
+            final int start = begin(DONE, 8);
+            mBuffer.putLong(id);
+            end(start);
+        }
+    }
+
+    private void appendEnqueue(long id, long when, Message msg, byte[] obj) throws IOException {
+        final int body = ENQUEUE_BODY + (null == obj ? 0 : obj.length);
+        ensure(FRAMING + body);
+        final int start = begin(ENQUEUE, body);
+        mBuffer.putLong(id);
+        mBuffer.putLong(when);
+        mBuffer.putInt(msg.what);
+        mBuffer.putInt(msg.arg1);
+        mBuffer.putInt(msg.arg2);
+        if (null == obj) {
+            mBuffer.putInt(-1);
+        } else {
+            mBuffer.putInt(obj.length);
+            mBuffer.put(obj);
+        }
+        end(start);
+        mPending.put(id, start);
+        mPendingBytes += FRAMING + body;
+    }
+
+    /** Writes the head of a record, returns its offset */
+    private int begin(byte type, int body) {
+        final int start = mBuffer.position();
+        mBuffer.putInt(body);
+        mBuffer.put(type);
+        return start;
+    }
+
+    /** Writes the CRC of the record, and forces a full group */
+    private void end(int start) {
+        final int crcAt = mBuffer.position();
+        mBuffer.putInt(crcOf(mBuffer, start + 4, crcAt));
+        if (++mUncommitted >= mGroupCommit) {
+            mBuffer.force();
+            mUncommitted = 0;
+        }
+    }
+
+    private int crcOf(ByteBuffer buffer, int from, int to) {
+        final ByteBuffer range = buffer.duplicate();
+        range.limit(to).position(from);
+        mCrc.reset();
+        mCrc.update(range);
+        return (int) mCrc.getValue();
+    }
+
+    private int recordSize(int offset) {
+        return FRAMING + mBuffer.getInt(offset);
+    }
+
+    /** Makes room for a record of the given size, compacting or growing the file */
+    private void ensure(int size) throws IOException {
+        // keeps 4 zero bytes after the last record, which mark the end
+        if (mBuffer.remaining() < size + 4) {
+            compact(size + 4);
+        }
+    }
+
+    /** Rewrites the file with the pending records, at least free bytes left */
+    private void compact(int free) throws IOException {
+        final int live = HEADER + mPendingBytes;
+        int size = mSize;
+        while (size - live < free || live > size / 2) {
+            size *= 2;
+        }
+
+        final List<Integer> offsets = new ArrayList<Integer>(mPending.values());
+        Collections.sort(offsets); // in the order they were sent
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        tmp.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel channel = raf.getChannel()) {
+            final MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            writeHeader(out);
+            for (int offset : offsets) {
+                final ByteBuffer record = mBuffer.duplicate();
+                record.limit(offset + recordSize(offset)).position(offset);
+                mPending.put(mBuffer.getLong(offset + 5), out.position());
+                out.put(record);
+            }
+            out.force();
+        }
+
+        mChannel.close();
+        Files.move(tmp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(size);
+        mBuffer.position(live);
+        mUncommitted = 0;
+    }
+
+    private void map(int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        mChannel = raf.getChannel(); // closing the channel closes the file
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+    }
+
+    private static void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.position(HEADER);
+    }
+
+    /** Maps the file and rebuilds the pending records, up to the first torn one */
+    private void load() throws IOException {
+        final boolean exists = mFile.length() > 0;
+        map(mSize);
+        if (!exists) {
+            writeHeader(mBuffer);
+            mBuffer.force();
+            return;
+        }
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            mChannel.close();
+            throw new IOException("Not a message journal: " + mFile);
+        }
+
+        final int capacity = mBuffer.capacity();
+        int pos = HEADER;
+        while (pos + FRAMING <= capacity) {
+            final int body = mBuffer.getInt(pos);
+            if (0 == body) {
+                break;
+            }
+            final boolean fits = body > 0 && body <= capacity - pos - FRAMING;
+            final int end = fits ? pos + FRAMING + body : capacity;
+            if (!fits || mBuffer.getInt(end - 4) != crcOf(mBuffer, pos + 4, end - 4)) {
+                // torn by a crash, cleared so that new records aren't followed by garbage
+                for (int i = pos; i < end; ++i) {
+                    mBuffer.put(i, (byte) 0);
+                }
+                break;
+            }
+
+            final long id = mBuffer.getLong(pos + 5);
+            if (ENQUEUE == mBuffer.get(pos + 4)) {
+                mPending.put(id, pos);
+                mPendingBytes += FRAMING + body;
+            } else {
+                final Integer offset = mPending.remove(id);
+                if (null != offset) {
+                    mPendingBytes -= recordSize(offset);
+                }
+            }
+            mNextId = Math.max(mNextId, id + 1);
+            pos = end;
+        }
+        mBuffer.position(pos);
+    }
+
+    /** Re-sends the pending messages, in the order they were sent */
+    private void recover() {
+        final List<Message> msgs = new ArrayList<Message>();
+        final List<Long> whens = new ArrayList<Long>();
+        mLock.lock();
+        try {
+            final List<Integer> offsets = new ArrayList<Integer>(mPending.values());
+            Collections.sort(offsets);
+            for (int offset : offsets) {
+                final ByteBuffer record = mBuffer.duplicate();
+                record.position(offset + 5);
+                final long id = record.getLong();
+                whens.add(record.getLong());
+                final Message msg = Message.obtain(record.getInt(), record.getInt(), record.getInt());
+                final int length = record.getInt();
+                if (length >= 0) {
+                    final byte[] obj = new byte[length];
+                    record.get(obj);
+                    msg.obj = mCodec.decode(obj);
+                }
+                msg.ext.journal = this;
+                msg.ext.journalId = id;
+                msgs.add(msg);
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < msgs.size(); ++i) {
+            mTarget.sendMessageDelayed(msgs.get(i), Math.max(0, whens.get(i) - now), TimeUnit.MILLISECONDS);
+        }
+    }
+}
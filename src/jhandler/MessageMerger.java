@@ -0,0 +1,14 @@
+package jhandler;
+
+/**
+ * Merges a message into a pending one sent with the same coalescing key, see
+ * {@link Handler#sendMessageCoalesced(Message, Object, long, java.util.concurrent.TimeUnit, boolean, MessageMerger)}.
+ */
+public interface MessageMerger {
+    /**
+     * Merges the content of incoming into pending. It is called under the
+     * queue lock by the sending thread, so it must be quick and must not use
+     * the handler. incoming is recycled afterwards.
+     */
+    void merge(Message pending, Message incoming);
+}
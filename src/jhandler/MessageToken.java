@@ -0,0 +1,29 @@
+package jhandler;
+
+import jhandler.internal.MessageExt;
+
+/**
+ * Cancellable of a pooled message. It keeps the generation of the message
+ * when sent, so it turns stale once the message is recycled and reused.
+ */
+final class MessageToken implements Cancellable {
+    private final Handler mTarget;
+    private final MessageExt mMessage;
+    private final long mGeneration;
+
+    MessageToken(Handler target, MessageExt msg, long generation) {
+        this.mTarget = target;
+        this.mMessage = msg;
+        this.mGeneration = generation;
+    }
+
+    @Override
+    public boolean cancel() {
+        if (!mMessage.cancel(mGeneration)) {
+            return false;
+        }
+        // a hint for sweeping, the message may have moved to another looper of a pool
+        mTarget.getLooper().mQueue.onCancelled();
+        return true;
+    }
+}
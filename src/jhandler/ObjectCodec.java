@@ -0,0 +1,27 @@
+package jhandler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns <code>Message.obj</code> into bytes and back, for the messages of a
+ * {@link MessageJournal} or a {@link SharedMemoryHandler}. A null obj is
+ * passed as is, without the codec.
+ */
+public interface ObjectCodec {
+    /** Encodes a non-null obj */
+    byte[] encode(Object obj);
+
+    /** Decodes what encode() returned */
+    Object decode(byte[] bytes);
+
+    /**
+     * Decodes what encode() returned from the remaining bytes of the buffer,
+     * which may be a view of shared memory valid only during the call.
+     * Override it to decode in place, it copies the bytes by default.
+     */
+    default Object decode(ByteBuffer bytes) {
+        final byte[] copy = new byte[bytes.remaining()];
+        bytes.get(copy);
+        return decode(copy);
+    }
+}
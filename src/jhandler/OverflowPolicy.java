@@ -0,0 +1,26 @@
+package jhandler;
+
+/**
+ * What a bounded message queue does with a message sent while it is full,
+ * see {@link Looper#setCapacity}. A quit message is never refused.
+ */
+public enum OverflowPolicy {
+    /** Blocks the sender until there is room, or until its timeout, then refuses the message */
+    BLOCK,
+
+    /** Refuses the message, the send returns false */
+    REJECT,
+
+    /** Drops the pending messages which would be dispatched first to make room */
+    DROP_OLDEST,
+
+    /** Drops the message, the send still returns true */
+    DROP_NEWEST,
+
+    /**
+     * Handles the message right away on the sending thread, whatever its
+     * delay, like a dispatch of the looper. The looper thread's own sends are
+     * refused instead.
+     */
+    CALLER_RUNS
+}
@@ -0,0 +1,9 @@
+package jhandler;
+
+/**
+ * Receives the log lines of a looper, see {@link Looper#setMessageLogging(Printer)}.
+ */
+public interface Printer {
+    /** Writes a line of text */
+    void println(String x);
+}
@@ -0,0 +1,366 @@
+package jhandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jhandler.internal.BufferPool;
+import jhandler.internal.TimeUtils;
+
+/**
+ * Connection to a {@link RemoteHandlerServer} of another process or host,
+ * carrying the messages of its {@link RemoteHandler}s over a non-blocking
+ * socket.
+ *
+ * <p> Senders encode their messages into pooled direct buffers, and an I/O
+ * thread writes all the buffers filled meanwhile with one gathering write,
+ * so a burst of messages goes out in a few writes. Messages are pipelined:
+ * there are no per-message acks, they keep their order per connection, and
+ * the server sends them to the queues of its handlers in that order.
+ *
+ * <p> The connection reconnects by itself, backing off up to MAX_BACKOFF.
+ * Messages sent while disconnected are buffered up to MAX_PENDING_BYTES,
+ * sends fail beyond that. The messages already handed to a socket that
+ * breaks may be lost.
+ */
+public final class RemoteConnection implements Closeable {
+    /** The size of the send buffers, and the maximum size of a message */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /** How many bytes of messages may wait for the socket */
+    public static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+    private static final long MIN_BACKOFF = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(2);
+    private static final int MAX_PENDING_BUFFERS = MAX_PENDING_BYTES / BUFFER_SIZE;
+
+    private final InetSocketAddress mAddress;
+    private final ObjectCodec mCodec;
+    private final Selector mSelector;
+    private final Thread mIoThread;
+    private final BufferPool mBuffers = new BufferPool(BUFFER_SIZE, 16);
+
+    // Guards the buffers waiting for the socket, filled by the senders and drained by the I/O thread
+    private final ReentrantLock mLock = new ReentrantLock();
+    private ByteBuffer mFilling; // in write mode, null until a sender needs it
+    private final ArrayDeque<ByteBuffer> mFull = new ArrayDeque<ByteBuffer>(); // in read mode, oldest first
+    private int mPending = 0; // buffers filled and not written yet
+    private boolean mFlushRequested = false;
+    private volatile boolean mClosed = false;
+
+    // I/O thread only
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private boolean mConnected = false;
+    private final ByteBuffer[] mWriting = new ByteBuffer[MAX_PENDING_BUFFERS + 2];
+    private int mWritingCount = 0;
+    private final ByteBuffer mHello = ByteBuffer.allocateDirect(4).putInt(0, RemoteFrame.MAGIC);
+    private final ByteBuffer mDiscard = ByteBuffer.allocateDirect(256);
+    private long mBackoff = MIN_BACKOFF;
+    private long mReconnectAt = TimeUtils.uptimeNanos(); // connects right away
+    private volatile boolean mUp = false;
+
+    private RemoteConnection(InetSocketAddress address, ObjectCodec codec) throws IOException {
+        this.mAddress = address;
+        this.mCodec = codec;
+        this.mSelector = Selector.open();
+        this.mIoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "RemoteConnection " + address);
+        this.mIoThread.setDaemon(true);
+    }
+
+    /**
+     * Connects to a server, in the background: messages may be sent right
+     * away, they wait for the connection.
+     *
+     * @param codec Encodes Message.obj, may be null if obj is always null
+     * @throws UnknownHostException if the address is unresolved
+     */
+    public static RemoteConnection connect(InetSocketAddress address, ObjectCodec codec) throws IOException {
+        if (null == address) {
+            throw new NullPointerException("address");
+        }
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(address.getHostString());
+        }
+        final RemoteConnection connection = new RemoteConnection(address, codec);
+        connection.mIoThread.start();
+        return connection;
+    }
+
+    /** Returns a handler sending to the handler registered with the id on the server */
+    public RemoteHandler getHandler(int id) {
+        return new RemoteHandler(this, id);
+    }
+
+    /** Checks if the socket is connected right now */
+    public boolean isConnected() {
+        return mUp;
+    }
+
+    /** Encodes obj with the codec of the connection */
+    byte[] encode(Object obj) {
+        if (null == obj) {
+            return null;
+        }
+        if (null == mCodec) {
+            throw new IllegalArgumentException("A codec is needed to send Message.obj");
+        }
+        return mCodec.encode(obj);
+    }
+
+    /**
+     * Buffers the frame of a message and lets the I/O thread know.
+     *
+     * @return false if the connection is closed or too many bytes are pending
+     */
+    boolean send(int id, int what, int arg1, int arg2, long delayNanos, byte[] obj) {
+        final int length = RemoteFrame.lengthOf(obj);
+        if (length > BUFFER_SIZE) {
+            throw new IllegalArgumentException("The message is too big: " + length + " bytes");
+        }
+        final boolean wakeup;
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return false;
+            }
+            if (null == mFilling) {
+                if (mPending >= MAX_PENDING_BUFFERS) {
+                    return false;
+                }
+                mFilling = mBuffers.acquire();
+                ++mPending;
+            } else if (mFilling.remaining() < length) {
+                if (mPending >= MAX_PENDING_BUFFERS) {
+                    return false;
+                }
+                mFilling.flip();
+                mFull.add(mFilling);
+                mFilling = mBuffers.acquire();
+                ++mPending;
+            }
+            RemoteFrame.encode(mFilling, id, what, arg1, arg2, delayNanos, obj);
+            wakeup = !mFlushRequested;
+            mFlushRequested = true;
+        } finally {
+            mLock.unlock();
+        }
+        if (wakeup) {
+            mSelector.wakeup(); // once per batch
+        }
+        return true;
+    }
+
+    private void loop() {
+        while (!mClosed) {
+            try {
+                final long now = TimeUtils.uptimeNanos();
+                if (null == mChannel && now - mReconnectAt >= 0) {
+                    open();
+                }
+                if (null == mChannel) {
+                    mSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(mReconnectAt - now)));
+                } else {
+                    mSelector.select();
+                }
+
+                final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isConnectable()) {
+                        finishConnect();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read();
+                    }
+                }
+                if (mConnected) {
+                    flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                // e.g. an address which no longer resolves, the I/O thread backs off and retries
+                disconnect();
+            }
+        }
+        if (mConnected) {
+            try {
+                flush(); // what the socket takes right away
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        disconnect();
+        releaseAll();
+    }
+
+    private void open() throws IOException {
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (mChannel.connect(mAddress)) {
+            mKey = mChannel.register(mSelector, SelectionKey.OP_READ);
+            onConnected();
+        } else {
+            mKey = mChannel.register(mSelector, SelectionKey.OP_CONNECT);
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (mChannel.finishConnect()) {
+            mKey.interestOps(SelectionKey.OP_READ);
+            onConnected();
+        }
+    }
+
+    private void onConnected() {
+        // ahead of the buffers left by the last connection
+        System.arraycopy(mWriting, 0, mWriting, 1, mWritingCount);
+        mHello.clear();
+        mWriting[0] = mHello;
+        ++mWritingCount;
+        mConnected = true;
+        mUp = true;
+        mBackoff = MIN_BACKOFF;
+    }
+
+    // The server never writes, a read only finds out that the socket is closed
+    private void read() throws IOException {
+        mDiscard.clear();
+        if (mChannel.read(mDiscard) < 0) {
+            throw new IOException("Closed by the server");
+        }
+    }
+
+    private void flush() throws IOException {
+        mLock.lock();
+        try {
+            mFlushRequested = false;
+            if (null != mFilling && mFilling.position() > 0) {
+                mFilling.flip();
+                mFull.add(mFilling);
+                mFilling = null;
+            }
+            while (!mFull.isEmpty()) {
+                mWriting[mWritingCount++] = mFull.poll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (0 == mWritingCount) {
+            return;
+        }
+
+        mChannel.write(mWriting, 0, mWritingCount);
+        int written = 0;
+        while (written < mWritingCount && !mWriting[written].hasRemaining()) {
+            ++written;
+        }
+        if (written > 0) {
+            release(written);
+        }
+        // wait for room in the socket when it can't take everything
+        mKey.interestOps(mWritingCount > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /** Releases the first n buffers being written */
+    private void release(int n) {
+        mLock.lock();
+        try {
+            for (int i = 0; i < n; ++i) {
+                if (mWriting[i] != mHello) {
+                    mBuffers.release(mWriting[i]);
+                    --mPending;
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        System.arraycopy(mWriting, n, mWriting, 0, mWritingCount - n);
+        for (int i = mWritingCount - n; i < mWritingCount; ++i) {
+            mWriting[i] = null;
+        }
+        mWritingCount -= n;
+    }
+
+    private void disconnect() {
+        if (null == mChannel) {
+            return;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        mChannel = null;
+        mKey = null;
+        mConnected = false;
+        mUp = false;
+
+        // The rest of a buffer partly written starts in the middle of a frame
+        if (mWritingCount > 0 && mWriting[0].position() > 0) {
+            release(1);
+        }
+        mReconnectAt = TimeUtils.uptimeNanos() + mBackoff;
+        mBackoff = Math.min(MAX_BACKOFF, mBackoff * 2);
+    }
+
+    private void releaseAll() {
+        release(mWritingCount);
+        mLock.lock();
+        try {
+            if (null != mFilling) {
+                mBuffers.release(mFilling);
+                mFilling = null;
+            }
+            mFull.clear();
+            mPending = 0;
+        } finally {
+            mLock.unlock();
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // nothing else to do
+        }
+    }
+
+    /**
+     * Writes what the socket takes right away, then closes the connection.
+     * The messages still buffered are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        } finally {
+            mLock.unlock();
+        }
+        mSelector.wakeup();
+        try {
+            mIoThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the connection", e);
+        }
+    }
+}
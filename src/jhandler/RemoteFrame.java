@@ -0,0 +1,41 @@
+package jhandler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The binary format of the messages of a {@link RemoteConnection}. A
+ * connection starts with MAGIC, then carries frames back to back:
+ *
+ * <pre>
+ * int length of the frame, int handler id, int what, int arg1, int arg2,
+ * long delay in nanoseconds, int obj length (-1 for null), obj
+ * </pre>
+ */
+final class RemoteFrame {
+    static final int MAGIC = 0x4a48524d; // "JHRM"
+    static final int HEADER = 4 + 4 + 4 + 4 + 4 + 8 + 4;
+
+    private RemoteFrame() {
+    }
+
+    /** Returns the length of the frame of a message with the encoded obj */
+    static int lengthOf(byte[] obj) {
+        return HEADER + (null == obj ? 0 : obj.length);
+    }
+
+    /** Appends the frame of a message, the buffer must have room for it */
+    static void encode(ByteBuffer out, int id, int what, int arg1, int arg2, long delayNanos, byte[] obj) {
+        out.putInt(lengthOf(obj));
+        out.putInt(id);
+        out.putInt(what);
+        out.putInt(arg1);
+        out.putInt(arg2);
+        out.putLong(delayNanos);
+        if (null == obj) {
+            out.putInt(-1);
+        } else {
+            out.putInt(obj.length);
+            out.put(obj);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package jhandler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends messages to the handler registered with an id on a
+ * {@link RemoteHandlerServer}, through a {@link RemoteConnection}. The
+ * send methods mirror the ones of Handler. A message sent is encoded right
+ * away and recycled, and the remote handler receives a copy of it.
+ */
+public final class RemoteHandler {
+    private final RemoteConnection mConnection;
+    private final int mId;
+
+    RemoteHandler(RemoteConnection connection, int id) {
+        this.mConnection = connection;
+        this.mId = id;
+    }
+
+    /** Returns the id of the remote handler */
+    public int getId() {
+        return mId;
+    }
+
+    /** Sends empty message to the remote handler */
+    public boolean sendEmptyMessage(int what) {
+        return mConnection.send(mId, what, 0, 0, 0, null);
+    }
+
+    /** Sends empty message to the remote handler which will be handled after the delay */
+    public boolean sendEmptyMessageDelayed(int what, long delay, TimeUnit unit) {
+        return mConnection.send(mId, what, 0, 0, Math.max(0, unit.toNanos(delay)), null);
+    }
+
+    /** Sends message to the remote handler */
+    public boolean sendMessage(Message msg) {
+        return sendMessageDelayed(msg, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends message to the remote handler which will be handled after the delay */
+    public boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return sendMessageDelayed(msg, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends message to the remote handler which will be handled after the
+     * delay, counted from its arrival.
+     *
+     * @return false if the connection is closed or too many messages are waiting for it
+     * @throws IllegalStateException if the message is already queued or has been recycled
+     */
+    public boolean sendMessageDelayed(Message msg, long delay, TimeUnit unit) {
+        if (msg.ext.isInUse()) {
+            throw new IllegalStateException("This message is already in use");
+        }
+        final boolean sent = mConnection.send(mId, msg.what, msg.arg1, msg.arg2, Math.max(0, unit.toNanos(delay)),
+                mConnection.encode(msg.obj));
+        msg.recycle();
+        return sent;
+    }
+}
@@ -0,0 +1,304 @@
+package jhandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import jhandler.internal.BufferPool;
+
+/**
+ * Receives the messages of {@link RemoteConnection}s and sends them to the
+ * local handlers registered by id, in the order of each connection. They go
+ * through the message queues of the handlers like local messages, delayed
+ * from their arrival.
+ *
+ * <p> One selector thread reads all the connections into pooled direct
+ * buffers, and decodes obj from a view of them, see
+ * {@link ObjectCodec#decode(ByteBuffer)}. Messages for an unknown id are
+ * dropped, and a connection breaking the frame format is closed. While a
+ * handler refuses a message, e.g. bounded and full, its connection is not
+ * read, which slows the sender down, and the message is sent again a little
+ * later.
+ */
+public final class RemoteHandlerServer implements Closeable {
+    // How long a connection whose message was refused waits before it is tried again
+    private static final long STALLED_RETRY_MILLIS = 10;
+
+    private final ServerSocketChannel mServer;
+    private final Selector mSelector;
+    private final ObjectCodec mCodec;
+    private final Thread mIoThread;
+    private final BufferPool mBuffers = new BufferPool(RemoteConnection.BUFFER_SIZE, 16);
+    private final ConcurrentHashMap<Integer, Handler> mHandlers = new ConcurrentHashMap<Integer, Handler>();
+    private volatile boolean mClosed = false;
+
+    /** Connections not read while a handler refuses their next message, I/O thread only */
+    private final List<SelectionKey> mStalled = new ArrayList<SelectionKey>();
+
+    /** The read state of a connection, attached to its key */
+    private static final class Peer {
+        final ByteBuffer mBuffer; // in write mode
+        boolean mGreeted = false;
+        boolean mStalled = false;
+
+        Peer(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+    }
+
+    private RemoteHandlerServer(ServerSocketChannel server, Selector selector, ObjectCodec codec) {
+        this.mServer = server;
+        this.mSelector = selector;
+        this.mCodec = codec;
+        this.mIoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "RemoteHandlerServer " + server.socket().getLocalSocketAddress());
+        this.mIoThread.setDaemon(true);
+    }
+
+    /**
+     * Listens on the address, e.g. <code>new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)</code>
+     * for any free port of localhost.
+     *
+     * @param codec Decodes Message.obj, may be null if obj is always null
+     */
+    public static RemoteHandlerServer open(InetSocketAddress address, ObjectCodec codec) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(address);
+            server.configureBlocking(false);
+            final Selector selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            final RemoteHandlerServer remote = new RemoteHandlerServer(server, selector, codec);
+            remote.mIoThread.start();
+            return remote;
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /** Returns the address it listens on */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) mServer.socket().getLocalSocketAddress();
+    }
+
+    /** Registers the handler receiving the messages sent to the id, replacing the previous one */
+    public void register(int id, Handler handler) {
+        if (null == handler) {
+            throw new NullPointerException("handler");
+        }
+        mHandlers.put(id, handler);
+    }
+
+    /** Unregisters the handler of the id, its next messages are dropped */
+    public void unregister(int id) {
+        mHandlers.remove(id);
+    }
+
+    private void loop() {
+        while (!mClosed) {
+            try {
+                if (mStalled.isEmpty()) {
+                    mSelector.select();
+                } else {
+                    mSelector.select(STALLED_RETRY_MILLIS);
+                }
+            } catch (IOException e) {
+                break;
+            }
+            final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // a failing connection, or codec, must not stop the others
+                    if (key.channel() != mServer) {
+                        drop(key);
+                    }
+                }
+            }
+            retryStalled();
+        }
+
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.channel() != mServer) {
+                drop(key);
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // nothing else to do
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = mServer.accept();
+        if (null == channel) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(mSelector, SelectionKey.OP_READ, new Peer(mBuffers.acquire()));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        final Peer peer = (Peer) key.attachment();
+        if (((SocketChannel) key.channel()).read(peer.mBuffer) < 0) {
+            drop(key);
+            return;
+        }
+        consume(key, peer);
+    }
+
+    /** Dispatches the frames read in full, and stops reading the connection while a handler refuses one */
+    private void consume(SelectionKey key, Peer peer) throws IOException {
+        final ByteBuffer in = peer.mBuffer;
+        in.flip();
+        if (!peer.mGreeted && in.remaining() >= 4) {
+            if (in.getInt() != RemoteFrame.MAGIC) {
+                throw new IOException("Not a remote connection");
+            }
+            peer.mGreeted = true;
+        }
+        boolean refused = false;
+        while (peer.mGreeted && in.remaining() >= 4) {
+            final int length = in.getInt(in.position());
+            if (length < RemoteFrame.HEADER || length > in.capacity()) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < length) {
+                break;
+            }
+            if (!dispatch(in, length)) {
+                refused = true;
+                break;
+            }
+        }
+        in.compact();
+
+        if (refused != peer.mStalled) {
+            peer.mStalled = refused;
+            key.interestOps(refused ? 0 : SelectionKey.OP_READ);
+            if (refused) {
+                mStalled.add(key);
+            }
+        }
+    }
+
+    /** Tries the refused messages of the stalled connections again */
+    private void retryStalled() {
+        for (Iterator<SelectionKey> it = mStalled.iterator(); it.hasNext();) {
+            final SelectionKey key = it.next();
+            try {
+                if (key.isValid()) {
+                    consume(key, (Peer) key.attachment());
+                }
+            } catch (IOException | RuntimeException e) {
+                drop(key);
+            }
+            if (!key.isValid() || !((Peer) key.attachment()).mStalled) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends the message of the frame at the position to its handler, and
+     * moves past it.
+     *
+     * @return false if the handler refused it, the position is left at the frame then
+     */
+    private boolean dispatch(ByteBuffer in, int length) throws IOException {
+        final int start = in.position();
+        final int end = start + length;
+        final Handler handler = mHandlers.get(in.getInt(start + 4));
+        if (null == handler) {
+            in.position(end);
+            return true;
+        }
+
+        final int objLength = in.getInt(start + 28);
+        if (objLength >= 0) {
+            if (RemoteFrame.HEADER + objLength != length) {
+                throw new IOException("Bad obj length " + objLength);
+            }
+            if (null == mCodec) {
+                throw new IOException("A codec is needed to receive Message.obj");
+            }
+        }
+        final Message msg = Message.obtain(in.getInt(start + 8), in.getInt(start + 12), in.getInt(start + 16));
+        final long delayNanos = in.getLong(start + 20);
+        if (objLength >= 0) {
+            final int limit = in.limit();
+            in.position(start + RemoteFrame.HEADER).limit(end);
+            try {
+                msg.obj = mCodec.decode(in);
+            } catch (RuntimeException e) {
+                msg.recycle();
+                throw new IOException("Can't decode obj", e);
+            } finally {
+                in.limit(limit);
+            }
+        }
+        if (!handler.sendMessageDelayed(msg, delayNanos, TimeUnit.NANOSECONDS)) {
+            in.position(start); // recycled by the handler, decoded again on the next try
+            return false;
+        }
+        in.position(end);
+        return true;
+    }
+
+    private void drop(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // dropping anyway
+        }
+        final Object peer = key.attachment();
+        if (peer instanceof Peer) {
+            mBuffers.release(((Peer) peer).mBuffer);
+            key.attach(null);
+        }
+    }
+
+    /** Stops listening and closes the connections, their messages not read yet are lost */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mSelector.wakeup();
+        try {
+            mIoThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the server", e);
+        }
+        mServer.close();
+    }
+}
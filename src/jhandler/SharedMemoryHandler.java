@@ -0,0 +1,125 @@
+package jhandler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jhandler.internal.SharedRing;
+
+/**
+ * Sends messages to a handler of another process on the same host, through a
+ * ring in a memory-mapped file. The other process receives them with a
+ * {@link SharedMemoryReceiver} on the same file.
+ *
+ * <p> A message is sent as its what, arg1, arg2 and obj encoded by the codec.
+ * The threads of this process may send concurrently, but only one process
+ * may send to a file at a time. When the ring is full, a sender waits with
+ * the wait strategy for the receiver to catch up, until the send timeout.
+ *
+ * <p> The ring survives a crash of either side: a new sender appends after
+ * the last message published in full, and a new receiver resumes after the
+ * last message it handed to its handler.
+ */
+public final class SharedMemoryHandler implements Closeable {
+    /** The size of the ring of a new file by default */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final ObjectCodec mCodec;
+
+    // Guards the ring, which has a single writer
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final SharedRing mRing;
+    private volatile WaitStrategy mWaitStrategy = WaitStrategy.BLOCKING;
+    private volatile long mSendTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    private boolean mClosed = false;
+
+    private SharedMemoryHandler(SharedRing ring, ObjectCodec codec) {
+        this.mRing = ring;
+        this.mCodec = codec;
+    }
+
+    /** Same as open(file, DEFAULT_CAPACITY, codec) */
+    public static SharedMemoryHandler open(File file, ObjectCodec codec) throws IOException {
+        return open(file, DEFAULT_CAPACITY, codec);
+    }
+
+    /**
+     * Opens or creates the ring file as its sender.
+     *
+     * @param capacity The size of the ring in bytes if the file is new, a multiple of 8
+     * @param codec Encodes Message.obj, may be null if obj is always null
+     * @throws IOException if the file can't be mapped, isn't a ring, or another process sends to it
+     */
+    public static SharedMemoryHandler open(File file, int capacity, ObjectCodec codec) throws IOException {
+        return new SharedMemoryHandler(SharedRing.openWriter(file, capacity), codec);
+    }
+
+    /** Sets how a sender waits for room in a full ring, and for how long at most */
+    public void setWaitStrategy(WaitStrategy strategy, long sendTimeout, TimeUnit unit) {
+        if (null == strategy) {
+            throw new NullPointerException("strategy");
+        }
+        mWaitStrategy = strategy;
+        mSendTimeoutNanos = unit.toNanos(sendTimeout);
+    }
+
+    /**
+     * Sends the message, and recycles it.
+     *
+     * @return false if the ring stayed full until the send timeout, the message isn't sent then
+     * @throws IllegalStateException if the message is already queued, or the handler is closed
+     */
+    public boolean sendMessage(Message msg) {
+        if (msg.ext.isInUse()) {
+            throw new IllegalStateException("This message is already in use");
+        }
+        byte[] obj = null;
+        if (null != msg.obj) {
+            if (null == mCodec) {
+                throw new IllegalArgumentException("A codec is needed to send Message.obj");
+            }
+            obj = mCodec.encode(msg.obj);
+        }
+        final boolean sent = send(msg.what, msg.arg1, msg.arg2, obj);
+        msg.recycle();
+        return sent;
+    }
+
+    /** Same as sendMessage(), without a Message */
+    public boolean sendMessage(int what, int arg1, int arg2) {
+        return send(what, arg1, arg2, null);
+    }
+
+    /** Same as sendMessage(), without a Message */
+    public boolean sendEmptyMessage(int what) {
+        return send(what, 0, 0, null);
+    }
+
+    private boolean send(int what, int arg1, int arg2, byte[] obj) {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                throw new IllegalStateException("The handler is closed");
+            }
+            return mRing.write(what, arg1, arg2, obj, mWaitStrategy.mode, mSendTimeoutNanos);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Closes the file, the messages not received yet stay in it */
+    @Override
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (!mClosed) {
+                mClosed = true;
+                mRing.close();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
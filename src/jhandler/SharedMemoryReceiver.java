@@ -0,0 +1,123 @@
+package jhandler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import jhandler.internal.SharedRing;
+import jhandler.internal.TimeUtils;
+
+/**
+ * Receives the messages a {@link SharedMemoryHandler} of another process
+ * sends through a ring file, and sends them to a local handler in order.
+ *
+ * <p> A poller thread reads the ring in place: what, arg1 and arg2 come
+ * straight from the mapping, and obj is decoded from a view of it, see
+ * {@link ObjectCodec#decode(java.nio.ByteBuffer)}. The sender can't wake the
+ * poller up from another process, so while the ring is empty the poller
+ * waits with the wait strategy, a blocking one parking for a short poll
+ * interval between reads.
+ *
+ * <p> A message read is acknowledged in the file once sent to the handler, so
+ * a receiver restarting after a crash may receive the last messages again.
+ * While the queue of the handler refuses them, e.g. bounded and full, or quit,
+ * they stay in the ring and the poller tries again after waiting.
+ */
+public final class SharedMemoryReceiver implements Closeable {
+    private static final int BATCH = 64;
+
+    private final SharedRing mRing;
+    private final Handler mTarget;
+    private final ObjectCodec mCodec;
+    private final WaitStrategy mWaitStrategy;
+    private final Thread mPoller;
+    private volatile boolean mClosed = false;
+    private boolean mRefused; // poller only, the handler refused a message of the last read
+
+    private final SharedRing.RecordReader mReader = new SharedRing.RecordReader() {
+        @Override
+        public boolean onRecord(int what, int arg1, int arg2, ByteBuffer obj) {
+            final Message msg = Message.obtain(what, arg1, arg2);
+            if (null != obj) {
+                msg.obj = mCodec.decode(obj);
+            }
+            if (!mTarget.sendMessage(msg)) {
+                mRefused = true;
+                return false;
+            }
+            return true;
+        }
+    };
+
+    private SharedMemoryReceiver(SharedRing ring, Handler target, ObjectCodec codec, WaitStrategy strategy) {
+        this.mRing = ring;
+        this.mTarget = target;
+        this.mCodec = codec;
+        this.mWaitStrategy = strategy;
+        this.mPoller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, "SharedMemoryReceiver");
+        this.mPoller.setDaemon(true);
+    }
+
+    /** Same as start(file, SharedMemoryHandler.DEFAULT_CAPACITY, target, codec, WaitStrategy.BLOCKING) */
+    public static SharedMemoryReceiver start(File file, Handler target, ObjectCodec codec) throws IOException {
+        return start(file, SharedMemoryHandler.DEFAULT_CAPACITY, target, codec, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * Opens or creates the ring file as its receiver, and starts polling it.
+     *
+     * @param capacity The size of the ring in bytes if the file is new, a multiple of 8
+     * @param codec Decodes Message.obj, may be null if obj is always null
+     * @param strategy How the poller waits while the ring is empty
+     * @throws IOException if the file can't be mapped, isn't a ring, or another receiver has it
+     */
+    public static SharedMemoryReceiver start(File file, int capacity, Handler target, ObjectCodec codec,
+            WaitStrategy strategy) throws IOException {
+        if (null == target) {
+            throw new NullPointerException("target");
+        }
+        if (null == strategy) {
+            throw new NullPointerException("strategy");
+        }
+        final SharedMemoryReceiver receiver = new SharedMemoryReceiver(SharedRing.openReader(file, capacity), target,
+                codec, strategy);
+        receiver.mPoller.start();
+        return receiver;
+    }
+
+    private void poll() {
+        long idleSince = TimeUtils.uptimeNanos();
+        while (!mClosed) {
+            mRefused = false;
+            final int n = mRing.read(mReader, BATCH);
+            if (n > 0) {
+                idleSince = TimeUtils.uptimeNanos();
+            }
+            if (0 == n || mRefused) { // empty, or the handler needs time to make room
+                SharedRing.idle(mWaitStrategy.mode, TimeUtils.uptimeNanos() - idleSince);
+            }
+        }
+    }
+
+    /** Stops polling and closes the file, the messages not received yet stay in it */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mPoller.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the poller", e);
+        }
+        mRing.close();
+    }
+}
@@ -0,0 +1,128 @@
+package jhandler;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+import jhandler.internal.MessageExt;
+import jhandler.internal.MessageQueue;
+import jhandler.internal.TimeUtils;
+
+/**
+ * A looper on a virtual clock, driven by the thread which prepared it instead
+ * of Looper.loop(). Time only moves in advanceBy(), which jumps from one due
+ * message to the next, so hours of timeouts, retries and periodic tasks run
+ * in milliseconds, and in the same order on every run.
+ *
+ * <p> The handlers of the thread are created as usual, with
+ * <code>new Handler()</code> or <code>getLooper()</code>. Their messages are
+ * dispatched on the calling thread of runUntilIdle() and advanceBy(). Other
+ * threads may send messages too, the simulation is only deterministic if
+ * they don't.
+ */
+public final class SimulatedLooper implements Closeable {
+    private final VirtualClock mClock;
+    private final Looper mLooper;
+    private final MessageQueue mQueue;
+    private boolean mQuit = false;
+
+    /** A clock moving only when told to */
+    private static final class VirtualClock implements Clock {
+        volatile long mNow;
+
+        VirtualClock(long now) {
+            mNow = now;
+        }
+
+        @Override
+        public long uptimeNanos() {
+            return mNow;
+        }
+    }
+
+    private SimulatedLooper(VirtualClock clock) {
+        this.mClock = clock;
+        this.mLooper = Looper.myLooper();
+        this.mQueue = mLooper.mQueue;
+    }
+
+    /** Same as prepare(TimerEngine.HEAP) */
+    public static SimulatedLooper prepare() {
+        return prepare(TimerEngine.HEAP);
+    }
+
+    /**
+     * Prepares a looper on a virtual clock for the current thread, starting
+     * at the uptime 0. Close it to prepare another looper on the thread.
+     */
+    public static SimulatedLooper prepare(TimerEngine engine) {
+        final VirtualClock clock = new VirtualClock(0);
+        Looper.prepare(engine, clock);
+        return new SimulatedLooper(clock);
+    }
+
+    /** Returns the looper, which is also Looper.myLooper() of the thread */
+    public Looper getLooper() {
+        return mLooper;
+    }
+
+    /** Returns the virtual uptime in nanoseconds */
+    public long uptimeNanos() {
+        return mClock.mNow;
+    }
+
+    /** Checks if the looper has received its quit message */
+    public boolean hasQuit() {
+        return mQuit;
+    }
+
+    /**
+     * Dispatches the messages due at the current virtual time, including the
+     * ones they send without delay, without moving the time.
+     *
+     * @return The number of messages dispatched
+     */
+    public int runUntilIdle() {
+        int count = 0;
+        MessageExt msg;
+        while (!mQuit && null != (msg = mQueue.poll())) {
+            if (!mLooper.dispatch(msg)) {
+                mQuit = true;
+                break;
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Moves the virtual time forward by the delay, stopping at each message
+     * due meanwhile to dispatch it at its scheduled time.
+     *
+     * @return The number of messages dispatched
+     */
+    public int advanceBy(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay must not be negative");
+        }
+        final long until = TimeUtils.add(mClock.mNow, unit.toNanos(delay));
+        int count = runUntilIdle();
+        long next;
+        while (!mQuit && (next = mQueue.nextWhen()) <= until) {
+            mClock.mNow = Math.max(mClock.mNow, next);
+            count += runUntilIdle();
+        }
+        mClock.mNow = Math.max(mClock.mNow, until);
+        return count;
+    }
+
+    /**
+     * Quits the looper and unbinds it from the thread. The messages still
+     * pending are never dispatched.
+     */
+    @Override
+    public void close() {
+        mLooper.quit();
+        mQuit = true;
+        Looper.release(mLooper);
+    }
+}
@@ -0,0 +1,18 @@
+package jhandler;
+
+/**
+ * Notified of the dispatches slower than a threshold, see
+ * {@link Looper#setSlowDispatchListener(long, java.util.concurrent.TimeUnit, SlowDispatchListener)}.
+ */
+public interface SlowDispatchListener {
+    /**
+     * Called on the looper thread right after the slow dispatch. The message
+     * is recycled once this returns, so it must not be kept.
+     *
+     * @param target The handler of the message
+     * @param msg The message, of a posted Runnable too
+     * @param callback The posted Runnable, null for a message
+     * @param dispatchNanos How long the dispatch took
+     */
+    void onSlowDispatch(Handler target, Message msg, Runnable callback, long dispatchNanos);
+}
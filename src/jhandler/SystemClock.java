@@ -0,0 +1,23 @@
+package jhandler;
+
+import jhandler.internal.TimeUtils;
+
+/**
+ * The clock used to schedule messages. It is monotonic and counts from an
+ * arbitrary origin, so its values are only meaningful when compared to each
+ * other, e.g. as deadlines for <code>Handler.sendMessageAtTime</code>.
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    /** Returns the uptime in milliseconds */
+    public static long uptimeMillis() {
+        return TimeUtils.uptime();
+    }
+
+    /** Returns the uptime in nanoseconds, based on <code>System.nanoTime()</code> */
+    public static long uptimeNanos() {
+        return TimeUtils.uptimeNanos();
+    }
+}
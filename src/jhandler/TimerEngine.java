@@ -0,0 +1,41 @@
+package jhandler;
+
+import java.util.concurrent.TimeUnit;
+
+import jhandler.internal.HeapTimerQueue;
+import jhandler.internal.TimerQueue;
+import jhandler.internal.TimingWheelTimerQueue;
+
+/**
+ * The structure a looper keeps its delayed messages in, one per priority
+ * lane, see {@link Looper#prepare(TimerEngine)}.
+ */
+public final class TimerEngine {
+    /** A 4-ary heap, O(log n) per message. The default. */
+    public static final TimerEngine HEAP = new TimerEngine(HeapTimerQueue.FACTORY, "HEAP");
+
+    /**
+     * A hierarchical timing wheel ticking every millisecond, O(1) per message,
+     * for huge numbers of short timeouts.
+     */
+    public static final TimerEngine TIMING_WHEEL = timingWheel(1, TimeUnit.MILLISECONDS);
+
+    final TimerQueue.Factory factory;
+    private final String mName;
+
+    private TimerEngine(TimerQueue.Factory factory, String name) {
+        this.factory = factory;
+        this.mName = name;
+    }
+
+    /** A hierarchical timing wheel ticking every tick, coarser ticks cascade less often */
+    public static TimerEngine timingWheel(long tick, TimeUnit unit) {
+        final long tickNanos = unit.toNanos(tick);
+        return new TimerEngine(TimingWheelTimerQueue.factory(tickNanos), "TIMING_WHEEL(" + tickNanos + "ns)");
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,43 @@
+package jhandler;
+
+import java.util.concurrent.TimeUnit;
+
+import jhandler.internal.WaitMode;
+
+/**
+ * How an idle looper waits for its next message, like the wait strategies of
+ * the Disruptor. Spinning cuts the wake-up latency at the cost of a busy core,
+ * and a producer only pays for an unpark when the looper is actually parked.
+ */
+public final class WaitStrategy {
+    /** Parks the looper until a producer unparks it or the next deadline. The default. */
+    public static final WaitStrategy BLOCKING = new WaitStrategy(WaitMode.BLOCKING);
+
+    /** Spins without ever giving the core up, for the lowest latency */
+    public static final WaitStrategy BUSY_SPIN = new WaitStrategy(WaitMode.BUSY_SPIN);
+
+    /** Spins calling Thread.yield(), letting other threads run on a busy machine */
+    public static final WaitStrategy YIELDING = new WaitStrategy(WaitMode.YIELDING);
+
+    final WaitMode mode;
+
+    private WaitStrategy(WaitMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Spins for up to the budget after the queue goes idle, then parks. Bursts
+     * arriving within the budget never pay for a park and unpark.
+     */
+    public static WaitStrategy spinThenPark(long budget, TimeUnit unit) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget must not be negative");
+        }
+        return 0 == budget ? BLOCKING : new WaitStrategy(WaitMode.spinThenPark(unit.toNanos(budget)));
+    }
+
+    @Override
+    public String toString() {
+        return mode.toString();
+    }
+}
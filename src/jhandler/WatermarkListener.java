@@ -0,0 +1,14 @@
+package jhandler;
+
+/**
+ * Notified when the number of pending messages of a queue crosses its high
+ * watermark upwards, then its low watermark downwards, e.g. to slow an
+ * upstream stage down before the queue is full, see {@link Looper#setWatermarks}.
+ */
+public interface WatermarkListener {
+    /** Called on the sending thread, the size is the number of pending messages */
+    void onHighWatermark(int size);
+
+    /** Called on the looper thread or a thread removing messages */
+    void onLowWatermark(int size);
+}
@@ -0,0 +1,57 @@
+package jhandler.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of direct buffers of one size, so the I/O of a steady stream
+ * of messages allocates no buffers and copies nothing through the heap.
+ */
+public final class BufferPool {
+    private final int mBufferSize;
+    private final int mMaxPoolSize;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final ArrayDeque<ByteBuffer> mPool = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * @param bufferSize The capacity of the buffers
+     * @param maxPoolSize How many released buffers are kept at most
+     */
+    public BufferPool(int bufferSize, int maxPoolSize) {
+        this.mBufferSize = bufferSize;
+        this.mMaxPoolSize = maxPoolSize;
+    }
+
+    /** Returns the capacity of the buffers */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /** Takes a cleared buffer from the pool, or allocates one if it is empty */
+    public ByteBuffer acquire() {
+        mLock.lock();
+        try {
+            final ByteBuffer buffer = mPool.poll();
+            if (null != buffer) {
+                return buffer;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return ByteBuffer.allocateDirect(mBufferSize);
+    }
+
+    /** Clears the buffer and returns it to the pool, the caller must not use it anymore */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        mLock.lock();
+        try {
+            if (mPool.size() < mMaxPoolSize) {
+                mPool.push(buffer);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
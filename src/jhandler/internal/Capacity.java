@@ -0,0 +1,161 @@
+package jhandler.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jhandler.OverflowPolicy;
+import jhandler.WatermarkListener;
+
+/**
+ * Occupancy of a bounded or watermarked MessageQueue. The pending messages
+ * are counted with an atomic counter, so a sender checks the room left
+ * without taking the queue lock.
+ */
+final class Capacity {
+    /** admit(): the messages may be queued */
+    static final int ADMITTED = 0;
+
+    /** admit(): the messages are refused */
+    static final int REJECTED = 1;
+
+    /** admit(): the messages were dropped, told to the drop hook, and recycled */
+    static final int DROPPED = 2;
+
+    /** admit(): the messages were handled on the calling thread */
+    static final int RAN = 3;
+
+    private final MessageQueue mQueue;
+    final int capacity; // 0 for unbounded
+    final OverflowPolicy policy;
+    final long blockNanos;
+    final MessageQueue.Dispatcher dispatcher;
+    final int high;
+    final int low;
+    final WatermarkListener listener;
+
+    private final AtomicInteger mCount;
+    private final AtomicBoolean mAboveHigh = new AtomicBoolean(false);
+
+    // Senders blocked by OverflowPolicy.BLOCK wait for mNotFull
+    private final ReentrantLock mSpaceLock = new ReentrantLock();
+    private final Condition mNotFull = mSpaceLock.newCondition();
+    private final AtomicInteger mBlocked = new AtomicInteger(0);
+
+    Capacity(MessageQueue queue, int capacity, OverflowPolicy policy, long blockNanos,
+            MessageQueue.Dispatcher dispatcher, int high, int low, WatermarkListener listener, int count) {
+        this.mQueue = queue;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockNanos = blockNanos;
+        this.dispatcher = dispatcher;
+        this.high = high;
+        this.low = low;
+        this.listener = listener;
+        this.mCount = new AtomicInteger(count);
+    }
+
+    int size() {
+        return mCount.get();
+    }
+
+    /** Reserves room for n messages, applying the overflow policy if there is none */
+    int admit(MessageExt msg, MessageExt[] batch, int n) {
+        long deadline = 0;
+        while (true) {
+            final int count = mCount.get();
+            if (0 == capacity || count + n <= capacity) {
+                if (mCount.compareAndSet(count, count + n)) {
+                    raised(count + n);
+                    return ADMITTED;
+                }
+                continue;
+            }
+
+            switch (policy) {
+            case BLOCK:
+                if (0 == deadline) {
+                    deadline = TimeUtils.add(TimeUtils.uptimeNanos(), blockNanos);
+                }
+                if (n <= capacity && awaitRoom(n, deadline)) {
+                    continue;
+                }
+                return REJECTED;
+            case DROP_OLDEST:
+                if (n <= capacity && mQueue.dropOldest(count + n - capacity) > 0) {
+                    continue;
+                }
+                return REJECTED;
+            case DROP_NEWEST:
+                for (int i = 0; i < n; ++i) {
+                    mQueue.drop(null == batch ? msg : batch[i]);
+                }
+                return DROPPED;
+            case CALLER_RUNS:
+                if (mQueue.isLooperThread()) {
+                    return REJECTED; // running it inline would reenter the dispatch of the looper
+                }
+                for (int i = 0; i < n; ++i) {
+                    mQueue.runInline(null == batch ? msg : batch[i], dispatcher);
+                }
+                return RAN;
+            default:
+                return REJECTED;
+            }
+        }
+    }
+
+    /** Takes the room of n messages whatever the capacity, for messages which must not be refused */
+    void reserve(int n) {
+        raised(mCount.addAndGet(n));
+    }
+
+    /** Gives the room of n messages back, which left the queue */
+    void release(int n) {
+        final int count = mCount.addAndGet(-n);
+        if (count <= low && mAboveHigh.get() && mAboveHigh.compareAndSet(true, false)) {
+            listener.onLowWatermark(count);
+        }
+        // pairs with the increment of mBlocked before the blocked sender checks mCount
+        if (mBlocked.get() > 0) {
+            mSpaceLock.lock();
+            try {
+                mNotFull.signalAll();
+            } finally {
+                mSpaceLock.unlock();
+            }
+        }
+    }
+
+    private void raised(int count) {
+        if (null != listener && count >= high && !mAboveHigh.get() && mAboveHigh.compareAndSet(false, true)) {
+            listener.onHighWatermark(count);
+        }
+    }
+
+    /** Waits until n messages fit, returns false on timeout or interrupt, or if called by the looper */
+    private boolean awaitRoom(int n, long deadline) {
+        if (mQueue.isLooperThread()) {
+            return false; // nobody else would make room
+        }
+        mSpaceLock.lock();
+        mBlocked.incrementAndGet();
+        try {
+            while (mCount.get() + n > capacity) {
+                final long remaining = deadline - TimeUtils.uptimeNanos();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mNotFull.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            mBlocked.decrementAndGet();
+            mSpaceLock.unlock();
+        }
+    }
+}
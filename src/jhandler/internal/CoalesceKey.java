@@ -0,0 +1,29 @@
+package jhandler.internal;
+
+import jhandler.Handler;
+
+/** (target, key) of a coalesced message in MessageQueue */
+final class CoalesceKey {
+    private Handler mTarget;
+    private Object mKey;
+
+    CoalesceKey set(Handler target, Object key) {
+        mTarget = target;
+        mKey = key;
+        return this;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(mTarget) * 31 + mKey.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CoalesceKey)) {
+            return false;
+        }
+        final CoalesceKey other = (CoalesceKey) o;
+        return mTarget == other.mTarget && mKey.equals(other.mKey);
+    }
+}
@@ -0,0 +1,47 @@
+package jhandler.internal;
+
+/**
+ * Traces the enqueues, dispatches and waits of all the message queues, e.g.
+ * as JDK Flight Recorder events with the <code>jhandler-jfr</code> module.
+ * A tracer is only installed while something records the events, so the
+ * queues pay a volatile read per event the rest of the time.
+ */
+public abstract class EventTracer {
+    private static volatile EventTracer sInstalled;
+
+    /** Returns the tracer in use, null while nothing is traced */
+    public static EventTracer installed() {
+        return sInstalled;
+    }
+
+    /** Starts tracing with the tracer, or stops with null */
+    public static void install(EventTracer tracer) {
+        sInstalled = tracer;
+    }
+
+    /**
+     * Called on the sender right before messages are queued, so they are
+     * still untouched by the looper.
+     *
+     * @param msg The message, or the first one of a batch
+     * @param count The number of messages of the batch
+     */
+    public abstract void onEnqueue(MessageQueue queue, MessageExt msg, int count);
+
+    /** Called on the looper thread before a dispatch, returns what to pass to endDispatch() */
+    public abstract Object beginDispatch(MessageQueue queue, MessageExt msg);
+
+    /** Called on the looper thread after the dispatch, before the message is recycled */
+    public abstract void endDispatch(Object event, MessageQueue queue, MessageExt msg);
+
+    /**
+     * Called on the looper thread before it waits for messages, returns what
+     * to pass to endWait().
+     *
+     * @param deadline The uptime in nanoseconds it waits for at most, Long.MAX_VALUE for no timeout
+     */
+    public abstract Object beginWait(MessageQueue queue, long deadline);
+
+    /** Called on the looper thread after it waited */
+    public abstract void endWait(Object event, MessageQueue queue);
+}
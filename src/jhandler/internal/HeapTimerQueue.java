@@ -0,0 +1,136 @@
+package jhandler.internal;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * 4-ary min heap keyed on <code>MessageExt.when</code>, ties are broken by the
+ * insertion order.
+ *
+ * <p> The time complexity of add, remove and removeFirst is O(log n), peekFirst
+ * is O(1).
+ * A 4-ary heap is shallower than a binary one and keeps the children of a node
+ * in the same cache line.
+ */
+public class HeapTimerQueue implements TimerQueue {
+    private static final int ARITY = 4;
+
+    /** Creates heaps. */
+    public static final TimerQueue.Factory FACTORY = new TimerQueue.Factory() {
+        @Override
+        public TimerQueue create() {
+            return new HeapTimerQueue();
+        }
+    };
+    private static final int INITIAL_CAPACITY = 16;
+
+    private MessageExt[] mHeap = new MessageExt[INITIAL_CAPACITY];
+    private int mSize = 0;
+    private long mSequence = 0;
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public void add(MessageExt msg) {
+        msg.seq = mSequence++;
+        offer(msg);
+    }
+
+    @Override
+    public MessageExt peekFirst() {
+        return mSize == 0 ? null : mHeap[0];
+    }
+
+    @Override
+    public MessageExt removeFirst() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return removeAt(0);
+    }
+
+    @Override
+    public boolean remove(MessageExt msg) {
+        final int i = msg.index;
+        if (i < 0 || i >= mSize || mHeap[i] != msg) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    /** Adds a message keeping its sequence number, used by composite queues. */
+    void offer(MessageExt msg) {
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mSize * 2);
+        }
+        siftUp(mSize++, msg);
+    }
+
+    private MessageExt removeAt(int i) {
+        final MessageExt removed = mHeap[i];
+        final MessageExt last = mHeap[--mSize];
+        mHeap[mSize] = null;
+        if (i != mSize) {
+            siftDown(i, last);
+            if (mHeap[i] == last) {
+                siftUp(i, last);
+            }
+        }
+        removed.index = -1;
+        return removed;
+    }
+
+    private void siftUp(int i, MessageExt msg) {
+        while (i > 0) {
+            final int parent = (i - 1) / ARITY;
+            final MessageExt p = mHeap[parent];
+            if (!less(msg, p)) {
+                break;
+            }
+            place(i, p);
+            i = parent;
+        }
+        place(i, msg);
+    }
+
+    private void siftDown(int i, MessageExt msg) {
+        while (true) {
+            final int first = i * ARITY + 1;
+            if (first >= mSize) {
+                break;
+            }
+
+            int min = first;
+            final int end = Math.min(first + ARITY, mSize);
+            for (int c = first + 1; c < end; ++c) {
+                if (less(mHeap[c], mHeap[min])) {
+                    min = c;
+                }
+            }
+
+            if (!less(mHeap[min], msg)) {
+                break;
+            }
+            place(i, mHeap[min]);
+            i = min;
+        }
+        place(i, msg);
+    }
+
+    private void place(int i, MessageExt msg) {
+        mHeap[i] = msg;
+        msg.index = i;
+    }
+
+    /** Orders by "when", then by insertion order. Never subtracts, so it can't overflow. */
+    static boolean less(MessageExt a, MessageExt b) {
+        if (a.when != b.when) {
+            return a.when < b.when;
+        }
+        return a.seq < b.seq;
+    }
+}
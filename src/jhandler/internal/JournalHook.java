@@ -0,0 +1,13 @@
+package jhandler.internal;
+
+/**
+ * Told when a journaled message leaves the queue for good, dispatched or
+ * removed, see <code>MessageExt.journal</code>.
+ */
+public interface JournalHook {
+    /**
+     * Called when the message with the journal id is recycled, maybe under
+     * the lock of a queue, so it must neither block nor throw.
+     */
+    void onDone(long id);
+}
@@ -1,24 +1,158 @@
 package jhandler.internal;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 import jhandler.Handler;
 import jhandler.Message;
+import jhandler.MessageMerger;
 
 /**
  * This class wraps the Message or Runnable object and adds related information to it.
- * One and only one of <code>message</code> and <code>callback</code> must be present.
+ * It is also the node linking the message into the queue structures, so queueing
+ * a message allocates nothing.
+ *
+ * <p> Every Message owns one MessageExt for its whole life. A posted Runnable
+ * borrows a pooled Message and sets <code>callback</code>.
  */
 public final class MessageExt {
+    /** ringKind: a Message or a Runnable */
+    public static final byte RING_NONE = 0;
+
+    /** ringKind: an integer-only message of the ring, with what, arg1 and arg2 */
+    public static final byte RING_INTS = 1;
+
+    /** ringKind: an integer-only message of the ring, with what and ringPayload */
+    public static final byte RING_LONG = 2;
+
+    /** Set while the message is queued, dispatching or sitting in the pool */
+    static final int FLAG_IN_USE = 1;
+
+    /** Set on messages recycled in debug mode, they are never reused */
+    static final int FLAG_RECYCLED = 2;
+
+    /** batchState: waiting in the in-flight batch of MessageQueue */
+    static final int BATCHED = 1;
+
+    /** batchState: taken out of the batch by the looper */
+    static final int TAKEN = 2;
+
+    /** batchState: removed from the batch before the looper took it */
+    static final int REMOVED = 3;
+
+    /** batchState: dropped from the batch by OverflowPolicy.DROP_OLDEST before the looper took it */
+    static final int DROPPED = 4;
+
+    static final AtomicIntegerFieldUpdater<MessageExt> BATCH_STATE =
+            AtomicIntegerFieldUpdater.newUpdater(MessageExt.class, "batchState");
+
+    // cancelWord: the low bits are the state, the others the generation
+    private static final long CANCELLED = 1;
+    private static final long CLAIMED = 2;
+    private static final long STATE_MASK = 3;
+
+    private static final AtomicLongFieldUpdater<MessageExt> CANCEL_WORD =
+            AtomicLongFieldUpdater.newUpdater(MessageExt.class, "cancelWord");
+
     /** The original message object passed in from public interfaces of Handler. */
     public final Message message;
 
     /** The original callback object passed in from public interfaces of Handler. */
-    public final Runnable callback;
+    public Runnable callback;
 
     /** The target handler this message is sending to. */
-    public final Handler target;
+    public Handler target;
 
     /** When should this message / callback be handled. */
-    public final long when;
+    public long when;
+
+    /** The priority lane, one of the Message.PRIORITY_* constants. */
+    public int priority = Message.PRIORITY_NORMAL;
+
+    /** The uptime after which the message is dropped instead of dispatched, Long.MAX_VALUE for none. */
+    public long deadline = Long.MAX_VALUE;
+
+    /** The timer slack asked for in nanoseconds, 0 for a precise message, -1 for the slack of the looper. */
+    public long timerSlack = -1;
+
+    /**
+     * While queued, "when" is the latest time to dispatch the message, and it
+     * may go this much earlier, see MessageQueue.setTimerSlack(). 0 otherwise.
+     */
+    public long slack;
+
+    /**
+     * The kind of an integer-only message taken out of the ring of the queue,
+     * RING_NONE for other messages. Such a node is never pooled.
+     */
+    public byte ringKind = RING_NONE;
+
+    /** The payload of a RING_LONG message. */
+    public long ringPayload;
+
+    // FLAG_* bits
+    int flags;
+
+    // Where the message was recycled, only kept in debug mode.
+    Throwable recycleSite;
+
+    // Insertion order, used to keep messages with the same "when" in FIFO order.
+    long seq;
+
+    // Position in HeapTimerQueue, -1 if not in a heap.
+    int index = -1;
+
+    // Links of the list currently holding this message (a MessageList, a
+    // bucket of TimingWheelTimerQueue or the pool), and the bucket, -1 if not
+    // in a bucket.
+    MessageExt prev;
+    MessageExt next;
+    int bucket = -1;
+
+    // The MessageList holding this message, null if in none.
+    MessageList list;
+
+    // Chain links in MessageIndex.
+    int idxHash;
+    MessageExt idxPrev;
+    MessageExt idxNext;
+    boolean indexed;
+
+    // Link in MpscLane, written by producer threads.
+    volatile MessageExt laneNext;
+
+    // State in the in-flight batch, claimed by CAS between the looper and removers.
+    volatile int batchState;
+
+    // Coalescing key, whether a merge moves the deadline, and how it merges,
+    // see setCoalescing(). The key is null for other messages.
+    Object coalesceKey;
+    boolean coalesceReschedule;
+    MessageMerger merger;
+
+    // Key in the coalescing map of the queue, null if not in one.
+    CoalesceKey coalesceEntry;
+
+    /**
+     * Set by the handler while dispatching to have the message queued again
+     * at its new "when" instead of recycled, see MessageQueue.finish().
+     */
+    public boolean requeue;
+
+    /** Whether the queue dispatches the message however late it is, see MessageQueue.setMaxLag(). */
+    public boolean neverShed;
+
+    /** The journal of a durable message and its id there, null for other messages. */
+    public JournalHook journal;
+    public long journalId;
+
+    // Whether a token may cancel this message, the looper claims it then
+    // before dispatch.
+    boolean cancellable;
+
+    // Generation << 2 | CANCELLED / CLAIMED. The generation is bumped on
+    // recycle, so a stale token can't cancel the next use of this message.
+    volatile long cancelWord;
 
     /** Constructor for message object. */
     public MessageExt(Handler target, Message message, long when) {
@@ -35,4 +169,106 @@ public final class MessageExt {
         this.callback = callback;
         this.when = when;
     }
+
+    /**
+     * Marks the message in use before it is queued.
+     *
+     * @throws IllegalStateException if the message is queued already, or has
+     *             been recycled
+     */
+    public void prepare(Handler target, Runnable callback, long when) {
+        if (0 != (flags & FLAG_RECYCLED)) {
+            throw new IllegalStateException("Message used after recycle", recycleSite);
+        }
+        if (0 != (flags & FLAG_IN_USE)) {
+            throw new IllegalStateException("This message is already in use");
+        }
+        this.flags = FLAG_IN_USE;
+        this.target = target;
+        this.callback = callback;
+        this.when = when;
+    }
+
+    /**
+     * Marks a prepared message to be merged into a pending message of the
+     * same target with an equal key when enqueued, instead of being queued.
+     *
+     * @param key The coalescing key, compared with equals()
+     * @param reschedule Whether a merge moves the pending message to the "when" of this one
+     * @param merger How to merge, null to replace the content of the pending message
+     */
+    public void setCoalescing(Object key, boolean reschedule, MessageMerger merger) {
+        this.coalesceKey = key;
+        this.coalesceReschedule = reschedule;
+        this.merger = merger;
+    }
+
+    /** Returns the coalescing key, null if the message is not coalesced */
+    public Object getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    /**
+     * Makes a prepared message cancellable by a token, and returns the
+     * generation the token must pass to cancel(). Call it before enqueueing.
+     */
+    public long makeCancellable() {
+        cancellable = true;
+        return cancelWord >>> 2;
+    }
+
+    /**
+     * Marks the message of the generation cancelled without taking any lock,
+     * the looper drops it instead of dispatching it.
+     *
+     * @return false if it was dispatched, removed or cancelled already
+     */
+    public boolean cancel(long generation) {
+        final long pending = generation << 2;
+        return cancelWord == pending && CANCEL_WORD.compareAndSet(this, pending, pending | CANCELLED);
+    }
+
+    /** Checks if a token cancelled the message */
+    boolean isCancelled() {
+        return 0 != (cancelWord & CANCELLED);
+    }
+
+    /** Claims a cancellable message for dispatch, false if it was cancelled */
+    boolean claim() {
+        final long word = cancelWord;
+        return 0 == (word & STATE_MASK) && CANCEL_WORD.compareAndSet(this, word, word | CLAIMED);
+    }
+
+    /** Makes a claimed message cancellable again by the same tokens, before it is queued again */
+    void unclaim() {
+        cancelWord &= ~STATE_MASK;
+    }
+
+    /** Starts a new generation, dead tokens of the previous ones can't cancel it */
+    void newGeneration() {
+        cancellable = false;
+        cancelWord = ((cancelWord >>> 2) + 1) << 2;
+    }
+
+    /** Clears the in-use mark set by prepare(), for a message which won't be queued after all */
+    public void abandon() {
+        if (0 == (flags & FLAG_RECYCLED)) {
+            flags &= ~FLAG_IN_USE;
+        }
+    }
+
+    /** Checks if the message is queued, dispatching or in the pool */
+    public boolean isInUse() {
+        return 0 != (flags & FLAG_IN_USE);
+    }
+
+    /** Checks if the message was recycled in debug mode */
+    public boolean isRecycled() {
+        return 0 != (flags & FLAG_RECYCLED);
+    }
+
+    /** Returns the stack trace of the recycle, only kept in debug mode */
+    public Throwable getRecycleSite() {
+        return recycleSite;
+    }
 }
@@ -0,0 +1,114 @@
+package jhandler.internal;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+import jhandler.Handler;
+
+/**
+ * Intrusive hash index of the pending messages, keyed by (target, what) for
+ * messages and by (target, callback) for posted Runnables. The chains are
+ * linked through <code>MessageExt.idxPrev</code> and <code>MessageExt.idxNext</code>,
+ * so indexing a message allocates nothing.
+ *
+ * <p> Lookups walk a single chain, which only holds the messages of the same
+ * key plus the rare hash collisions. Not thread safe.
+ */
+final class MessageIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private MessageExt[] mTable = new MessageExt[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    int size() {
+        return mSize;
+    }
+
+    /** Indexes a message, it must have a target */
+    void add(MessageExt msg) {
+        if (mSize >= mTable.length - (mTable.length >>> 2)) {
+            resize();
+        }
+        msg.idxHash = null == msg.callback
+                ? hash(msg.target, msg.message.what)
+                : hash(msg.target, msg.callback);
+        link(msg);
+        ++mSize;
+    }
+
+    /** Removes a message from the index, does nothing if it's not indexed */
+    void remove(MessageExt msg) {
+        if (!msg.indexed) {
+            return;
+        }
+        if (null == msg.idxPrev) {
+            mTable[msg.idxHash & (mTable.length - 1)] = msg.idxNext;
+        } else {
+            msg.idxPrev.idxNext = msg.idxNext;
+        }
+        if (null != msg.idxNext) {
+            msg.idxNext.idxPrev = msg.idxPrev;
+        }
+        msg.idxPrev = null;
+        msg.idxNext = null;
+        msg.indexed = false;
+        --mSize;
+    }
+
+    /**
+     * Returns the head of the chain which holds the messages of (target, what).
+     * Follow <code>idxNext</code> and check <code>idxHash</code>, target and
+     * what, the chain may hold other keys.
+     */
+    MessageExt chain(int hash) {
+        return mTable[hash & (mTable.length - 1)];
+    }
+
+    /** Appends the indexed messages accepted by the filter to out, in no particular order */
+    void collect(Predicate<? super MessageExt> filter, List<MessageExt> out) {
+        for (MessageExt head : mTable) {
+            for (MessageExt m = head; m != null; m = m.idxNext) {
+                if (filter.test(m)) {
+                    out.add(m);
+                }
+            }
+        }
+    }
+
+    static int hash(Handler target, int what) {
+        return spread(System.identityHashCode(target) * 31 + what);
+    }
+
+    static int hash(Handler target, Runnable callback) {
+        return spread(System.identityHashCode(target) * 31 + System.identityHashCode(callback));
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void link(MessageExt msg) {
+        final int slot = msg.idxHash & (mTable.length - 1);
+        final MessageExt head = mTable[slot];
+        msg.idxPrev = null;
+        msg.idxNext = head;
+        if (null != head) {
+            head.idxPrev = msg;
+        }
+        mTable[slot] = msg;
+        msg.indexed = true;
+    }
+
+    private void resize() {
+        final MessageExt[] old = mTable;
+        mTable = new MessageExt[old.length * 2];
+        for (MessageExt head : old) {
+            for (MessageExt m = head; m != null;) {
+                final MessageExt next = m.idxNext;
+                link(m);
+                m = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package jhandler.internal;
+
+/**
+ * Intrusive doubly linked FIFO of messages, linked through
+ * <code>MessageExt.prev</code> and <code>MessageExt.next</code>.
+ *
+ * <p> All the operations are O(1). Not thread safe.
+ */
+final class MessageList {
+    private MessageExt mHead;
+    private MessageExt mTail;
+    private int mSize = 0;
+
+    int size() {
+        return mSize;
+    }
+
+    MessageExt peekFirst() {
+        return mHead;
+    }
+
+    void addLast(MessageExt msg) {
+        msg.next = null;
+        msg.prev = mTail;
+        if (null == mTail) {
+            mHead = msg;
+        } else {
+            mTail.next = msg;
+        }
+        mTail = msg;
+        msg.list = this;
+        ++mSize;
+    }
+
+    MessageExt removeFirst() {
+        final MessageExt msg = mHead;
+        if (null != msg) {
+            remove(msg);
+        }
+        return msg;
+    }
+
+    void remove(MessageExt msg) {
+        if (null == msg.prev) {
+            mHead = msg.next;
+        } else {
+            msg.prev.next = msg.next;
+        }
+        if (null == msg.next) {
+            mTail = msg.prev;
+        } else {
+            msg.next.prev = msg.prev;
+        }
+        msg.prev = null;
+        msg.next = null;
+        msg.list = null;
+        --mSize;
+    }
+}
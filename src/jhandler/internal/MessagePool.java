@@ -0,0 +1,120 @@
+package jhandler.internal;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import jhandler.Message;
+
+/**
+ * Bounded global pool of messages. Every Message owns one MessageExt for its
+ * whole life, so a pooled message is also a pooled queue node and a steady
+ * send-dispatch-recycle cycle allocates nothing.
+ *
+ * <p> In debug mode recycled messages are never reused, and any attempt to
+ * send or recycle one again throws with the stack trace of the first recycle.
+ */
+public final class MessagePool {
+    private static final ReentrantLock sPoolLock = new ReentrantLock();
+    private static MessageExt sPool; // linked through MessageExt.next
+    private static int sPoolSize = 0;
+    private static int sMaxPoolSize = Integer.getInteger("jhandler.messagePoolSize", 50);
+    private static volatile boolean sDebug = Boolean.getBoolean("jhandler.debugRecycle");
+
+    private MessagePool() {
+    }
+
+    /** Takes a message from the pool, or returns null if the pool is empty */
+    public static MessageExt poll() {
+        sPoolLock.lock();
+        try {
+            final MessageExt ext = sPool;
+            if (null != ext) {
+                sPool = ext.next;
+                ext.next = null;
+                ext.flags = 0;
+                --sPoolSize;
+                return ext;
+            }
+        } finally {
+            sPoolLock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * Resets the message and returns it to the pool. The caller must make sure
+     * the message is not queued anymore.
+     */
+    public static void recycle(MessageExt ext) {
+        if (null == ext.message || MessageExt.RING_NONE != ext.ringKind) {
+            return; // not a pooled kind of message, e.g. quit
+        }
+        if (0 != (ext.flags & MessageExt.FLAG_RECYCLED)) {
+            throw new IllegalStateException("Message recycled twice", ext.recycleSite);
+        }
+
+        if (null != ext.journal) {
+            ext.journal.onDone(ext.journalId);
+            ext.journal = null;
+        }
+
+        final Message msg = ext.message;
+        msg.what = 0;
+        msg.arg1 = 0;
+        msg.arg2 = 0;
+        msg.obj = null;
+        ext.target = null;
+        ext.callback = null;
+        ext.when = 0;
+        ext.priority = Message.PRIORITY_NORMAL;
+        ext.deadline = Long.MAX_VALUE;
+        ext.timerSlack = -1;
+        ext.slack = 0;
+        ext.requeue = false;
+        ext.neverShed = false;
+        ext.newGeneration();
+        ext.coalesceKey = null;
+        ext.coalesceReschedule = false;
+        ext.merger = null;
+
+        if (sDebug) {
+            ext.flags = MessageExt.FLAG_IN_USE | MessageExt.FLAG_RECYCLED;
+            ext.recycleSite = new Throwable("Message recycled here");
+            return;
+        }
+
+        // messages in the pool are in use, so nobody can send them
+        ext.flags = MessageExt.FLAG_IN_USE;
+        sPoolLock.lock();
+        try {
+            if (sPoolSize < sMaxPoolSize) {
+                ext.next = sPool;
+                sPool = ext;
+                ++sPoolSize;
+            }
+        } finally {
+            sPoolLock.unlock();
+        }
+    }
+
+    /** Sets the maximum number of messages kept in the pool */
+    public static void setMaxPoolSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        sPoolLock.lock();
+        try {
+            sMaxPoolSize = size;
+            while (sPoolSize > size) {
+                sPool = sPool.next;
+                --sPoolSize;
+            }
+        } finally {
+            sPoolLock.unlock();
+        }
+    }
+
+    /** Turns the use-after-recycle checks on or off */
+    public static void setDebug(boolean debug) {
+        sDebug = debug;
+    }
+}
@@ -1,31 +1,222 @@
 package jhandler.internal;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
 
+import jhandler.Clock;
+import jhandler.ExpiredMessageListener;
+import jhandler.Handler;
+import jhandler.Message;
+import jhandler.OverflowPolicy;
+import jhandler.WatermarkListener;
+
 public class MessageQueue {
     private volatile boolean mQuited = false; // the initial state is NOT quited
-    
-    /** Message comparator based on the when field */
-    private class TimeComparator implements Comparator<MessageExt> {
-        @Override
-        public int compare(MessageExt e1, MessageExt e2) {
-            return (int) (e1.when - e2.when);
+
+    /**
+     * Guards everything but the lane. A ReentrantLock, not a monitor, so a
+     * looper or producer on a virtual thread never pins its carrier thread.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** The number of priority lanes, see Message.setPriority() */
+    public static final int PRIORITIES = 3;
+
+    /** The default of how long a due message may wait behind higher priorities */
+    public static final long DEFAULT_AGING_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Pending delayed messages ordered by "when", per priority. The normal
+     * lane's is created up front, the others' on first use.
+     */
+    private final TimerQueue[] mTimerQueues = new TimerQueue[PRIORITIES];
+    private final TimerQueue.Factory mTimerQueueFactory;
+
+    /** Zero-delay messages, offered without taking the lock */
+    private final MpscLane mLane = new MpscLane();
+
+    private static final AtomicReferenceFieldUpdater<MessageQueue, PrimitiveRing> RING =
+            AtomicReferenceFieldUpdater.newUpdater(MessageQueue.class, PrimitiveRing.class, "mRing");
+
+    /** Integer-only messages, created on first use */
+    private volatile PrimitiveRing mRing;
+    private boolean mRingTurn = true; // looper only
+    private int mRingTaken; // looper only, in the current turn
+
+    /** The node handing the integer-only messages to the looper, one at a time */
+    private final MessageExt mRingMsg = new MessageExt(null, new Message(), 0);
+
+    /** Zero-delay messages already taken out of the lane, in FIFO order, per priority */
+    private final MessageList[] mReadyLists = new MessageList[PRIORITIES];
+
+    /** How long a due message may wait behind higher priorities before it goes by age */
+    private volatile long mAgingNanos = DEFAULT_AGING_NANOS;
+
+    /** Index of the messages in the ready list and the timer queue */
+    private final MessageIndex mIndex = new MessageIndex();
+
+    /** Pending coalesced messages by (target, key), all in the timer queue */
+    private final HashMap<CoalesceKey, MessageExt> mCoalesced = new HashMap<CoalesceKey, MessageExt>();
+    private final CoalesceKey mProbe = new CoalesceKey(); // guarded by mLock
+
+    // mWaitState: handling messages, producers have nothing to do
+    private static final int RUNNING = 0;
+
+    // mWaitState: idle and spinning, a producer only has to set RUNNING
+    private static final int SPINNING = 1;
+
+    // mWaitState: parked (or about to park), a producer has to unpark the looper
+    private static final int PARKED = 2;
+
+    private static final AtomicIntegerFieldUpdater<MessageQueue> WAIT_STATE =
+            AtomicIntegerFieldUpdater.newUpdater(MessageQueue.class, "mWaitState");
+
+    /** How the looper is waiting, set back to RUNNING by the first waker */
+    private volatile int mWaitState = RUNNING;
+
+    /** The time the messages are scheduled in */
+    private final Clock mClock;
+
+    /** How the looper waits when it has nothing to do */
+    private volatile WaitMode mWaitMode = WaitMode.BLOCKING;
+
+    /** Until when the looper is parked, guarded by the lock */
+    private long mWakeupAt = Long.MAX_VALUE;
+
+    /** The looper thread, the only caller of next() */
+    private volatile Thread mLooperThread;
+
+    /** How long before a deadline the looper stops parking and spins */
+    private volatile long mSpinNanos = 0;
+
+    /** How late a delayed message may be dispatched by default, to share a wake-up with others */
+    private volatile long mSlackNanos = 0;
+
+    /** Messages later than that are shed at dispatch, Long.MAX_VALUE for never */
+    private volatile long mMaxLagNanos = Long.MAX_VALUE;
+
+    /** Told about the messages dropped at dispatch, may be null */
+    private volatile ExpiredMessageListener mExpiredListener;
+
+    /** The default of the maximum number of due messages taken under the lock at once */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    /**
+     * Due messages taken out of the queue under the lock, handed out by next()
+     * without the lock. Filled and cleared by the looper under the lock, the
+     * entries are claimed by CAS on MessageExt.batchState.
+     */
+    private MessageExt[] mBatch = new MessageExt[DEFAULT_MAX_BATCH_SIZE];
+    private int mBatchCount = 0; // guarded by the lock
+    private int mBatchPos = 0; // looper only
+    private volatile int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    /** Counters, null unless metrics are enabled */
+    private volatile QueueStats mStats;
+
+    /** Cancelled messages are swept out once there are at least that many */
+    private static final int MIN_SWEEP = 1024;
+
+    /** The longest a sender waits for the looper to free a slot of a full ring before looking again */
+    private static final long MAX_RING_BACKOFF_NANOS = 1000000;
+
+    /** Messages cancelled by a token and still queued, until they are due or swept out */
+    private final AtomicInteger mCancelled = new AtomicInteger(0);
+
+    /** Occupancy, null unless a capacity or watermarks are set */
+    private volatile Capacity mCapacity;
+
+    /** Handles a message on the calling thread, for OverflowPolicy.CALLER_RUNS */
+    public interface Dispatcher {
+        /** Dispatches and recycles the message */
+        void dispatch(MessageExt msg);
+    }
+
+    /**
+     * Told about a message the queue drops instead of dispatching it, by the
+     * overflow policy or past its deadline or maximum lag, before it is
+     * recycled, e.g. to settle the task it carries.
+     */
+    public interface DropHook {
+        void onDropped(MessageExt msg);
+    }
+
+    /** Told about the messages dropped instead of dispatched, may be null */
+    private volatile DropHook mDropHook;
+
+    /** Creates a message queue backed by heaps */
+    public MessageQueue() {
+        this(HeapTimerQueue.FACTORY);
+    }
+
+    /** Creates a message queue backed by timer queues of the factory, one per priority lane */
+    public MessageQueue(TimerQueue.Factory timerQueues) {
+        this(timerQueues, Clock.SYSTEM);
+    }
+
+    /** Like MessageQueue(TimerQueue.Factory), scheduling in the time of the clock */
+    public MessageQueue(TimerQueue.Factory timerQueues, Clock clock) {
+        if (null == timerQueues) {
+            throw new NullPointerException("timerQueues");
+        }
+        if (null == clock) {
+            throw new NullPointerException("clock");
+        }
+        this.mClock = clock;
+        this.mTimerQueueFactory = timerQueues;
+        this.mTimerQueues[Message.PRIORITY_NORMAL] = timerQueues.create();
+        for (int i = 0; i < PRIORITIES; ++i) {
+            this.mReadyLists[i] = new MessageList();
         }
     }
 
-    /** Sorted message list by "when" */
-    private SortedLinkedList<MessageExt> mSortedList = new SortedLinkedList<MessageExt>(
-            new TimeComparator());
+    /** Returns the current uptime of the clock of this queue, in nanoseconds */
+    public long uptimeNanos() {
+        return mClock.uptimeNanos();
+    }
+
+    /** Checks if the queue has quit, it refuses all the messages then */
+    public boolean isQuitting() {
+        return mQuited;
+    }
 
     /** The number of pending messages */
     public int size() {
-        synchronized (mSortedList) {
-            return mSortedList.size();
+        mLock.lock();
+        try {
+            drainLane();
+            int batched = 0;
+            for (int i = 0; i < mBatchCount; ++i) {
+                if (MessageExt.BATCHED == mBatch[i].batchState) {
+                    ++batched;
+                }
+            }
+            int size = batched;
+            for (int i = 0; i < PRIORITIES; ++i) {
+                size += mReadyLists[i].size() + (null == mTimerQueues[i] ? 0 : mTimerQueues[i].size());
+            }
+            return size;
+        } finally {
+            mLock.unlock();
         }
     }
 
-    /** Enqueues a message */
+    /**
+     * Enqueues a message. A message with a coalescing key is merged into the
+     * pending message of the same target and key if any, and recycled.
+     *
+     * @return false if the queue has quit, or is full and refuses the message
+     */
     public boolean enqueue(MessageExt msg) {
         // already quited
         if (mQuited) {
@@ -36,80 +227,1208 @@ public class MessageQueue {
         if (null == msg) {
             return false;
         }
-                
+
+        if (null != msg.target) {
+            slacken(msg);
+        }
+
+        final int admitted = admit(msg, null, 1);
+        if (Capacity.ADMITTED != admitted) {
+            return Capacity.REJECTED != admitted;
+        }
+        return insert(msg);
+    }
+
+    /**
+     * Recycles a dispatched message, or queues it again if its handler set
+     * MessageExt.requeue, e.g. a periodic task moving its own entry to the
+     * next tick instead of taking a new message each time. A message the
+     * queue refuses is recycled.
+     */
+    public void finish(MessageExt msg) {
+        if (msg.requeue) {
+            msg.requeue = false;
+            if (msg.cancellable) {
+                msg.unclaim();
+            }
+            if (requeue(msg)) {
+                return;
+            }
+        }
+        recycle(msg);
+    }
+
+    /**
+     * Queues a finished message again. It takes its room back whatever the
+     * overflow policy: refusing it would lose a periodic task, and running it
+     * inline would recurse.
+     */
+    private boolean requeue(MessageExt msg) {
+        if (mQuited) {
+            return false;
+        }
+        slacken(msg);
+        final Capacity capacity = mCapacity;
+        if (null != capacity) {
+            capacity.reserve(1);
+        }
+        return insert(msg);
+    }
+
+    /**
+     * Handles a message on the sender for OverflowPolicy.CALLER_RUNS, with
+     * the checks the looper does before a dispatch: a cancelled or stale
+     * message is dropped instead.
+     */
+    void runInline(MessageExt msg, Dispatcher dispatcher) {
+        if (msg.cancellable && !msg.claim()) {
+            countRemoved(); // cancelled by a token
+            recycle(msg);
+            return;
+        }
+        unslack(msg);
+        if (dropStale(msg)) {
+            return;
+        }
+        dispatcher.dispatch(msg);
+    }
+
+    /** Inserts an admitted message into the timer queue */
+    private boolean insert(MessageExt msg) {
+        if (null != msg.coalesceKey && null == msg.coalesceEntry) {
+            return enqueueCoalesced(msg);
+        }
+
         // message without target means quit
         if (null == msg.target) {
-            mQuited = true; 
+            mQuited = true;
             // don't return here, let it be handled by looper
         }
 
-        synchronized (mSortedList) {
-            mSortedList.add(msg);
-            mSortedList.notifyAll();
+        countEnqueued(1);
+        if (null != msg.target) {
+            trace(msg, 1);
+        }
+        mLock.lock();
+        try {
+            timerQueueOf(msg.priority).add(msg);
+            if (null != msg.target) {
+                mIndex.add(msg);
+            }
+            if (msg.when < mWakeupAt) {
+                wake();
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        return true;
+    }
+
+    private boolean enqueueCoalesced(MessageExt msg) {
+        mLock.lock();
+        try {
+            final MessageExt pending = mCoalesced.get(mProbe.set(msg.target, msg.coalesceKey));
+            if (null == pending) {
+                msg.coalesceEntry = new CoalesceKey().set(msg.target, msg.coalesceKey);
+                mCoalesced.put(msg.coalesceEntry, msg);
+                return insert(msg);
+            }
+            merge(pending, msg);
+        } finally {
+            mLock.unlock();
         }
 
+        release(1);
+        final QueueStats stats = mStats;
+        if (null != stats) {
+            stats.coalesced.increment();
+        }
+        recycle(msg);
         return true;
     }
-    
-    /** Enqueues a message at the front of this queue */
+
+    /** Merges a coalesced message into the pending one in place, must hold mLock */
+    private void merge(MessageExt pending, MessageExt msg) {
+        mIndex.remove(pending); // "what" may change
+        if (null == msg.merger) {
+            pending.message.what = msg.message.what;
+            pending.message.arg1 = msg.message.arg1;
+            pending.message.arg2 = msg.message.arg2;
+            pending.message.obj = msg.message.obj;
+        } else {
+            msg.merger.merge(pending.message, msg.message);
+        }
+        mIndex.add(pending);
+
+        if (msg.coalesceReschedule && pending.when != msg.when) {
+            mTimerQueues[pending.priority].remove(pending);
+            pending.when = msg.when;
+            pending.slack = msg.slack;
+            mTimerQueues[pending.priority].add(pending);
+            if (pending.when < mWakeupAt) {
+                wake();
+            }
+        }
+    }
+
+    /**
+     * Enqueues a message which is due now. It is appended to a lock-free lane,
+     * and the looper is only woken up if it is waiting.
+     */
+    public boolean enqueueImmediate(MessageExt msg) {
+        // null and quit messages take the locked path
+        if (null == msg || null == msg.target) {
+            return enqueue(msg);
+        }
+
+        if (mQuited) {
+            return false;
+        }
+
+        final int admitted = admit(msg, null, 1);
+        if (Capacity.ADMITTED != admitted) {
+            return Capacity.REJECTED != admitted;
+        }
+
+        trace(msg, 1);
+        mLane.offer(msg);
+        countEnqueued(1);
+
+        // pairs with the volatile write of mWaitState in next()
+        wake();
+        return true;
+    }
+
+    /**
+     * Enqueues messages which are due now as one batch, with a single atomic
+     * swap on the lane and at most one wake-up. A bounded queue admits,
+     * drops or refuses them all together.
+     *
+     * @param msgs The messages, which must have a target
+     * @param count The number of messages from the start of msgs
+     */
+    public boolean enqueueImmediate(MessageExt[] msgs, int count) {
+        if (mQuited) {
+            return false;
+        }
+        if (count == 0) {
+            return true;
+        }
+
+        final int admitted = admit(null, msgs, count);
+        if (Capacity.ADMITTED != admitted) {
+            return Capacity.REJECTED != admitted;
+        }
+
+        for (int i = 1; i < count; ++i) {
+            msgs[i - 1].laneNext = msgs[i];
+        }
+        trace(msgs[0], count);
+        mLane.offerAll(msgs[0], msgs[count - 1]);
+        countEnqueued(count);
+        wake();
+        return true;
+    }
+
+    /**
+     * Enqueues an integer-only message, handled by
+     * <code>target.handleMessage(what, arg1, arg2)</code>. It goes through a
+     * ring of its own, so it is only ordered with the other integer-only
+     * messages, and is outside the capacity of a bounded queue. While the ring
+     * is full the overflow policy of the queue applies, BLOCK if there is none;
+     * DROP_OLDEST drops the incoming message too, as the ring keeps its order.
+     */
+    public boolean enqueueInts(Handler target, int what, int arg1, int arg2) {
+        return enqueuePrimitive(target, what, PrimitiveRing.pack(arg1, arg2), MessageExt.RING_INTS);
+    }
+
+    /** Like enqueueInts(), handled by <code>target.handleMessage(what, payload)</code> */
+    public boolean enqueueLong(Handler target, int what, long payload) {
+        return enqueuePrimitive(target, what, payload, MessageExt.RING_LONG);
+    }
+
+    private boolean enqueuePrimitive(Handler target, int what, long payload, byte kind) {
+        if (null == target) {
+            throw new NullPointerException("target");
+        }
+        PrimitiveRing ring = mRing;
+        if (null == ring) {
+            RING.compareAndSet(this, null, new PrimitiveRing());
+            ring = mRing;
+        }
+        long deadline = 0;
+        long backoff = 1000;
+        while (true) {
+            if (mQuited) {
+                return false;
+            }
+            if (ring.offer(target, what, payload, kind)) {
+                break;
+            }
+
+            // full: the policy of the bounded queue, or blocking for good
+            final Capacity capacity = mCapacity;
+            final OverflowPolicy policy = (null == capacity || 0 == capacity.capacity)
+                    ? OverflowPolicy.BLOCK : capacity.policy;
+            switch (policy) {
+            case BLOCK:
+                if (isLooperThread()) {
+                    return rejectPrimitive(); // nobody else would make room
+                }
+                if (null != capacity && 0 != capacity.capacity) {
+                    if (0 == deadline) {
+                        deadline = TimeUtils.add(TimeUtils.uptimeNanos(), capacity.blockNanos);
+                    }
+                    if (TimeUtils.uptimeNanos() >= deadline) {
+                        return rejectPrimitive();
+                    }
+                }
+                LockSupport.parkNanos(this, backoff);
+                if (Thread.currentThread().isInterrupted()) {
+                    return rejectPrimitive();
+                }
+                backoff = Math.min(backoff * 2, MAX_RING_BACKOFF_NANOS);
+                continue;
+            case DROP_OLDEST:
+            case DROP_NEWEST:
+                final QueueStats stats = mStats;
+                if (null != stats) {
+                    stats.dropped.increment();
+                }
+                return true;
+            case CALLER_RUNS:
+                if (isLooperThread()) {
+                    return rejectPrimitive(); // running it inline would reenter the dispatch of the looper
+                }
+                final MessageExt msg = new MessageExt(null, new Message(), 0);
+                PrimitiveRing.fill(msg, target, what, payload, kind);
+                msg.when = mClock.uptimeNanos();
+                runInline(msg, capacity.dispatcher);
+                return true;
+            default:
+                return rejectPrimitive();
+            }
+        }
+        countEnqueued(1);
+
+        // pairs with the volatile write of mWaitState in next()
+        wake();
+        return true;
+    }
+
+    private boolean rejectPrimitive() {
+        final QueueStats stats = mStats;
+        if (null != stats) {
+            stats.rejected.increment();
+        }
+        return false;
+    }
+
+    /** Enqueues a message at the front of the lane of its priority */
     public boolean enqueueAtFront(MessageExt msg) {
-        synchronized (mSortedList) {
-            final MessageExt front = mSortedList.peekFirst();
-            final long when = (null == front ? 0 : front.when - 1);
-            return enqueue(new MessageExt(msg.target, msg.message, when));
-        }        
+        if (mQuited || null == msg) {
+            return false;
+        }
+
+        // admitted before taking the lock, DROP_OLDEST takes it to make room
+        final int admitted = admit(msg, null, 1);
+        if (Capacity.ADMITTED != admitted) {
+            return Capacity.REJECTED != admitted;
+        }
+
+        mLock.lock();
+        try {
+            drainLane();
+            final MessageExt front = peekFirst(msg.priority);
+            // ahead of the earliest message, and due now even if that one isn't
+            final long now = mClock.uptimeNanos();
+            msg.when = (null == front ? now : Math.min(now, front.when - 1));
+            return insert(msg);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Bounds the number of pending messages, 0 for unbounded. Set it before
+     * the queue is in use, the messages queued meanwhile may be miscounted.
+     *
+     * @param capacity The maximum number of pending messages, a quit message is always accepted
+     * @param policy What to do with a message sent while the queue is full
+     * @param blockNanos How long OverflowPolicy.BLOCK waits for room
+     * @param dispatcher Handles the messages on the sender for OverflowPolicy.CALLER_RUNS
+     */
+    public void setCapacity(int capacity, OverflowPolicy policy, long blockNanos, Dispatcher dispatcher) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        if (null == policy) {
+            throw new NullPointerException("policy");
+        }
+        if (OverflowPolicy.CALLER_RUNS == policy && null == dispatcher) {
+            throw new NullPointerException("dispatcher");
+        }
+        mLock.lock();
+        try {
+            final Capacity old = mCapacity;
+            if (null == old) {
+                updateCapacity(capacity, policy, blockNanos, dispatcher, Integer.MAX_VALUE, -1, null);
+            } else {
+                updateCapacity(capacity, policy, blockNanos, dispatcher, old.high, old.low, old.listener);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Calls the listener when the number of pending messages reaches high,
+     * then again when it falls to low, null removes it.
+     */
+    public void setWatermarks(int high, int low, WatermarkListener listener) {
+        if (null != listener && (low < 0 || low >= high)) {
+            throw new IllegalArgumentException("0 <= low < high is required");
+        }
+        mLock.lock();
+        try {
+            final Capacity old = mCapacity;
+            if (null == listener) {
+                high = Integer.MAX_VALUE;
+                low = -1;
+            }
+            if (null == old) {
+                updateCapacity(0, OverflowPolicy.REJECT, 0, null, high, low, listener);
+            } else {
+                updateCapacity(old.capacity, old.policy, old.blockNanos, old.dispatcher, high, low, listener);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Replaces the occupancy, counting from the current size, must hold mLock */
+    private void updateCapacity(int capacity, OverflowPolicy policy, long blockNanos, Dispatcher dispatcher,
+            int high, int low, WatermarkListener listener) {
+        if (0 == capacity && null == listener) {
+            mCapacity = null; // nothing to count
+        } else {
+            mCapacity = new Capacity(this, capacity, policy, blockNanos, dispatcher, high, low, listener, size());
+        }
+    }
+
+    /** Reserves room for n messages, or returns what the overflow policy did with them */
+    private int admit(MessageExt msg, MessageExt[] msgs, int n) {
+        final Capacity capacity = mCapacity;
+        if (null == capacity || (null != msg && null == msg.target)) {
+            return Capacity.ADMITTED; // unbounded, or a quit message
+        }
+        final int admitted = capacity.admit(msg, msgs, n);
+        final QueueStats stats = mStats;
+        if (null != stats) {
+            if (Capacity.REJECTED == admitted) {
+                stats.rejected.add(n);
+            } else if (Capacity.DROPPED == admitted) {
+                stats.dropped.add(n);
+            }
+        }
+        return admitted;
     }
 
-    /** Returns next message in the queue (may block) */
+    /** Gives back the room of n messages which left the queue */
+    private void release(int n) {
+        final Capacity capacity = mCapacity;
+        if (null != capacity) {
+            capacity.release(n);
+        }
+    }
+
+    /** Returns the thread taking the messages, null until it first does */
+    public Thread getLooperThread() {
+        return mLooperThread;
+    }
+
+    /** Checks if the caller is the looper thread */
+    boolean isLooperThread() {
+        return Thread.currentThread() == mLooperThread;
+    }
+
+    /**
+     * Drops and recycles up to n of the messages which would be dispatched
+     * first, for OverflowPolicy.DROP_OLDEST. The quit message is kept.
+     *
+     * @return The number of messages dropped
+     */
+    int dropOldest(int n) {
+        int dropped = 0;
+        List<MessageExt> removed = null;
+        mLock.lock();
+        try {
+            drainLane();
+            for (int i = mBatchPos; i < mBatchCount && dropped < n; ++i) {
+                final MessageExt b = mBatch[i];
+                if (null != b.target
+                        && MessageExt.BATCH_STATE.compareAndSet(b, MessageExt.BATCHED, MessageExt.DROPPED)) {
+                    ++dropped; // dropped by the looper when it passes it
+                }
+            }
+            int lane;
+            while (dropped < n && (lane = earliestLane()) >= 0 && null != peekFirst(lane).target) {
+                if (null == removed) {
+                    removed = new ArrayList<MessageExt>();
+                }
+                removed.add(removeFirst(lane));
+                ++dropped;
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        // out of the lock, the hook may settle tasks or send messages
+        if (null != removed) {
+            for (MessageExt m : removed) {
+                drop(m);
+            }
+        }
+
+        if (dropped > 0) {
+            release(dropped);
+            final QueueStats stats = mStats;
+            if (null != stats) {
+                stats.dropped.add(dropped);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns next message in the queue (may block). Up to the maximum batch
+     * size of due messages are taken under the lock at once, the following
+     * calls hand them out without locking.
+     */
     public MessageExt next() {
-        synchronized (mSortedList) {
-            while (true) {
-                try {
-                    long waitTimeout = 30 * 1000; //30s
+        return take(true);
+    }
+
+    /**
+     * Like next(), but returns null instead of waiting when no message is
+     * due, e.g. for a simulation driving the queue itself.
+     */
+    public MessageExt poll() {
+        return take(false);
+    }
 
-                    if (mSortedList.size() > 0) {
-                        waitTimeout = mSortedList.peekFirst().when - TimeUtils.uptime();
+    private MessageExt take(boolean wait) {
+        if (null == mLooperThread) {
+            mLooperThread = Thread.currentThread();
+        }
+
+        while (true) {
+            // serve the in-flight batch, skipping and recycling what has been removed or dropped meanwhile
+            while (mBatchPos < mBatchCount) {
+                final MessageExt msg = mBatch[mBatchPos++];
+                if (MessageExt.BATCH_STATE.compareAndSet(msg, MessageExt.BATCHED, MessageExt.TAKEN)) {
+                    if (null != msg.target) {
+                        release(1);
+                    }
+                    if (msg.cancellable && !msg.claim()) {
+                        countRemoved(); // cancelled by a token
+                        recycle(msg);
+                        continue;
                     }
-                    
-                    if (waitTimeout > 0) {
-                        mSortedList.wait(waitTimeout);
-                    } else {
-                        break;
+                    unslack(msg);
+                    if (null != msg.target && dropStale(msg)) {
+                        continue;
+                    }
+                    return msg;
+                }
+                if (MessageExt.DROPPED == msg.batchState) {
+                    drop(msg);
+                } else {
+                    recycle(msg);
+                }
+            }
+
+            // then up to a batch of integer-only messages, one at a time through
+            // the same node, taking turns with the batches of the other messages
+            if (mRingTurn) {
+                final PrimitiveRing ring = mRing;
+                if (null != ring && mRingTaken < mMaxBatchSize && ring.poll(mRingMsg)) {
+                    ++mRingTaken;
+                    return mRingMsg;
+                }
+                mRingTurn = false;
+                mRingTaken = 0;
+            }
+
+            final long deadline;
+            final WaitMode strategy;
+            mLock.lock();
+            try {
+                mRingTurn = true;
+                final int cancelled = mCancelled.get();
+                if (cancelled >= MIN_SWEEP && cancelled >= mIndex.size() / 2) {
+                    sweepCancelled();
+                }
+                if (fillBatch() > 0) {
+                    mWakeupAt = Long.MAX_VALUE;
+                    continue;
+                }
+
+                final boolean ringEmpty = (null == mRing || mRing.isEmpty());
+                if (!wait) {
+                    if (ringEmpty) {
+                        return null;
                     }
-                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                final int lane = earliestLane();
+                deadline = (lane < 0 ? Long.MAX_VALUE : peekFirst(lane).when);
+                mWakeupAt = deadline;
+                strategy = mWaitMode;
+                mWaitState = WaitMode.PARK == strategy.kind ? PARKED : SPINNING;
+                if (!mLane.isEmpty() || (null != mRing && !mRing.isEmpty())) {
+                    mWaitState = RUNNING; // raced with a producer
+                    continue;
                 }
+            } finally {
+                mLock.unlock();
+            }
+            final EventTracer tracer = EventTracer.installed();
+            final Object event = (null == tracer ? null : tracer.beginWait(this, deadline));
+            await(strategy, deadline);
+            mWaitState = RUNNING;
+            if (null != event) {
+                tracer.endWait(event, this);
             }
-            return mSortedList.removeFirst();
+
+            // like Object.wait() used to, an interrupt only wakes the looper up
+            Thread.interrupted();
         }
     }
 
-    /** Checks if there're any elements which match the predicate */
-    public boolean hasMessages(final int what) {
-        synchronized (mSortedList) {
-            return mSortedList.hasElements(new Predicate<MessageExt>() {
-                @Override
-                public boolean test(MessageExt t) {
-                    return what == t.message.what;
+    /**
+     * Sets how late a delayed message may be dispatched, so the deadlines
+     * within that window share one wake-up of the looper. A message may set
+     * its own, see MessageExt.timerSlack. 0 (the default) is precise.
+     */
+    public void setTimerSlack(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        mSlackNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Sets the lag after which the messages are shed at dispatch, so a
+     * looper behind after a burst catches up instead of falling further
+     * behind. Critical and cancellable messages are never shed, the latter
+     * have a sender holding a handle or a future on them, nor the messages
+     * marked {@link MessageExt#neverShed}. Long.MAX_VALUE (the default) never
+     * sheds.
+     */
+    public void setMaxLag(long duration, TimeUnit unit) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException("duration must be positive");
+        }
+        mMaxLagNanos = unit.toNanos(duration);
+    }
+
+    /** Sets the hook told about the messages dropped instead of dispatched, null for none */
+    public void setDropHook(DropHook hook) {
+        mDropHook = hook;
+    }
+
+    /**
+     * Tells the drop hook about a message dropped instead of dispatched, and
+     * recycles it, e.g. a message moved here which the queue refused.
+     */
+    public void drop(MessageExt msg) {
+        final DropHook hook = mDropHook;
+        try {
+            if (null != hook) {
+                hook.onDropped(msg);
+            }
+        } finally {
+            recycle(msg);
+        }
+    }
+
+    /** Sets the listener of the messages dropped at dispatch, null for none */
+    public void setExpiredMessageListener(ExpiredMessageListener listener) {
+        mExpiredListener = listener;
+    }
+
+    /**
+     * Drops a message taken for dispatch if it is past its
+     * deadline, or later than the maximum lag. The clock is only read for
+     * messages with a deadline or while shedding.
+     */
+    private boolean dropStale(MessageExt msg) {
+        final long maxLag = mMaxLagNanos;
+        if (Long.MAX_VALUE == msg.deadline && Long.MAX_VALUE == maxLag) {
+            return false;
+        }
+        final long now = mClock.uptimeNanos();
+        final long lag = now - msg.when;
+        final boolean expired = now > msg.deadline;
+        if (!expired && (lag <= maxLag || Message.PRIORITY_CRITICAL == msg.priority
+                || msg.cancellable || msg.neverShed)) {
+            return false;
+        }
+
+        final QueueStats stats = mStats;
+        if (null != stats) {
+            (expired ? stats.expired : stats.shed).increment();
+        }
+        final ExpiredMessageListener listener = mExpiredListener;
+        if (null != listener) {
+            listener.onExpired(msg.target, msg.message, msg.callback, lag);
+        }
+        drop(msg);
+        return true;
+    }
+
+    /** Delays a message by its timer slack while it is queued, see unslack() */
+    private void slacken(MessageExt msg) {
+        final long slack = (msg.timerSlack < 0 ? mSlackNanos : msg.timerSlack);
+        msg.when = TimeUtils.add(msg.when, slack);
+        msg.slack = slack;
+    }
+
+    /** Gives a message leaving the queue back its own "when" */
+    private static void unslack(MessageExt msg) {
+        msg.when -= msg.slack;
+        msg.slack = 0;
+    }
+
+    /** Returns when the earliest pending message is due at the latest, Long.MAX_VALUE if there is none */
+    public long nextWhen() {
+        mLock.lock();
+        try {
+            drainLane();
+            long when = Long.MAX_VALUE;
+            for (int i = mBatchPos; i < mBatchCount; ++i) {
+                if (MessageExt.BATCHED == mBatch[i].batchState) {
+                    when = Math.min(when, mBatch[i].when);
                 }
-            });
+            }
+            final int lane = earliestLane();
+            return (lane < 0 ? when : Math.min(when, peekFirst(lane).when));
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Notes that a token cancelled a message of this queue. The message
+     * stays queued, and is dropped when due, or swept out with the others
+     * once they make up half of the queue.
+     */
+    public void onCancelled() {
+        mCancelled.incrementAndGet();
+    }
+
+    /** Recycles a message leaving the queue, see forgetCancelled() */
+    private void recycle(MessageExt msg) {
+        forgetCancelled(msg);
+        MessagePool.recycle(msg);
+    }
+
+    /**
+     * Counts a message leaving the queue out of the cancelled ones if a token
+     * cancelled it, so mCancelled only counts those still queued. It never
+     * goes below 0, a sweep resets it when a cancel raced with the count.
+     */
+    private void forgetCancelled(MessageExt msg) {
+        if (msg.isCancelled()) {
+            int n;
+            while ((n = mCancelled.get()) > 0 && !mCancelled.compareAndSet(n, n - 1)) {
+                // raced with another change
+            }
+        }
+    }
+
+    /** Removes the cancelled messages, must hold mLock */
+    private void sweepCancelled() {
+        mCancelled.set(0);
+        final List<MessageExt> cancelled = new ArrayList<MessageExt>();
+        mIndex.collect(new Predicate<MessageExt>() {
+            @Override
+            public boolean test(MessageExt m) {
+                return m.isCancelled();
+            }
+        }, cancelled);
+        for (MessageExt m : cancelled) {
+            remove(m);
+        }
+    }
+
+    /** Installs counters of this queue, or removes them with null */
+    public void setStats(QueueStats stats) {
+        mStats = stats;
+    }
+
+    private void countEnqueued(int count) {
+        final QueueStats stats = mStats;
+        if (null != stats) {
+            stats.enqueued.add(count);
         }
     }
 
-    /** Removes all the messages by "what" */
-    public void removeMessages(final int what) {
-        removeMessages(what, null);
+    private void trace(MessageExt msg, int count) {
+        final EventTracer tracer = EventTracer.installed();
+        if (null != tracer) {
+            tracer.onEnqueue(this, msg, count);
+        }
+    }
+
+    private void countRemoved() {
+        final QueueStats stats = mStats;
+        if (null != stats) {
+            stats.removed.increment();
+        }
     }
 
-    /** Remove all the messages by "what" and "obj" */
-    public void removeMessages(final int what, final Object obj) {
-        synchronized (mSortedList) {
-            mSortedList.removeElements(new Predicate<MessageExt>() {
+    /**
+     * Sets how long a due message may wait behind messages of higher
+     * priorities, after which the due messages go by age.
+     */
+    public void setPriorityAging(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        mAgingNanos = unit.toNanos(duration);
+    }
+
+    /** Sets the maximum number of due messages taken under the lock at once */
+    public void setMaxBatchSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        mMaxBatchSize = size;
+    }
+
+    /** Moves the due messages into a new batch, must hold mLock */
+    private int fillBatch() {
+        for (int i = 0; i < mBatchCount; ++i) {
+            mBatch[i] = null;
+        }
+        mBatchCount = 0;
+        mBatchPos = 0;
+
+        final int max = mMaxBatchSize;
+        if (mBatch.length != max) {
+            mBatch = new MessageExt[max];
+        }
+
+        drainLane();
+        final long now = mClock.uptimeNanos();
+        int lane;
+        while (mBatchCount < max && (lane = dueLane(now)) >= 0) {
+            final MessageExt first = removeFirst(lane);
+            first.batchState = MessageExt.BATCHED;
+            mBatch[mBatchCount++] = first;
+        }
+        return mBatchCount;
+    }
+
+    /**
+     * Sets how long before a deadline the looper stops parking and spins, to
+     * wake up precisely at the cost of burning CPU. 0 (the default) never spins.
+     */
+    public void setSpin(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        mSpinNanos = unit.toNanos(duration);
+    }
+
+    /** Sets how the looper waits when it has nothing to do */
+    public void setWaitMode(WaitMode mode) {
+        if (null == mode) {
+            throw new NullPointerException("mode");
+        }
+        mWaitMode = mode;
+    }
+
+    /** Waits until the deadline or until a producer sets mWaitState back to RUNNING */
+    private void await(WaitMode strategy, long deadline) {
+        switch (strategy.kind) {
+        case WaitMode.SPIN:
+            while (RUNNING != mWaitState && mClock.uptimeNanos() < deadline) {
+                // spin
+            }
+            return;
+        case WaitMode.YIELD:
+            while (RUNNING != mWaitState && mClock.uptimeNanos() < deadline) {
+                Thread.yield();
+            }
+            return;
+        case WaitMode.SPIN_THEN_PARK:
+            final long spinUntil = TimeUtils.add(mClock.uptimeNanos(), strategy.spinNanos);
+            long now;
+            while (RUNNING != mWaitState && (now = mClock.uptimeNanos()) < deadline) {
+                if (now >= spinUntil) {
+                    // fails if a producer got here first, it won't unpark then
+                    if (WAIT_STATE.compareAndSet(this, SPINNING, PARKED)) {
+                        park(deadline);
+                    }
+                    return;
+                }
+            }
+            return;
+        default:
+            park(deadline);
+        }
+    }
+
+    /** Parks until the deadline or until a producer wakes the looper up */
+    private void park(long deadline) {
+        final long spinNanos = mSpinNanos;
+        while (RUNNING != mWaitState) {
+            final long remaining = deadline - mClock.uptimeNanos();
+            if (remaining <= 0) {
+                return;
+            }
+            if (remaining > spinNanos) {
+                if (deadline == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, remaining - spinNanos);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return; // parking again would return right away, see next()
+                }
+            }
+            // else spin, until the deadline or a wake()
+        }
+    }
+
+    /** Wakes the looper up if it is waiting, only unparking it if it is parked */
+    private void wake() {
+        if (RUNNING != mWaitState && PARKED == WAIT_STATE.getAndSet(this, RUNNING)) {
+            final Thread looper = mLooperThread;
+            if (null != looper) {
+                LockSupport.unpark(looper);
+            }
+        }
+    }
+
+    /** Checks if there're any messages of the target with "what" */
+    public boolean hasMessages(Handler target, int what) {
+        return hasMessages(target, what, null);
+    }
+
+    /** Checks if there're any messages of the target with "what" and "obj", a null obj matches any */
+    public boolean hasMessages(Handler target, int what, Object obj) {
+        final int hash = MessageIndex.hash(target, what);
+        mLock.lock();
+        try {
+            drainLane();
+            for (MessageExt m = mIndex.chain(hash); m != null; m = m.idxNext) {
+                if (matches(m, hash, target, what, obj) && !m.isCancelled()) {
+                    return true;
+                }
+            }
+            for (int i = 0; i < mBatchCount; ++i) {
+                final MessageExt m = mBatch[i];
+                if (MessageExt.BATCHED == m.batchState && matches(m, hash, target, what, obj) && !m.isCancelled()) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Checks if the Runnable r of the target is pending */
+    public boolean hasCallbacks(Handler target, Runnable r) {
+        final int hash = MessageIndex.hash(target, r);
+        mLock.lock();
+        try {
+            drainLane();
+            for (MessageExt m = mIndex.chain(hash); m != null; m = m.idxNext) {
+                if (matches(m, hash, target, r) && !m.isCancelled()) {
+                    return true;
+                }
+            }
+            for (int i = 0; i < mBatchCount; ++i) {
+                final MessageExt m = mBatch[i];
+                if (MessageExt.BATCHED == m.batchState && matches(m, hash, target, r) && !m.isCancelled()) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Removes all the messages of the target by "what" */
+    public void removeMessages(Handler target, int what) {
+        removeMessages(target, what, null);
+    }
+
+    /** Removes all the messages of the target by "what" and "obj", a null obj matches any */
+    public void removeMessages(Handler target, int what, Object obj) {
+        final int hash = MessageIndex.hash(target, what);
+        mLock.lock();
+        try {
+            drainLane();
+            MessageExt m = mIndex.chain(hash);
+            while (m != null) {
+                final MessageExt next = m.idxNext;
+                if (matches(m, hash, target, what, obj)) {
+                    remove(m);
+                }
+                m = next;
+            }
+            for (int i = 0; i < mBatchCount; ++i) {
+                final MessageExt b = mBatch[i];
+                if (matches(b, hash, target, what, obj)) {
+                    removeBatched(b);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Removes all the pending posts of the Runnable r to the target */
+    public void removeCallbacks(Handler target, Runnable r) {
+        final int hash = MessageIndex.hash(target, r);
+        mLock.lock();
+        try {
+            drainLane();
+            MessageExt m = mIndex.chain(hash);
+            while (m != null) {
+                final MessageExt next = m.idxNext;
+                if (matches(m, hash, target, r)) {
+                    remove(m);
+                }
+                m = next;
+            }
+            for (int i = 0; i < mBatchCount; ++i) {
+                final MessageExt b = mBatch[i];
+                if (matches(b, hash, target, r)) {
+                    removeBatched(b);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the pending messages accepted by the filter without recycling
+     * them, and appends them to out in the order they would have been
+     * dispatched, e.g. to move them to another queue. Must be called on the
+     * looper thread (or before the looper runs), the in-flight batch is
+     * compacted in place.
+     *
+     * @return The number of messages moved to out
+     */
+    public int drainTo(Predicate<? super MessageExt> filter, List<MessageExt> out) {
+        mLock.lock();
+        try {
+            final int start = out.size();
+            drainLane();
+
+            // the in-flight batch goes first
+            int kept = mBatchPos;
+            for (int i = mBatchPos; i < mBatchCount; ++i) {
+                final MessageExt b = mBatch[i];
+                if (MessageExt.BATCHED == b.batchState && null != b.target && filter.test(b)) {
+                    b.batchState = MessageExt.REMOVED;
+                    unslack(b);
+                    forgetCancelled(b);
+                    out.add(b);
+                } else {
+                    mBatch[kept++] = b;
+                }
+            }
+            for (int i = kept; i < mBatchCount; ++i) {
+                mBatch[i] = null;
+            }
+            mBatchCount = kept;
+
+            // then the ready lists in FIFO order
+            for (MessageList ready : mReadyLists) {
+                for (MessageExt m = ready.peekFirst(); m != null;) {
+                    final MessageExt next = m.next;
+                    if (filter.test(m)) {
+                        ready.remove(m);
+                        unindex(m);
+                        forgetCancelled(m);
+                        out.add(m);
+                    }
+                    m = next;
+                }
+            }
+
+            // then the timer queues in "when" / insertion order
+            final List<MessageExt> timed = new ArrayList<MessageExt>();
+            mIndex.collect(filter, timed);
+            Collections.sort(timed, new Comparator<MessageExt>() {
                 @Override
-                public boolean test(MessageExt t) {
-                    return what == t.message.what
-                            && (null == obj || obj == t.message.obj);
+                public int compare(MessageExt a, MessageExt b) {
+                    if (a.when != b.when) {
+                        return a.when < b.when ? -1 : 1;
+                    }
+                    return Long.compare(a.seq, b.seq);
                 }
             });
+            for (MessageExt m : timed) {
+                mTimerQueues[m.priority].remove(m);
+                unindex(m);
+                unslack(m);
+                forgetCancelled(m);
+                out.add(m);
+            }
+            release(out.size() - start);
+            return out.size() - start;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static boolean matches(MessageExt m, int hash, Handler target, int what, Object obj) {
+        return m.idxHash == hash && m.target == target && null == m.callback
+                && what == m.message.what && (null == obj || obj == m.message.obj);
+    }
+
+    private static boolean matches(MessageExt m, int hash, Handler target, Runnable r) {
+        return m.idxHash == hash && m.target == target && m.callback == r;
+    }
+
+    /**
+     * Removes a message of the batch unless the looper took it already, must
+     * hold mLock. The looper recycles it when it passes it, so it can't be
+     * reused while the batch still holds it.
+     */
+    private void removeBatched(MessageExt m) {
+        if (MessageExt.BATCH_STATE.compareAndSet(m, MessageExt.BATCHED, MessageExt.REMOVED)) {
+            countRemoved();
+            release(1);
+        }
+    }
+
+    /** Removes an indexed message from where it is and recycles it, must hold mLock */
+    private void remove(MessageExt m) {
+        unindex(m);
+        if (null != m.list) {
+            m.list.remove(m);
+        } else {
+            mTimerQueues[m.priority].remove(m);
+        }
+        countRemoved();
+        release(1);
+        recycle(m);
+    }
+
+    /** Moves the messages in the lane to the ready list, must hold mLock */
+    private void drainLane() {
+        MessageExt msg;
+        while (null != (msg = mLane.poll())) {
+            mReadyLists[msg.priority].addLast(msg);
+            mIndex.add(msg);
+        }
+    }
+
+    /** Returns the timer queue of a priority, creating it on first use, must hold mLock */
+    private TimerQueue timerQueueOf(int priority) {
+        TimerQueue queue = mTimerQueues[priority];
+        if (null == queue) {
+            queue = mTimerQueueFactory.create();
+            mTimerQueues[priority] = queue;
+        }
+        return queue;
+    }
+
+    /**
+     * Returns the earliest of the ready list and the timer queue of a
+     * priority, must hold the lock. A delayed message only goes first if it's
+     * strictly earlier.
+     */
+    private MessageExt peekFirst(int priority) {
+        final MessageExt ready = mReadyLists[priority].peekFirst();
+        final TimerQueue timerQueue = mTimerQueues[priority];
+        final MessageExt timed = (null == timerQueue ? null : timerQueue.peekFirst());
+        if (null == ready) {
+            return timed;
+        }
+        if (null == timed || ready.when <= timed.when) {
+            return ready;
+        }
+        return timed;
+    }
+
+    /** Returns the priority whose first message is the earliest, -1 if empty, must hold mLock */
+    private int earliestLane() {
+        int lane = -1;
+        long earliest = 0;
+        for (int i = 0; i < PRIORITIES; ++i) {
+            final MessageExt first = peekFirst(i);
+            if (null != first && (lane < 0 || first.when < earliest)) {
+                lane = i;
+                earliest = first.when;
+            }
+        }
+        return lane;
+    }
+
+    /**
+     * Returns the priority of the next message to dispatch, -1 if none is
+     * due, must hold mLock. It is the highest priority with a due message,
+     * unless some due message has waited longer than the aging limit, then
+     * the oldest of those goes first, so lower priorities are never starved.
+     * A first message is due once its slack window is open, so the looper
+     * woken up for one deadline takes the others within their slack.
+     */
+    private int dueLane(long now) {
+        final long aging = mAgingNanos;
+        int highest = -1;
+        int aged = -1;
+        long agedWhen = 0;
+        for (int i = 0; i < PRIORITIES; ++i) {
+            final MessageExt first = peekFirst(i);
+            if (null == first || first.when - first.slack > now) {
+                continue;
+            }
+            if (highest < 0) {
+                highest = i;
+            }
+            final long when = first.when - first.slack;
+            if (now - when >= aging && (aged < 0 || when < agedWhen)) {
+                aged = i;
+                agedWhen = when;
+            }
+        }
+        return aged >= 0 ? aged : highest;
+    }
+
+    /** Removes the message returned by peekFirst(priority), must hold mLock */
+    private MessageExt removeFirst(int priority) {
+        final MessageExt first = peekFirst(priority);
+        final MessageList ready = mReadyLists[priority];
+        if (first == ready.peekFirst()) {
+            ready.removeFirst();
+        } else {
+            mTimerQueues[priority].removeFirst();
+        }
+        unindex(first);
+        return first;
+    }
+
+    /** Removes a message from the index and the coalescing map, must hold mLock */
+    private void unindex(MessageExt m) {
+        mIndex.remove(m);
+        if (null != m.coalesceEntry) {
+            mCoalesced.remove(m.coalesceEntry);
+            m.coalesceEntry = null;
         }
     }
 }
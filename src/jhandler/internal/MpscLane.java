@@ -0,0 +1,77 @@
+package jhandler.internal;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import jhandler.Message;
+
+/**
+ * Lock-free multi-producer single-consumer FIFO of messages, linked through
+ * <code>MessageExt.laneNext</code> (Vyukov's intrusive queue).
+ *
+ * <p> {@link #offer} may be called from any thread. {@link #poll} and
+ * {@link #isEmpty} must only be called by one consumer at a time.
+ */
+final class MpscLane {
+    private final MessageExt mStub = new MessageExt(null, (Message) null, 0);
+    private final AtomicReference<MessageExt> mTail = new AtomicReference<MessageExt>(mStub);
+    private MessageExt mHead = mStub; // consumer only
+
+    /** Appends a message, wait-free */
+    void offer(MessageExt msg) {
+        msg.laneNext = null;
+        final MessageExt prev = mTail.getAndSet(msg);
+        prev.laneNext = msg;
+    }
+
+    /**
+     * Appends a chain of messages already linked through <code>laneNext</code>
+     * from first to last, with a single atomic swap
+     */
+    void offerAll(MessageExt first, MessageExt last) {
+        last.laneNext = null;
+        final MessageExt prev = mTail.getAndSet(last);
+        prev.laneNext = first;
+    }
+
+    /**
+     * Removes and returns the first message, or null if the lane is empty or
+     * the producer of the first message has not finished linking it yet.
+     */
+    MessageExt poll() {
+        MessageExt head = mHead;
+        MessageExt next = head.laneNext;
+        if (head == mStub) {
+            if (null == next) {
+                return null;
+            }
+            mHead = next;
+            head = next;
+            next = next.laneNext;
+        }
+
+        if (null != next) {
+            mHead = next;
+            head.laneNext = null;
+            return head;
+        }
+
+        if (head != mTail.get()) {
+            return null; // a producer is in the middle of offer()
+        }
+
+        // head is the last message, put the stub behind it so it can be taken
+        offer(mStub);
+        next = head.laneNext;
+        if (null != next) {
+            mHead = next;
+            head.laneNext = null;
+            return head;
+        }
+        return null;
+    }
+
+    /** Checks if nothing has been offered since the lane was last drained */
+    boolean isEmpty() {
+        return mHead == mStub && mTail.get() == mStub;
+    }
+}
@@ -0,0 +1,99 @@
+package jhandler.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jhandler.Handler;
+
+/**
+ * Bounded multi-producer single-consumer ring of integer-only messages, laid
+ * out as a struct of arrays, so sending one allocates nothing and the looper
+ * reads them sequentially (Vyukov's bounded queue).
+ *
+ * <p> {@link #offer} may be called from any thread. {@link #poll} and
+ * {@link #isEmpty} must only be called by the looper.
+ */
+final class PrimitiveRing {
+    /** The number of slots, a power of 2 */
+    static final int CAPACITY = 4096;
+
+    private final int mMask = CAPACITY - 1;
+
+    // The position a slot is free for, or the position + 1 once published
+    private final AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);
+    private final Handler[] mTargets = new Handler[CAPACITY];
+    private final int[] mWhats = new int[CAPACITY];
+    private final long[] mPayloads = new long[CAPACITY];
+    private final byte[] mKinds = new byte[CAPACITY];
+
+    private final AtomicLong mTail = new AtomicLong(0); // next position to claim
+    private long mHead = 0; // consumer only
+
+    PrimitiveRing() {
+        for (int i = 0; i < CAPACITY; ++i) {
+            mSequences.lazySet(i, i);
+        }
+    }
+
+    /** Packs two ints into a payload of kind MessageExt.RING_INTS */
+    static long pack(int arg1, int arg2) {
+        return ((long) arg1 << 32) | (arg2 & 0xffffffffL);
+    }
+
+    /** Appends a message, returns false if the ring is full */
+    boolean offer(Handler target, int what, long payload, byte kind) {
+        long pos = mTail.get();
+        while (true) {
+            final int i = (int) pos & mMask;
+            final long dif = mSequences.get(i) - pos;
+            if (0 == dif) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    mTargets[i] = target;
+                    mWhats[i] = what;
+                    mPayloads[i] = payload;
+                    mKinds[i] = kind;
+                    // a volatile write, it must not be reordered with the read of the wait state in wake()
+                    mSequences.set(i, pos + 1);
+                    return true;
+                }
+                pos = mTail.get();
+            } else if (dif < 0) {
+                return false; // the looper hasn't freed the slot of the previous lap
+            } else {
+                pos = mTail.get(); // claimed by another producer
+            }
+        }
+    }
+
+    /** Checks if the next message is published */
+    boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+
+    /**
+     * Takes the next published message into a node reused by the looper,
+     * returns false if there is none.
+     */
+    boolean poll(MessageExt into) {
+        final long head = mHead;
+        final int i = (int) head & mMask;
+        if (mSequences.get(i) != head + 1) {
+            return false;
+        }
+        fill(into, mTargets[i], mWhats[i], mPayloads[i], mKinds[i]);
+        mTargets[i] = null;
+        mSequences.lazySet(i, head + CAPACITY); // free for the next lap
+        mHead = head + 1;
+        return true;
+    }
+
+    /** Sets a node up as an integer-only message */
+    static void fill(MessageExt into, Handler target, int what, long payload, byte kind) {
+        into.target = target;
+        into.ringKind = kind;
+        into.ringPayload = payload;
+        into.message.what = what;
+        into.message.arg1 = (int) (payload >>> 32);
+        into.message.arg2 = (int) payload;
+    }
+}
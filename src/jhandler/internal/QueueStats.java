@@ -0,0 +1,30 @@
+package jhandler.internal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a MessageQueue, only installed while metrics are enabled so a
+ * queue without metrics pays a single volatile read per operation.
+ */
+public final class QueueStats {
+    /** Messages accepted by the queue, including the quit message */
+    public final LongAdder enqueued = new LongAdder();
+
+    /** Messages removed by removeMessages() / removeCallbacks() before dispatch */
+    public final LongAdder removed = new LongAdder();
+
+    /** Coalesced messages merged into a pending one instead of being queued */
+    public final LongAdder coalesced = new LongAdder();
+
+    /** Messages refused by a full bounded queue */
+    public final LongAdder rejected = new LongAdder();
+
+    /** Messages dropped by a full bounded queue, the incoming or the oldest ones */
+    public final LongAdder dropped = new LongAdder();
+
+    /** Messages dropped at dispatch because their deadline had passed */
+    public final LongAdder expired = new LongAdder();
+
+    /** Messages dropped at dispatch because they were later than the maximum lag */
+    public final LongAdder shed = new LongAdder();
+}
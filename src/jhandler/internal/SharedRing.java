@@ -0,0 +1,300 @@
+package jhandler.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer single-consumer ring of messages in a memory-mapped file,
+ * shared by two processes of the host. The writer and the reader each hold a
+ * file lock on their role, so there is one of each at most, and the OS
+ * releases the role of a crashed process.
+ *
+ * <p> The header keeps the position of the reader (head) and of the writer
+ * (tail) on separate cache lines. A record is written in full before the tail
+ * is moved past it, and read in full before the head is, so a process
+ * restarting after a crash resumes from the last published position: a torn
+ * record is never seen, and a record read but not yet acknowledged is read
+ * again.
+ *
+ * <p> Java 8 has no fences for mapped memory, so {@link #fence()} is made of a
+ * volatile write and read, which order the plain accesses around them.
+ */
+public final class SharedRing implements Closeable {
+    /** Receives the records of {@link #read} */
+    public interface RecordReader {
+        /**
+         * Called for each record, obj is a view of the mapping, valid until it
+         * returns, or null for a null obj
+         *
+         * @return false to leave the record unacknowledged, it is read again next time
+         */
+        boolean onRecord(int what, int arg1, int arg2, ByteBuffer obj);
+    }
+
+    private static final int MAGIC = 0x4a485231; // "JHR1"
+    private static final int VERSION = 1;
+    private static final int CAPACITY_AT = 8;
+    private static final int HEAD_AT = 64;
+    private static final int TAIL_AT = 128;
+    private static final int DATA_AT = 192;
+
+    // Record: long position, int size (or PADDING), what, arg1, arg2, int obj length (-1 for null), obj
+    private static final int RECORD_HEADER = 32; // aligned to 8
+    private static final int PADDING = -1;
+
+    // How long an idle side parks between polls, the other process can't unpark it
+    private static final long POLL_NANOS = 50000;
+
+    // The role locks, and the lock initializing a new file
+    private static final long WRITER_LOCK = 0;
+    private static final long READER_LOCK = 1;
+    private static final long INIT_LOCK = 2;
+
+    private static volatile int sFence;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final FileLock mRole;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final boolean mWriter;
+    private long mPosition; // the tail of the writer, the head of the reader
+
+    private SharedRing(File file, int capacity, boolean writer) throws IOException {
+        if (capacity < 4 * RECORD_HEADER || capacity % 8 != 0) {
+            throw new IllegalArgumentException("capacity must be a multiple of 8, at least " + 4 * RECORD_HEADER);
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mWriter = writer;
+        try {
+            mRole = tryLock(writer ? WRITER_LOCK : READER_LOCK);
+            if (null == mRole) {
+                throw new IOException((writer ? "Another writer" : "Another reader") + " has the ring " + file);
+            }
+
+            final FileLock init = mChannel.lock(INIT_LOCK, 1, false);
+            try {
+                if (mFile.length() < DATA_AT) {
+                    mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_AT + capacity);
+                    mBuffer.putInt(4, VERSION);
+                    mBuffer.putInt(CAPACITY_AT, capacity);
+                    mBuffer.putLong(HEAD_AT, 0);
+                    mBuffer.putLong(TAIL_AT, 0);
+                    fence();
+                    mBuffer.putInt(0, MAGIC);
+                    mBuffer.force();
+                } else {
+                    mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mFile.length());
+                    if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+                        throw new IOException("Not a message ring: " + file);
+                    }
+                }
+            } finally {
+                init.release();
+            }
+
+            mCapacity = mBuffer.getInt(CAPACITY_AT); // the one of the file wins
+            final long head = mBuffer.getLong(HEAD_AT);
+            final long tail = mBuffer.getLong(TAIL_AT);
+            if (head < 0 || head > tail || tail - head > mCapacity) {
+                throw new IOException("Corrupt positions in the ring " + file);
+            }
+            mPosition = writer ? tail : head;
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /** Opens or creates the ring as its writer */
+    public static SharedRing openWriter(File file, int capacity) throws IOException {
+        return new SharedRing(file, capacity, true);
+    }
+
+    /** Opens or creates the ring as its reader */
+    public static SharedRing openReader(File file, int capacity) throws IOException {
+        return new SharedRing(file, capacity, false);
+    }
+
+    private FileLock tryLock(long position) throws IOException {
+        try {
+            return mChannel.tryLock(position, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return null; // held in this process
+        }
+    }
+
+    /** Orders the accesses to the mapping before it with the ones after it */
+    private static void fence() {
+        sFence = 0;
+        if (0 != sFence) {
+            throw new AssertionError();
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * Appends a record, waiting for room with the strategy until the timeout,
+     * writer only.
+     *
+     * @return false on timeout
+     * @throws IllegalArgumentException if the record can't fit in the ring
+     */
+    public boolean write(int what, int arg1, int arg2, byte[] obj, WaitMode strategy, long timeoutNanos) {
+        final int size = align(RECORD_HEADER + (null == obj ? 0 : obj.length));
+        if (size > mCapacity / 2) {
+            throw new IllegalArgumentException("The message is too big for the ring: " + size + " bytes");
+        }
+
+        long pos = mPosition;
+        int offset = (int) (pos % mCapacity);
+        final int skip = (mCapacity - offset < size) ? mCapacity - offset : 0;
+        if (!awaitRoom(pos + skip + size, strategy, timeoutNanos)) {
+            return false;
+        }
+        if (skip > 0) {
+            if (skip >= RECORD_HEADER) {
+                mBuffer.putLong(DATA_AT + offset, pos);
+                mBuffer.putInt(DATA_AT + offset + 8, PADDING);
+            } // else the reader skips it as too small for a record
+            pos += skip;
+            offset = 0;
+        }
+
+        final int at = DATA_AT + offset;
+        mBuffer.putLong(at, pos);
+        mBuffer.putInt(at + 8, size);
+        mBuffer.putInt(at + 12, what);
+        mBuffer.putInt(at + 16, arg1);
+        mBuffer.putInt(at + 20, arg2);
+        if (null == obj) {
+            mBuffer.putInt(at + 24, -1);
+        } else {
+            mBuffer.putInt(at + 24, obj.length);
+            final ByteBuffer out = mBuffer.duplicate();
+            out.position(at + RECORD_HEADER);
+            out.put(obj);
+        }
+
+        fence(); // the record before the tail
+        mPosition = pos + size;
+        mBuffer.putLong(TAIL_AT, mPosition);
+        return true;
+    }
+
+    private boolean awaitRoom(long end, WaitMode strategy, long timeoutNanos) {
+        final long start = TimeUtils.uptimeNanos();
+        while (true) {
+            final long head = mBuffer.getLong(HEAD_AT);
+            fence(); // the head before overwriting what it frees
+            if (end - head <= mCapacity) {
+                return true;
+            }
+            final long waited = TimeUtils.uptimeNanos() - start;
+            if (waited >= timeoutNanos) {
+                return false;
+            }
+            idle(strategy, waited);
+        }
+    }
+
+    /**
+     * Passes up to max published records to the reader in order, then
+     * acknowledges those it took, reader only. It stops at the first record
+     * the reader refuses.
+     *
+     * @return The number of records taken
+     */
+    public int read(RecordReader reader, int max) {
+        final long tail = mBuffer.getLong(TAIL_AT);
+        fence(); // the tail before the records
+        final long start = mPosition;
+        int n = 0;
+        while (mPosition < tail && n < max) {
+            final int offset = (int) (mPosition % mCapacity);
+            if (mCapacity - offset < RECORD_HEADER) {
+                mPosition += mCapacity - offset;
+                continue;
+            }
+            final int at = DATA_AT + offset;
+            if (mBuffer.getLong(at) != mPosition) {
+                throw new IllegalStateException("Corrupt record at " + mPosition);
+            }
+            final int size = mBuffer.getInt(at + 8);
+            if (PADDING == size) {
+                mPosition += mCapacity - offset;
+                continue;
+            }
+
+            final int length = mBuffer.getInt(at + 24);
+            ByteBuffer obj = null;
+            if (length >= 0) {
+                obj = mBuffer.duplicate();
+                obj.limit(at + RECORD_HEADER + length).position(at + RECORD_HEADER);
+            }
+            if (!reader.onRecord(mBuffer.getInt(at + 12), mBuffer.getInt(at + 16), mBuffer.getInt(at + 20), obj)) {
+                break;
+            }
+            mPosition += size;
+            ++n;
+        }
+
+        if (mPosition != start) {
+            fence(); // done with the records before freeing them
+            mBuffer.putLong(HEAD_AT, mPosition);
+        }
+        return n;
+    }
+
+    /**
+     * Waits a little while the other side has nothing for this one. A parking
+     * strategy parks for a short poll interval, nobody can unpark it.
+     *
+     * @param idleNanos How long it has been idle, for the spinning budget
+     */
+    public static void idle(WaitMode strategy, long idleNanos) {
+        switch (strategy.kind) {
+        case WaitMode.SPIN:
+            return;
+        case WaitMode.YIELD:
+            Thread.yield();
+            return;
+        case WaitMode.SPIN_THEN_PARK:
+            if (idleNanos < strategy.spinNanos) {
+                return;
+            }
+            LockSupport.parkNanos(POLL_NANOS);
+            return;
+        default:
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+
+    /** Checks if this side is the writer */
+    public boolean isWriter() {
+        return mWriter;
+    }
+
+    /** Gives the role up and unmaps the file, the positions stay in it */
+    @Override
+    public void close() throws IOException {
+        mBuffer.force();
+        mRole.release();
+        mFile.close();
+    }
+}
@@ -1,16 +1,34 @@
 package jhandler.internal;
 
-import java.lang.management.ManagementFactory;
-import java.lang.management.RuntimeMXBean;
-
 /**
  * Utility class for time related functions.
  * 
+ * <p> The uptime is read from <code>System.nanoTime()</code>, which is
+ * monotonic and cheap, with the origin moved to the loading of this class so
+ * it stays positive and never wraps.
+ * 
  * @author Dagang Wei
  */
 public class TimeUtils {
+    private static final long sOrigin = System.nanoTime();
+
+    /** Returns the uptime in milliseconds */
     public static long uptime() {
-        RuntimeMXBean rb = ManagementFactory.getRuntimeMXBean();
-        return rb.getUptime();
+        return uptimeNanos() / 1000000L;
+    }
+
+    /** Returns the uptime in nanoseconds */
+    public static long uptimeNanos() {
+        return System.nanoTime() - sOrigin;
+    }
+
+    /** Adds a delay to a time, saturating instead of overflowing */
+    public static long add(long time, long delay) {
+        final long sum = time + delay;
+        // overflow iff both operands have the same sign and the sum's differs
+        if (((time ^ sum) & (delay ^ sum)) < 0) {
+            return delay > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        return sum;
     }
 }
@@ -0,0 +1,56 @@
+package jhandler.internal;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Structure holding the pending messages of a message queue, ordered by
+ * <code>MessageExt.when</code>. Messages with the same "when" come out in the
+ * order they were added.
+ * 
+ * <p> Implementations are not thread safe, the owning MessageQueue guards every
+ * call with its own lock. An instance must not be shared between loopers.
+ */
+public interface TimerQueue {
+    /** Creates the timer queues of a message queue, one per priority lane. */
+    interface Factory {
+        TimerQueue create();
+    }
+
+    /**
+     * Returns the number of messages in this queue.
+     * 
+     * @return The number of messages in this queue
+     */
+    int size();
+
+    /**
+     * Adds a message to this queue.
+     * 
+     * @param msg The message
+     */
+    void add(MessageExt msg);
+
+    /**
+     * Retrieves, but does not remove, the earliest message or null if this
+     * queue is empty.
+     * 
+     * @return The earliest message or null if this queue is empty
+     */
+    MessageExt peekFirst();
+
+    /**
+     * Removes and returns the earliest message.
+     * 
+     * @return The removed earliest message
+     * @throws NoSuchElementException if this queue is empty
+     */
+    MessageExt removeFirst();
+
+    /**
+     * Removes a message from this queue.
+     * 
+     * @param msg The message
+     * @return true - removed, false - the message is not in this queue
+     */
+    boolean remove(MessageExt msg);
+}
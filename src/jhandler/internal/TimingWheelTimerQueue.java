@@ -0,0 +1,222 @@
+package jhandler.internal;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timing wheel, suited to huge numbers of short timeouts.
+ *
+ * <p> The wheel has 4 levels of 64 buckets. A message lands on the level of the
+ * highest tick digit in which it differs from the current tick, so adding or
+ * removing one is O(1). When the current tick reaches a bucket, its messages cascade down to
+ * lower levels, and the messages of the current tick are moved to a small heap
+ * which hands them out in exact "when" / insertion order. Messages beyond the
+ * span of the wheel (64^4 ticks) wait in an overflow heap.
+ */
+public class TimingWheelTimerQueue implements TimerQueue {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long mTickDuration;
+
+    private final MessageExt[] mHeads = new MessageExt[LEVELS * SLOTS];
+    private final MessageExt[] mTails = new MessageExt[LEVELS * SLOTS];
+    private final long[] mOccupied = new long[LEVELS]; // one bit per bucket
+
+    // Messages whose tick is not after the current tick.
+    private final HeapTimerQueue mDue = new HeapTimerQueue();
+
+    // Messages too far ahead to fit in the wheel.
+    private final HeapTimerQueue mOverflow = new HeapTimerQueue();
+
+    private boolean mStarted = false;
+    private long mCurrentTick;
+    private int mWheelSize = 0;
+    private long mSequence = 0;
+
+    /** Creates a wheel ticking every millisecond. */
+    public TimingWheelTimerQueue() {
+        this(1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration The duration of one tick
+     * @param unit The unit of tickDuration
+     */
+    public TimingWheelTimerQueue(long tickDuration, TimeUnit unit) {
+        this(unit.toNanos(tickDuration));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration The duration of one tick, in the unit of
+     *            <code>MessageExt.when</code> (nanoseconds)
+     */
+    public TimingWheelTimerQueue(long tickDuration) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        mTickDuration = tickDuration;
+    }
+
+    /**
+     * Returns a factory of wheels ticking every tickDuration.
+     *
+     * @param tickDuration The duration of one tick in nanoseconds
+     */
+    public static TimerQueue.Factory factory(final long tickDuration) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        return new TimerQueue.Factory() {
+            @Override
+            public TimerQueue create() {
+                return new TimingWheelTimerQueue(tickDuration);
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return mDue.size() + mWheelSize + mOverflow.size();
+    }
+
+    @Override
+    public void add(MessageExt msg) {
+        msg.seq = mSequence++;
+        if (!mStarted) {
+            mCurrentTick = tickOf(msg.when);
+            mStarted = true;
+        }
+        place(msg);
+    }
+
+    @Override
+    public MessageExt peekFirst() {
+        if (mDue.size() == 0) {
+            advance();
+        }
+        return mDue.peekFirst();
+    }
+
+    @Override
+    public MessageExt removeFirst() {
+        if (null == peekFirst()) {
+            throw new NoSuchElementException();
+        }
+        return mDue.removeFirst();
+    }
+
+    @Override
+    public boolean remove(MessageExt msg) {
+        if (msg.bucket >= 0) {
+            unlink(msg);
+            return true;
+        }
+        return mDue.remove(msg) || mOverflow.remove(msg);
+    }
+
+    private long tickOf(long when) {
+        return Math.floorDiv(when, mTickDuration);
+    }
+
+    private void place(MessageExt msg) {
+        final long tick = tickOf(msg.when);
+        if (tick <= mCurrentTick) {
+            mDue.offer(msg);
+            return;
+        }
+
+        final int level = (63 - Long.numberOfLeadingZeros(tick ^ mCurrentTick)) / SLOT_BITS;
+        if (level >= LEVELS) {
+            mOverflow.offer(msg);
+            return;
+        }
+
+        final int slot = (int) (tick >>> (level * SLOT_BITS)) & (SLOTS - 1);
+        final int bucket = level * SLOTS + slot;
+        msg.bucket = bucket;
+        msg.next = null;
+        msg.prev = mTails[bucket];
+        if (null == msg.prev) {
+            mHeads[bucket] = msg;
+        } else {
+            msg.prev.next = msg;
+        }
+        mTails[bucket] = msg;
+        mOccupied[level] |= 1L << slot;
+        ++mWheelSize;
+    }
+
+    private void unlink(MessageExt msg) {
+        final int bucket = msg.bucket;
+        if (null == msg.prev) {
+            mHeads[bucket] = msg.next;
+        } else {
+            msg.prev.next = msg.next;
+        }
+        if (null == msg.next) {
+            mTails[bucket] = msg.prev;
+        } else {
+            msg.next.prev = msg.prev;
+        }
+        if (null == mHeads[bucket]) {
+            mOccupied[bucket / SLOTS] &= ~(1L << (bucket % SLOTS));
+        }
+        msg.prev = null;
+        msg.next = null;
+        msg.bucket = -1;
+        --mWheelSize;
+    }
+
+    /** Moves the current tick forward until some messages are due or the queue is empty. */
+    private void advance() {
+        while (mDue.size() == 0) {
+            int level = 0;
+            while (level < LEVELS && mOccupied[level] == 0) {
+                ++level;
+            }
+
+            if (level == LEVELS) {
+                if (mOverflow.size() == 0) {
+                    return;
+                }
+                // jump to the earliest overflowed message and pull in what now fits
+                mCurrentTick = tickOf(mOverflow.peekFirst().when);
+                while (mOverflow.size() > 0 && fits(mOverflow.peekFirst())) {
+                    place(mOverflow.removeFirst());
+                }
+                continue;
+            }
+
+            // the lowest occupied bucket of the lowest occupied level is the earliest
+            final int slot = Long.numberOfTrailingZeros(mOccupied[level]);
+            final int shift = level * SLOT_BITS;
+            final long upper = ~((1L << (shift + SLOT_BITS)) - 1);
+            mCurrentTick = (mCurrentTick & upper) | ((long) slot << shift);
+
+            final int bucket = level * SLOTS + slot;
+            MessageExt m = mHeads[bucket];
+            mHeads[bucket] = null;
+            mTails[bucket] = null;
+            mOccupied[level] &= ~(1L << slot);
+            while (m != null) {
+                final MessageExt next = m.next;
+                m.prev = null;
+                m.next = null;
+                m.bucket = -1;
+                --mWheelSize;
+                place(m); // cascades to a lower level or becomes due
+                m = next;
+            }
+        }
+    }
+
+    private boolean fits(MessageExt msg) {
+        return (tickOf(msg.when) ^ mCurrentTick) >>> (LEVELS * SLOT_BITS) == 0;
+    }
+}
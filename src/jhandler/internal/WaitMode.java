@@ -0,0 +1,46 @@
+package jhandler.internal;
+
+/**
+ * How a thread waits for work, the form of <code>jhandler.WaitStrategy</code>
+ * read by the message queues and the shared rings.
+ */
+public final class WaitMode {
+    static final int PARK = 0;
+    static final int SPIN = 1;
+    static final int YIELD = 2;
+    static final int SPIN_THEN_PARK = 3;
+
+    public static final WaitMode BLOCKING = new WaitMode(PARK, 0);
+    public static final WaitMode BUSY_SPIN = new WaitMode(SPIN, 0);
+    public static final WaitMode YIELDING = new WaitMode(YIELD, 0);
+
+    final int kind;
+    final long spinNanos;
+
+    private WaitMode(int kind, long spinNanos) {
+        this.kind = kind;
+        this.spinNanos = spinNanos;
+    }
+
+    /** Spins for up to spinNanos, then parks */
+    public static WaitMode spinThenPark(long spinNanos) {
+        if (spinNanos < 0) {
+            throw new IllegalArgumentException("spinNanos must not be negative");
+        }
+        return 0 == spinNanos ? BLOCKING : new WaitMode(SPIN_THEN_PARK, spinNanos);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+        case SPIN:
+            return "BUSY_SPIN";
+        case YIELD:
+            return "YIELDING";
+        case SPIN_THEN_PARK:
+            return "SPIN_THEN_PARK(" + spinNanos + "ns)";
+        default:
+            return "BLOCKING";
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package jhandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HandlerTest {
+    private Looper mLooper;
+
+    /** Runs a looper on a new thread and returns a handler calling back the consumer */
+    private Handler startLooper(final Consumer<Message> consumer) throws InterruptedException {
+        final AtomicReference<Handler> handler = new AtomicReference<Handler>();
+        final AtomicReference<Looper> looper = new AtomicReference<Looper>();
+        final CountDownLatch ready = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                Looper.prepare();
+                looper.set(Looper.myLooper());
+                handler.set(new Handler() {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        consumer.accept(msg);
+                    }
+                });
+                ready.countDown();
+                Looper.loop();
+            }
+        };
+        t.start();
+        ready.await();
+        mLooper = looper.get();
+        return handler.get();
+    }
+
+    @Test
+    public void testNanosecondDeadlines() throws InterruptedException {
+        final List<Long> fired = new ArrayList<Long>();
+        final CountDownLatch done = new CountDownLatch(3);
+        final Handler handler = startLooper(new Consumer<Message>() {
+            @Override
+            public void accept(Message msg) {
+                fired.add(SystemClock.uptimeNanos());
+                done.countDown();
+            }
+        });
+
+        final long start = SystemClock.uptimeNanos();
+        handler.sendMessageAtTime(Message.obtain(3), start + TimeUnit.MICROSECONDS.toNanos(600), TimeUnit.NANOSECONDS);
+        handler.sendMessageDelayed(Message.obtain(2), 400, TimeUnit.MICROSECONDS);
+        handler.sendEmptyMessageDelayed(1, 200, TimeUnit.MICROSECONDS);
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        mLooper.quit();
+
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertTrue(fired.get(i) - start >= TimeUnit.MICROSECONDS.toNanos(200 * (i + 1)));
+        }
+    }
+
+    @Test
+    public void testHugeDelayDoesNotFireEarly() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler handler = startLooper(new Consumer<Message>() {
+            @Override
+            public void accept(Message msg) {
+                Assert.assertEquals(1, msg.what);
+                done.countDown();
+            }
+        });
+
+        // the deadline saturates instead of overflowing into the past
+        handler.sendEmptyMessageDelayed(0, Long.MAX_VALUE, TimeUnit.DAYS);
+        handler.sendEmptyMessage(1);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(handler.hasMessages(0));
+        mLooper.quit();
+    }
+
+    @Test
+    public void testSendMessagesAndPostAll() throws InterruptedException {
+        final List<Integer> handled = new ArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler handler = startLooper(new Consumer<Message>() {
+            @Override
+            public void accept(Message msg) {
+                handled.add(msg.what);
+            }
+        });
+
+        List<Message> msgs = new ArrayList<Message>();
+        for (int i = 0; i < 1000; ++i) {
+            msgs.add(Message.obtain(i));
+        }
+        Assert.assertTrue(handler.sendMessages(msgs));
+
+        try {
+            handler.sendMessages(Arrays.asList(Message.obtain(-1), msgs.get(0)));
+            Assert.fail("sent a queued message twice");
+        } catch (IllegalStateException e) {
+        }
+
+        Runnable last = new Runnable() {
+            @Override
+            public void run() {
+                handled.add(-2);
+                done.countDown();
+            }
+        };
+        Assert.assertTrue(handler.postAll(Arrays.asList(new Runnable() {
+            @Override
+            public void run() {
+                handled.add(1000);
+            }
+        }, last)));
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        mLooper.quit();
+        Assert.assertEquals(1002, handled.size());
+        for (int i = 0; i <= 1000; ++i) {
+            Assert.assertEquals(i, (int) handled.get(i));
+        }
+    }
+
+    @Test
+    public void testWaitStrategies() throws InterruptedException {
+        final WaitStrategy[] strategies = { WaitStrategy.BLOCKING, WaitStrategy.BUSY_SPIN, WaitStrategy.YIELDING,
+                WaitStrategy.spinThenPark(100, TimeUnit.MICROSECONDS) };
+        for (WaitStrategy strategy : strategies) {
+            final int N = 200;
+            final CountDownLatch done = new CountDownLatch(N + 1);
+            final Handler handler = startLooper(new Consumer<Message>() {
+                @Override
+                public void accept(Message msg) {
+                    done.countDown();
+                }
+            });
+            mLooper.setWaitStrategy(strategy);
+
+            // a timer must fire while the looper waits, whatever the strategy
+            handler.sendEmptyMessageDelayed(1, 2, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < N; ++i) {
+                handler.sendEmptyMessage(0);
+                if (i % 50 == 0) {
+                    Thread.sleep(1); // let the looper go idle
+                }
+            }
+            Assert.assertTrue(strategy.toString(), done.await(10, TimeUnit.SECONDS));
+            mLooper.quit();
+        }
+    }
+
+    @Test
+    public void testSendMessageCoalesced() throws InterruptedException {
+        final List<Integer> handled = new ArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(2);
+        final Handler handler = startLooper(new Consumer<Message>() {
+            @Override
+            public void accept(Message msg) {
+                handled.add(msg.what * 10000 + msg.arg1);
+                done.countDown();
+            }
+        });
+
+        // latest wins, in place
+        for (int i = 0; i < 1000; ++i) {
+            handler.sendMessageCoalesced(Message.obtain(1, i, 0), "latest", 500, TimeUnit.MILLISECONDS, false, null);
+        }
+        // merged by the merger, summing up arg1
+        for (int i = 0; i < 1000; ++i) {
+            handler.sendMessageCoalesced(Message.obtain(2, 1, 0), "sum", 500, TimeUnit.MILLISECONDS, false,
+                    new MessageMerger() {
+                        @Override
+                        public void merge(Message pending, Message incoming) {
+                            pending.arg1 += incoming.arg1;
+                        }
+                    });
+        }
+        Assert.assertTrue(handler.hasMessages(1));
+        Assert.assertTrue(handler.hasMessages(2));
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(Arrays.asList(10999, 21000), handled);
+    }
+
+    @Test
+    public void testDebounceAndThrottle() throws InterruptedException {
+        final AtomicInteger debounced = new AtomicInteger();
+        final AtomicInteger throttled = new AtomicInteger();
+        final Handler handler = startLooper(new Consumer<Message>() {
+            @Override
+            public void accept(Message msg) {
+                (msg.what == 1 ? debounced : throttled).incrementAndGet();
+            }
+        });
+
+        final long start = SystemClock.uptimeNanos();
+        while (SystemClock.uptimeNanos() - start < TimeUnit.MILLISECONDS.toNanos(300)) {
+            handler.debounce(1, 100, TimeUnit.MILLISECONDS);
+            handler.throttle(2, 100, TimeUnit.MILLISECONDS);
+            Thread.sleep(1);
+        }
+        Thread.sleep(300);
+
+        Assert.assertEquals(1, debounced.get());
+        // one right away, then one at the end of each interval
+        Assert.assertTrue(String.valueOf(throttled.get()), throttled.get() >= 2 && throttled.get() <= 5);
+    }
+
+    @Test
+    public void testSubmitAndContinueOnAnotherLooper() throws Exception {
+        final HandlerThread worker = HandlerThread.start("worker");
+        final HandlerThread ui = HandlerThread.start("ui");
+
+        final HandlerFuture<String> future = worker.getHandler().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return Thread.currentThread().getName();
+            }
+        });
+        Assert.assertEquals("worker", future.get(10, TimeUnit.SECONDS));
+
+        final String hopped = future.thenApplyOn(ui.getHandler(), new Function<String, String>() {
+            @Override
+            public String apply(String from) {
+                return from + " -> " + Thread.currentThread().getName();
+            }
+        }).thenApplyOn(worker.getHandler(), new Function<String, String>() {
+            @Override
+            public String apply(String from) {
+                return from + " -> " + Thread.currentThread().getName();
+            }
+        }).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals("worker -> ui -> worker", hopped);
+
+        final HandlerFuture<String> failed = worker.getHandler().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("boom");
+            }
+        });
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        final HandlerFuture<Void> skipped = failed.thenRunOn(ui.getHandler(), new Runnable() {
+            @Override
+            public void run() {
+                Assert.fail();
+            }
+        });
+        try {
+            skipped.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        worker.quit();
+        worker.join();
+        Assert.assertTrue(worker.getHandler().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return null;
+            }
+        }).isCompletedExceptionally());
+        ui.quit();
+        ui.join();
+    }
+
+    @Test
+    public void testRunWithScissors() throws Exception {
+        final HandlerThread t = HandlerThread.start("looper");
+        final Handler handler = t.getHandler();
+        final AtomicReference<String> ranOn = new AtomicReference<String>();
+
+        Assert.assertTrue(handler.runWithScissors(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread().getName());
+                // inline when already on the looper, instead of deadlocking
+                Assert.assertTrue(handler.runWithScissors(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }, 0, TimeUnit.SECONDS));
+            }
+        }, 10, TimeUnit.SECONDS));
+        Assert.assertEquals("looper", ranOn.get());
+
+        Assert.assertEquals(Integer.valueOf(42), handler.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 42;
+            }
+        }, 10, TimeUnit.SECONDS));
+
+        // times out behind a busy looper, and the task never runs
+        final CountDownLatch release = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final AtomicInteger ran = new AtomicInteger();
+        try {
+            handler.call(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return ran.incrementAndGet();
+                }
+            }, 20, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            // expected
+        }
+        release.countDown();
+        t.quit();
+        t.join();
+        Assert.assertEquals(0, ran.get());
+    }
+
+    @Test
+    public void testCancellableTimeouts() throws InterruptedException {
+        final HandlerThread t = HandlerThread.start("looper");
+        final Handler handler = t.getHandler();
+        final AtomicInteger fired = new AtomicInteger();
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                fired.incrementAndGet();
+            }
+        };
+
+        final List<Cancellable> tokens = new ArrayList<Cancellable>();
+        for (int i = 0; i < 100; ++i) {
+            tokens.add(handler.postDelayedCancellable(timeout, 500, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 1; i < 100; ++i) {
+            Assert.assertTrue(tokens.get(i).cancel());
+        }
+        Assert.assertTrue(handler.hasCallbacks(timeout));
+
+        final CountDownLatch handled = new CountDownLatch(1);
+        final Cancellable fires = handler.sendMessageDelayedCancellable(Message.obtain(1), 0, TimeUnit.MILLISECONDS);
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                handled.countDown();
+            }
+        }, 1000, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(handled.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, fired.get());
+        Assert.assertFalse(tokens.get(0).cancel()); // ran already
+        Assert.assertFalse(fires.cancel());
+        t.quit();
+        t.join();
+    }
+
+    @Test
+    public void testPrimitiveMessages() throws InterruptedException {
+        final int producers = 2;
+        final int N = 20000; // more than the ring holds
+        final int[] expected = new int[producers];
+        final AtomicReference<String> error = new AtomicReference<String>();
+        final CountDownLatch done = new CountDownLatch(producers * N + 2);
+        final List<Long> longs = new ArrayList<Long>();
+        final List<Integer> fallback = new ArrayList<Integer>();
+
+        final HandlerThread t = HandlerThread.start("looper");
+        final Handler handler = new Handler(t.getLooper()) {
+            @Override
+            public void handleMessage(int what, int arg1, int arg2) {
+                if (expected[arg1]++ != arg2) {
+                    error.compareAndSet(null, "producer " + arg1 + " out of order at " + arg2);
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void handleMessage(int what, long payload) {
+                longs.add(payload);
+                done.countDown();
+            }
+        };
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < N; ++i) {
+                        handler.sendMessage(0, producer, i);
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        Assert.assertTrue(handler.sendMessage(1, Long.MAX_VALUE));
+        Assert.assertTrue(handler.sendMessage(1, -1L));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertNull(error.get());
+        Assert.assertEquals(Arrays.asList(Long.MAX_VALUE, -1L), longs);
+
+        // handed to handleMessage(Message) unless overridden
+        final CountDownLatch handled = new CountDownLatch(1);
+        final Handler plain = new Handler(t.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                fallback.add(msg.what);
+                fallback.add(msg.arg1);
+                fallback.add(msg.arg2);
+                handled.countDown();
+            }
+        };
+        plain.sendMessage(7, 8, 9);
+        Assert.assertTrue(handled.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(7, 8, 9), fallback);
+
+        // the Message may be sent on, the queue it goes to recycles it then
+        final CountDownLatch forwarded = new CountDownLatch(1);
+        final List<Integer> received = new ArrayList<Integer>();
+        final Handler target = new Handler(t.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                received.add(msg.what);
+                received.add(msg.arg1);
+                received.add(msg.arg2);
+                forwarded.countDown();
+            }
+        };
+        final Handler forwarder = new Handler(t.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                target.sendMessage(msg);
+            }
+        };
+        Assert.assertTrue(forwarder.sendMessage(4, 5, 6));
+        Assert.assertTrue(forwarded.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(4, 5, 6), received);
+
+        t.quit();
+        t.join();
+        Assert.assertFalse(handler.sendMessage(0, 0, 0));
+    }
+
+    @Test
+    public void testPrimitiveMessagesInFullRing() {
+        final SimulatedLooper sim = SimulatedLooper.prepare();
+        try {
+            final Looper looper = sim.getLooper();
+            looper.setMetricsEnabled(true);
+            final List<String> lines = new ArrayList<String>();
+            looper.setMessageLogging(new Printer() {
+                @Override
+                public void println(String x) {
+                    lines.add(x);
+                }
+            });
+            final AtomicInteger handled = new AtomicInteger();
+            final Handler handler = new Handler(looper) {
+                @Override
+                public void handleMessage(int what, int arg1, int arg2) {
+                    handled.incrementAndGet();
+                }
+            };
+
+            // nobody takes from the ring meanwhile, the looper runs on this thread
+            looper.setCapacity(1, OverflowPolicy.REJECT);
+            int sent = 0;
+            while (handler.sendMessage(1, sent, 0)) {
+                ++sent;
+            }
+            Assert.assertEquals(1, looper.getMetrics().getRejectedCount());
+            looper.setCapacity(1, OverflowPolicy.DROP_NEWEST);
+            Assert.assertTrue(handler.sendMessage(1, 0, 0));
+            Assert.assertEquals(1, looper.getMetrics().getDroppedCount());
+
+            Assert.assertEquals(sent, sim.runUntilIdle());
+            Assert.assertEquals(sent, handled.get());
+            Assert.assertEquals(sent, looper.getMetrics().getDispatchedCount());
+            Assert.assertEquals(2 * sent, lines.size());
+        } finally {
+            sim.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package jhandler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class HandlerThreadTest {
+    private static void checkRoundTrip(HandlerThread t) throws InterruptedException {
+        Assert.assertNotNull(t.getLooper());
+        Assert.assertSame(t.getThread(), t.getLooper().getThread());
+        Assert.assertFalse(t.getLooper().isCurrentThread());
+
+        final AtomicReference<Thread> ran = new AtomicReference<Thread>();
+        final CountDownLatch done = new CountDownLatch(1);
+        // a handler created from a foreign thread, bound to the looper
+        final Handler handler = new Handler(t.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                ran.set(Thread.currentThread());
+                done.countDown();
+            }
+        };
+        handler.sendMessageDelayed(Message.obtain(1), 1, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertSame(t.getThread(), ran.get());
+
+        t.quit();
+        t.join();
+        Assert.assertFalse(t.getThread().isAlive());
+    }
+
+    @Test
+    public void testPlatformThread() throws InterruptedException {
+        HandlerThread t = HandlerThread.start("looper");
+        Assert.assertEquals("looper", t.getThread().getName());
+        checkRoundTrip(t);
+    }
+
+    @Test
+    public void testVirtualThread() throws InterruptedException {
+        HandlerThread t;
+        try {
+            t = HandlerThread.startVirtual("virtual-looper");
+        } catch (UnsupportedOperationException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        checkRoundTrip(t);
+    }
+
+    @Test
+    public void testPostToDefaultHandler() throws InterruptedException {
+        HandlerThread t = HandlerThread.start("looper");
+        final CountDownLatch done = new CountDownLatch(1);
+        t.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        t.quit();
+        t.join();
+    }
+}
@@ -0,0 +1,475 @@
+package jhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LooperExecutorTest {
+    @Test
+    public void testScheduleAndInvokeAll() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        final ScheduledFuture<String> delayed = executor.schedule(new Callable<String>() {
+            @Override
+            public String call() {
+                Assert.assertTrue(executor.getLooper().isCurrentThread());
+                return "delayed";
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("submitted", executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "submitted";
+            }
+        }).get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("delayed", delayed.get(10, TimeUnit.SECONDS));
+
+        final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 100; ++i) {
+            final int n = i;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return n * n;
+                }
+            });
+        }
+        final List<Future<Integer>> results = executor.invokeAll(tasks);
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertEquals(i * i, results.get(i).get().intValue());
+        }
+
+        // cancelled before it is due, it never runs
+        final AtomicInteger ran = new AtomicInteger(0);
+        final ScheduledFuture<?> cancelled = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(cancelled.cancel(false));
+        Thread.sleep(200);
+        Assert.assertEquals(0, ran.get());
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPeriodicTasks() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        final CountDownLatch rate = new CountDownLatch(5);
+        final CountDownLatch delay = new CountDownLatch(5);
+        final ScheduledFuture<?> atFixedRate = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                rate.countDown();
+            }
+        }, 0, 5, TimeUnit.MILLISECONDS);
+        final ScheduledFuture<?> withFixedDelay = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                delay.countDown();
+            }
+        }, 1, 5, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(rate.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(delay.await(10, TimeUnit.SECONDS));
+
+        // cancelling stops the ticks
+        final AtomicInteger ticks = new AtomicInteger(0);
+        final ScheduledFuture<?> counted = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                ticks.incrementAndGet();
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(atFixedRate.cancel(false));
+        while (ticks.get() < 3) {
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(counted.cancel(false));
+        Thread.sleep(20);
+        final int stopped = ticks.get();
+        Thread.sleep(50);
+        Assert.assertEquals(stopped, ticks.get());
+        Assert.assertTrue(counted.isCancelled());
+
+        // shutdown cancels the periodic tasks, the delayed ones still run
+        final CountDownLatch last = new CountDownLatch(1);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                last.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        executor.shutdown();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            Assert.fail("A task must be refused after shutdown");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, last.getCount());
+        Assert.assertTrue(withFixedDelay.isCancelled());
+    }
+
+    @Test
+    public void testShutdownNow() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        final Runnable never = new Runnable() {
+            @Override
+            public void run() {
+                Assert.fail("It must not run");
+            }
+        };
+        final ScheduledFuture<?> future = executor.schedule(never, 1, TimeUnit.HOURS);
+        executor.scheduleAtFixedRate(never, 1, 1, TimeUnit.HOURS);
+        final List<Runnable> pending = executor.shutdownNow();
+        Assert.assertEquals(2, pending.size());
+        Assert.assertTrue(pending.contains(future));
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.isTerminated());
+    }
+
+    @Test
+    public void testPeriodicTaskInFullQueue() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        final Looper looper = executor.getLooper();
+        looper.setCapacity(1, OverflowPolicy.CALLER_RUNS);
+        looper.setMetricsEnabled(true);
+        final Handler handler = new Handler(looper);
+        final Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        final CountDownLatch ticks = new CountDownLatch(5);
+        // each tick fills the queue before its entry is queued again
+        final ScheduledFuture<?> periodic = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                handler.post(noop);
+                ticks.countDown();
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(ticks.await(10, TimeUnit.SECONDS));
+        periodic.cancel(false);
+        while (looper.getMetrics().getQueueDepth() > 0) {
+            Thread.sleep(1); // the cancelled entry goes once due
+        }
+
+        // a sender other than the looper runs the message inline, counted as a dispatch
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        handler.post(noop); // fills the queue
+        final long dispatched = looper.getMetrics().getDispatchedCount();
+        final AtomicInteger inline = new AtomicInteger(0);
+        Assert.assertTrue(handler.post(new Runnable() {
+            @Override
+            public void run() {
+                inline.incrementAndGet();
+            }
+        }));
+        Assert.assertEquals(1, inline.get());
+        Assert.assertEquals(dispatched + 1, looper.getMetrics().getDispatchedCount());
+        release.countDown();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /** Blocks the looper of the executor until release is counted down, returns once it runs */
+    private static void block(LooperExecutor executor, final CountDownLatch release) throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        new Handler(executor.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDroppedTasksSettle() throws Exception {
+        final Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (OverflowPolicy policy : new OverflowPolicy[] { OverflowPolicy.DROP_NEWEST, OverflowPolicy.DROP_OLDEST }) {
+            final LooperExecutor executor = LooperExecutor.start("executor");
+            executor.getLooper().setCapacity(1, policy);
+            final CountDownLatch release = new CountDownLatch(1);
+            block(executor, release);
+
+            final Future<?> first = executor.submit(noop);
+            final Future<?> second = executor.submit(noop); // one of them is dropped
+            final Future<?> dropped = OverflowPolicy.DROP_NEWEST == policy ? second : first;
+            Assert.assertTrue(policy.toString(), dropped.isCancelled());
+
+            executor.shutdown();
+            release.countDown();
+            Assert.assertTrue(policy.toString(), executor.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertTrue(policy.toString(), (dropped == first ? second : first).isDone());
+        }
+    }
+
+    @Test
+    public void testLagOfPeriodicTask() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        final Looper looper = executor.getLooper();
+        looper.setMetricsEnabled(true);
+        final CountDownLatch release = new CountDownLatch(1);
+        block(executor, release);
+
+        // due now, runs late behind the blocked looper, then an hour later
+        final CountDownLatch ran = new CountDownLatch(1);
+        final ScheduledFuture<?> periodic = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 0, 1, TimeUnit.HOURS);
+        Thread.sleep(50);
+        release.countDown();
+        Assert.assertTrue(ran.await(10, TimeUnit.SECONDS));
+        periodic.cancel(false);
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // the last tick may terminate the executor before the looper records its lag
+        looper.getThread().join(10000);
+        Assert.assertTrue(looper.getMetrics().getLag().getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    @Test
+    public void testTasksUnderMaxLag() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        final Looper looper = executor.getLooper();
+        looper.setMaxLag(1, TimeUnit.MILLISECONDS);
+        final Handler handler = new Handler(looper);
+        final CountDownLatch release = new CountDownLatch(1);
+        block(executor, release);
+
+        // all of them run late behind the blocked looper
+        final HandlerFuture<String> shed = handler.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "shed";
+            }
+        });
+        final AtomicInteger ran = new AtomicInteger(0);
+        final Runnable count = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+        executor.execute(count);
+        final Future<?> submitted = executor.submit(count);
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        tasks.add(Executors.callable(count));
+        Thread.sleep(50);
+        release.countDown();
+
+        try {
+            shed.get(10, TimeUnit.SECONDS);
+            Assert.fail("The shed task has run");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        submitted.get(10, TimeUnit.SECONDS);
+
+        // the executor's tasks are never shed, all of them settle
+        final CountDownLatch late = new CountDownLatch(1);
+        block(executor, late);
+        final Thread invoker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    executor.invokeAll(tasks);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        invoker.start();
+        Thread.sleep(50);
+        late.countDown();
+        invoker.join(10000);
+        Assert.assertFalse(invoker.isAlive());
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(3, ran.get());
+    }
+
+    @Test
+    public void testThrowingTask() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        final List<Throwable> uncaught = new ArrayList<Throwable>();
+        executor.getLooper().getThread().setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                uncaught.add(e);
+            }
+        });
+        final IllegalStateException failure = new IllegalStateException("failed");
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw failure;
+            }
+        });
+
+        // the looper goes on with the next tasks
+        Assert.assertEquals("next", executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "next";
+            }
+        }).get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, uncaught.size());
+        Assert.assertSame(failure, uncaught.get(0));
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testShutdownWithFullQueue() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        executor.getLooper().setCapacity(2, OverflowPolicy.REJECT);
+        final CountDownLatch release = new CountDownLatch(1);
+        block(executor, release);
+
+        final AtomicInteger ran = new AtomicInteger(0);
+        final Future<?> task = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        });
+        final ScheduledFuture<?> periodic = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        }, 10, 10, TimeUnit.MILLISECONDS);
+
+        // the queue refuses the cancelling of the periodic task, the queued ones still run
+        executor.shutdown();
+        Assert.assertFalse(executor.isTerminated());
+        release.countDown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(task.isDone());
+        Assert.assertTrue(periodic.isCancelled());
+        Assert.assertEquals(1, ran.get());
+    }
+
+    /** Executes a task waiting for an interrupt, which it passes to then() */
+    private static void executeInterruptible(LooperExecutor executor, final Runnable then) throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    then.run();
+                }
+            }
+        });
+        Assert.assertTrue(running.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testShutdownNowInterruptsTheRunningTask() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        final Handler handler = new Handler(executor.getLooper());
+        final CountDownLatch checked = new CountDownLatch(1);
+        final AtomicInteger leaked = new AtomicInteger(-1);
+        // keeps the executor from terminating before the check
+        final ScheduledFuture<?> later = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.HOURS);
+        executeInterruptible(executor, new Runnable() {
+            @Override
+            public void run() {
+                // the next message on the looper must not see the interrupt
+                handler.postAtFrontOfQueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        leaked.set(Thread.currentThread().isInterrupted() ? 1 : 0);
+                        checked.countDown();
+                    }
+                });
+            }
+        });
+        final List<Runnable> pending = executor.shutdownNow();
+        Assert.assertEquals(1, pending.size());
+        Assert.assertSame(later, pending.get(0));
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(checked.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, leaked.get());
+    }
+
+    @Test
+    public void testShutdownNowWithFullQueue() throws Exception {
+        final LooperExecutor executor = LooperExecutor.start("executor");
+        executor.getLooper().setCapacity(2, OverflowPolicy.REJECT);
+        executeInterruptible(executor, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        // the queue refuses the drain until the looper makes room
+        final AtomicInteger ran = new AtomicInteger(0);
+        for (int i = 0; i < 2; ++i) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            });
+        }
+        final List<Runnable> pending = executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, pending.size() + ran.get());
+    }
+}
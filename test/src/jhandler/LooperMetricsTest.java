@@ -0,0 +1,137 @@
+package jhandler;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LooperMetricsTest {
+    static class WorkHandler extends Handler {
+        WorkHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == 2) {
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final HandlerThread t = HandlerThread.start("metrics");
+        final Looper looper = t.getLooper();
+        looper.setMetricsEnabled(true);
+
+        final AtomicInteger slowWhat = new AtomicInteger(-1);
+        looper.setSlowDispatchListener(20, TimeUnit.MILLISECONDS, new SlowDispatchListener() {
+            @Override
+            public void onSlowDispatch(Handler target, Message msg, Runnable callback, long dispatchNanos) {
+                slowWhat.set(msg.what);
+            }
+        });
+        final List<String> lines = new ArrayList<String>();
+        looper.setMessageLogging(new Printer() {
+            @Override
+            public void println(String x) {
+                lines.add(x);
+            }
+        });
+
+        final WorkHandler handler = new WorkHandler(looper);
+        for (int i = 0; i < 10; ++i) {
+            handler.sendEmptyMessage(1);
+        }
+        handler.sendEmptyMessage(2);
+        handler.sendEmptyMessageDelayed(3, 60 * 1000);
+        handler.removeMessages(3);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        t.quit();
+        t.join(); // the last log line is written after the Runnable returns
+
+        final LooperMetrics metrics = looper.getMetrics();
+        Assert.assertEquals(14, metrics.getEnqueuedCount()); // with the quit message
+        Assert.assertEquals(1, metrics.getRemovedCount());
+        Assert.assertEquals(12, metrics.getDispatchedCount());
+        Assert.assertEquals(1, metrics.getSlowDispatchCount());
+        Assert.assertEquals(2, slowWhat.get());
+        Assert.assertEquals(24, lines.size());
+        Assert.assertTrue(lines.get(0).startsWith(">>>>> Dispatching to "));
+        Assert.assertTrue(metrics.getDispatchTime().getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        final Map<String, LatencyHistogram> byMessage = metrics.getDispatchTimeByMessage();
+        Assert.assertEquals(10, byMessage.get(WorkHandler.class.getName() + "#1").getCount());
+        Assert.assertEquals(1, byMessage.get(WorkHandler.class.getName() + "#2").getCount());
+        Assert.assertEquals(3, byMessage.size());
+
+        final ObjectName name = metrics.registerMBean("metrics-test");
+        try {
+            Assert.assertEquals(12L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "DispatchedCount"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+
+        looper.setMetricsEnabled(false);
+        Assert.assertNull(looper.getMetrics());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentileNanos(99));
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(50500, histogram.getMeanNanos());
+        Assert.assertEquals(100000, histogram.getMaxNanos());
+
+        // within a factor of 2 above the exact value
+        final long p50 = histogram.getPercentileNanos(50);
+        Assert.assertTrue(p50 >= 50000 && p50 < 100000);
+        Assert.assertEquals(100000, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void testLagOfFrontAndIntegerOnlyMessages() {
+        final SimulatedLooper sim = SimulatedLooper.prepare();
+        try {
+            final Looper looper = sim.getLooper();
+            looper.setMetricsEnabled(true);
+            final Handler handler = new Handler(looper);
+            sim.advanceBy(1, TimeUnit.SECONDS);
+
+            // due right away, so timed like the others
+            handler.sendMessageAtFrontOfQueue(Message.obtain(1));
+            handler.sendMessage(2, 0, 0);
+            Assert.assertEquals(2, sim.runUntilIdle());
+            Assert.assertEquals(2, looper.getMetrics().getDispatchedCount());
+            Assert.assertEquals(1, looper.getMetrics().getLag().getCount());
+            Assert.assertEquals(0, looper.getMetrics().getLag().getMaxNanos());
+        } finally {
+            sim.close();
+        }
+    }
+}
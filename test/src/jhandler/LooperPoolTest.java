@@ -0,0 +1,349 @@
+package jhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LooperPoolTest {
+    /** Checks that the messages of each key come in order and on one thread at a time */
+    private static class OrderCheckingHandler extends Handler {
+        final CountDownLatch done;
+        final int count;
+        volatile int next = 0;
+        volatile Thread lastThread;
+        volatile int switches = 0;
+        volatile boolean inOrder = true;
+
+        OrderCheckingHandler(LooperPool pool, Object key, int count) {
+            super(pool, key);
+            this.count = count;
+            this.done = new CountDownLatch(1);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.arg1 != next) {
+                inOrder = false;
+            }
+            // a rebalance moves the key once, the old looper may still be
+            // handling earlier messages while getLooper() returns the new one
+            final Thread current = Thread.currentThread();
+            if (null != lastThread && current != lastThread && ++switches > 1) {
+                inOrder = false;
+            }
+            lastThread = current;
+            if (++next == count) {
+                done.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void testKeysAreOrderedPerLooper() throws InterruptedException {
+        final LooperPool pool = new LooperPool(4);
+        final int keys = 16;
+        final int N = 2000;
+        final OrderCheckingHandler[] handlers = new OrderCheckingHandler[keys];
+        for (int k = 0; k < keys; ++k) {
+            handlers[k] = new OrderCheckingHandler(pool, "account-" + k, N);
+        }
+
+        for (int i = 0; i < N; ++i) {
+            for (OrderCheckingHandler h : handlers) {
+                h.sendMessage(Message.obtain(0, i, 0));
+            }
+        }
+
+        final ConcurrentHashMap<Thread, Boolean> threads = new ConcurrentHashMap<Thread, Boolean>();
+        for (OrderCheckingHandler h : handlers) {
+            Assert.assertTrue(h.done.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(h.inOrder);
+            Assert.assertSame(pool.getLooper(h.mKey).getThread(), h.lastThread);
+            threads.put(h.lastThread, true);
+        }
+        Assert.assertTrue(threads.size() > 1); // the keys spread over the loopers
+
+        pool.quit();
+        pool.join();
+    }
+
+    @Test
+    public void testRebalanceKeepsOrder() throws InterruptedException {
+        final LooperPool pool = new LooperPool(2);
+        final String key = "hot";
+        final int N = 20000;
+        final OrderCheckingHandler handler = new OrderCheckingHandler(pool, key, N);
+        final int from = pool.shardOf(key);
+
+        // a timer pending on the old looper moves along
+        final CountDownLatch timerFired = new CountDownLatch(1);
+        final AtomicInteger timerShard = new AtomicInteger(-1);
+        final Handler sameKey = new Handler(pool, key) {
+            @Override
+            public void handleMessage(Message msg) {
+                timerShard.set(pool.getLooper(0).isCurrentThread() ? 0 : 1);
+                timerFired.countDown();
+            }
+        };
+        sameKey.sendEmptyMessageDelayed(1, 200);
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < N; ++i) {
+                    handler.sendMessage(Message.obtain(0, i, 0));
+                }
+            }
+        };
+        producer.start();
+        Assert.assertTrue(pool.rebalance(key, 1 - from));
+        producer.join();
+
+        Assert.assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(handler.inOrder);
+        Assert.assertEquals(1 - from, pool.shardOf(key));
+        Assert.assertSame(pool.getLooper(1 - from).getThread(), handler.lastThread);
+
+        Assert.assertTrue(timerFired.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1 - from, timerShard.get());
+
+        pool.quit();
+        pool.join();
+    }
+
+    @Test
+    public void testRebalanceOnOldLooperWithBlockedSender() throws InterruptedException {
+        final LooperPool pool = new LooperPool(2);
+        final String key = "hot";
+        final int N = 3;
+        final OrderCheckingHandler handler = new OrderCheckingHandler(pool, key, N);
+        final int from = pool.shardOf(key);
+        pool.getLooper(from).setCapacity(1, OverflowPolicy.BLOCK);
+
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < N; ++i) {
+                    handler.sendMessage(Message.obtain(0, i, 0));
+                }
+            }
+        };
+        final AtomicInteger rebalanced = new AtomicInteger(-1);
+        new Handler(pool.getLooper(from)).post(new Runnable() {
+            @Override
+            public void run() {
+                producer.start();
+                while (Thread.State.WAITING != producer.getState()
+                        && Thread.State.TIMED_WAITING != producer.getState()) { // blocked for room
+                    Thread.yield();
+                }
+                rebalanced.set(pool.rebalance(key, 1 - from) ? 1 : 0);
+            }
+        });
+
+        Assert.assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, rebalanced.get());
+        Assert.assertTrue(handler.inOrder);
+        Assert.assertEquals(1 - from, pool.shardOf(key));
+
+        pool.quit();
+        pool.join();
+    }
+
+    @Test
+    public void testRemoveMessagesOfMovedKey() throws InterruptedException {
+        final LooperPool pool = new LooperPool(2);
+        final String key = "timers";
+        final Handler handler = new Handler(pool, key);
+        handler.sendEmptyMessageDelayed(1, 60 * 1000);
+        Assert.assertTrue(pool.rebalance(key, 1 - pool.shardOf(key)));
+
+        // visible wherever it is during and after the move
+        Assert.assertTrue(handler.hasMessages(1));
+        handler.removeMessages(1);
+        Assert.assertFalse(handler.hasMessages(1));
+
+        pool.quit();
+        pool.join();
+    }
+
+    @Test
+    public void testWorkStealing() throws InterruptedException {
+        final LooperPool pool = new LooperPool(2);
+        pool.setWorkStealing(true);
+
+        // keep looper 0 busy until all the posted tasks ran
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        new Handler(pool.getLooper(0)).post(new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        final int N = 100;
+        final CountDownLatch done = new CountDownLatch(N);
+        for (int i = 0; i < N; ++i) {
+            pool.post(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        // half of them went to looper 0, and are stolen by looper 1
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        release.countDown();
+
+        pool.quit();
+        pool.join();
+        Assert.assertFalse(pool.post(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+    }
+
+    /** Blocks the looper until release counts down */
+    private static void block(Looper looper, final CountDownLatch release) throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        new Handler(looper).post(new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMovedMessagesRefusedByFullQueue() throws Exception {
+        final LooperPool pool = new LooperPool(2);
+        final String key = "moving";
+        final Handler handler = new Handler(pool, key);
+        final int from = pool.shardOf(key);
+        pool.getLooper(1 - from).setCapacity(1, OverflowPolicy.REJECT);
+
+        // held until the old looper is done with the key, they go as one batch the new queue has no room for
+        final CountDownLatch release = new CountDownLatch(1);
+        block(pool.getLooper(from), release);
+        Assert.assertTrue(pool.rebalance(key, 1 - from));
+        final List<HandlerFuture<String>> futures = new ArrayList<HandlerFuture<String>>();
+        for (int i = 0; i < 3; ++i) {
+            futures.add(handler.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return "ran";
+                }
+            }));
+        }
+        release.countDown();
+
+        for (HandlerFuture<String> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                Assert.fail("A refused task has run");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+        pool.quit();
+        pool.join();
+    }
+
+    @Test
+    public void testLagOfHeldMessageAtFront() throws Exception {
+        final LooperPool pool = new LooperPool(2);
+        final String key = "moving";
+        final Handler handler = new Handler(pool, key);
+        final int from = pool.shardOf(key);
+        // far shorter than the uptime, which an unstamped message at front would lag by
+        pool.getLooper(1 - from).setMaxLag(SystemClock.uptimeNanos() / 2, TimeUnit.NANOSECONDS);
+
+        // held by the new route until the old looper has handled the earlier messages
+        final CountDownLatch release = new CountDownLatch(1);
+        block(pool.getLooper(from), release);
+        Assert.assertTrue(pool.rebalance(key, 1 - from));
+        final CountDownLatch ran = new CountDownLatch(1);
+        Assert.assertTrue(handler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }));
+        release.countDown();
+
+        Assert.assertTrue(ran.await(10, TimeUnit.SECONDS));
+        pool.quit();
+        pool.join();
+    }
+
+    @Test
+    public void testRebalanceBackAndForth() throws InterruptedException {
+        final LooperPool pool = new LooperPool(2);
+        final String key = "bouncing";
+        final int N = 20000;
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger outOfOrder = new AtomicInteger(0);
+        final Handler handler = new Handler(pool, key) {
+            private int mNext = 0;
+
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.arg1 != mNext) {
+                    outOfOrder.incrementAndGet();
+                }
+                if (++mNext == N) {
+                    done.countDown();
+                }
+            }
+        };
+        final int home = pool.shardOf(key);
+
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < N; ++i) {
+                    handler.sendMessage(Message.obtain(0, i, 0));
+                }
+            }
+        };
+        producer.start();
+        // each move waits for the previous one, whose route is retired once released
+        for (int i = 1; i <= 20; ++i) {
+            final int shard = (0 == i % 2 ? home : 1 - home);
+            while (!pool.rebalance(key, shard)) {
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(shard, pool.shardOf(key));
+        }
+        producer.join();
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, outOfOrder.get());
+        Assert.assertEquals(home, pool.shardOf(key));
+        pool.quit();
+        pool.join();
+    }
+}
@@ -0,0 +1,96 @@
+package jhandler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageJournalTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** Waits until the looper has recycled what it handled, which journals the done records */
+    private static void sync(HandlerThread t) {
+        Assert.assertTrue(t.getHandler().runWithScissors(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPendingMessagesSurviveRestart() throws Exception {
+        final File file = new File(mFolder.getRoot(), "journal");
+
+        HandlerThread t = HandlerThread.start("before");
+        final List<String> before = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch first = new CountDownLatch(1);
+        MessageJournal journal = MessageJournal.open(file, Recorders.recorder(t, before, first), TestCodecs.STRINGS);
+        journal.sendMessage(Message.obtain(1, "now"));
+        journal.sendMessageDelayed(Message.obtain(2, "soon"), 300, TimeUnit.MILLISECONDS);
+        journal.sendMessageDelayed(Message.obtain(3, 4, 5), 1, TimeUnit.HOURS);
+        Assert.assertTrue(first.await(10, TimeUnit.SECONDS));
+        sync(t);
+        Assert.assertEquals(2, journal.getPendingCount());
+
+        // "restart"
+        journal.close();
+        t.quit();
+        t.join();
+        Assert.assertEquals("[1:0:0:now]", before.toString());
+
+        t = HandlerThread.start("after");
+        final List<String> after = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch second = new CountDownLatch(1);
+        journal = MessageJournal.open(file, Recorders.recorder(t, after, second), TestCodecs.STRINGS);
+        Assert.assertTrue(second.await(10, TimeUnit.SECONDS));
+        sync(t);
+        Assert.assertEquals("[2:0:0:soon]", after.toString());
+        Assert.assertEquals(1, journal.getPendingCount());
+        journal.close();
+        t.quit();
+        t.join();
+    }
+
+    @Test
+    public void testRemovedMessagesAreDoneAndFileStaysBounded() throws Exception {
+        final File file = new File(mFolder.getRoot(), "journal");
+        final int size = 4096;
+        final int N = 1000;
+
+        HandlerThread t = HandlerThread.start("looper");
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(N);
+        final Handler handler = Recorders.recorder(t, handled, done);
+        MessageJournal journal = MessageJournal.open(file, size, handler, TestCodecs.STRINGS);
+        for (int i = 0; i < N; ++i) {
+            journal.sendMessage(Message.obtain(i, "message " + i));
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        sync(t);
+        Assert.assertEquals(0, journal.getPendingCount());
+        journal.checkpoint();
+        Assert.assertEquals(size, file.length());
+
+        journal.sendMessageDelayed(Message.obtain(7), 1, TimeUnit.HOURS);
+        handler.removeMessages(7);
+        Assert.assertEquals(0, journal.getPendingCount());
+        journal.close();
+        t.quit();
+        t.join();
+
+        t = HandlerThread.start("again");
+        journal = MessageJournal.open(file, size, new Handler(t.getLooper()), TestCodecs.STRINGS);
+        Assert.assertEquals(0, journal.getPendingCount());
+        journal.close();
+        t.quit();
+        t.join();
+    }
+}
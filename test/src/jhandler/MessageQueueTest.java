@@ -0,0 +1,441 @@
+package jhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jhandler.internal.HeapTimerQueue;
+import jhandler.internal.MessageExt;
+import jhandler.internal.MessageQueue;
+import jhandler.internal.QueueStats;
+import jhandler.internal.TimeUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageQueueTest {
+    /** Creates a handler on a thread which has a looper but never loops */
+    private static Handler newHandler() throws InterruptedException {
+        final AtomicReference<Handler> handler = new AtomicReference<Handler>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                Looper.prepare();
+                handler.set(new Handler());
+            }
+        };
+        t.start();
+        t.join();
+        return handler.get();
+    }
+
+    private static MessageExt message(Handler target, int what, int arg1, long when) {
+        Message msg = Message.obtain(what, arg1, 0);
+        msg.ext.prepare(target, null, when);
+        return msg.ext;
+    }
+
+    @Test
+    public void testImmediateLaneKeepsProducerOrder() throws InterruptedException {
+        final MessageQueue queue = new MessageQueue();
+        final Handler target = newHandler();
+        final int producers = 4;
+        final int N = 20000;
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int what = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < N; ++i) {
+                        queue.enqueueImmediate(message(target, what, i, 0));
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        final int[] expected = new int[producers];
+        for (int i = 0; i < producers * N; ++i) {
+            final MessageExt msg = queue.next();
+            Assert.assertEquals(expected[msg.message.what]++, msg.message.arg1);
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDueDelayedMessageGoesFirst() throws InterruptedException {
+        final MessageQueue queue = new MessageQueue();
+        final Handler target = newHandler();
+        final long now = TimeUtils.uptimeNanos();
+
+        queue.enqueue(message(target, 1, 0, now + TimeUnit.SECONDS.toNanos(60)));
+        queue.enqueue(message(target, 2, 0, now - 10));
+        queue.enqueueImmediate(message(target, 3, 0, now));
+        Assert.assertEquals(3, queue.size());
+
+        Assert.assertEquals(2, queue.next().message.what);
+        Assert.assertEquals(3, queue.next().message.what);
+        Assert.assertTrue(queue.hasMessages(target, 1));
+        queue.removeMessages(target, 1);
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDueCancelledMessagesLeaveTheSweepCount() throws InterruptedException {
+        final long[] now = { 0 };
+        final MessageQueue queue = new MessageQueue(HeapTimerQueue.FACTORY, new Clock() {
+            @Override
+            public long uptimeNanos() {
+                return now[0];
+            }
+        });
+        final Handler target = newHandler();
+        final long hour = TimeUnit.HOURS.toNanos(1);
+
+        // the live ones keep the cancelled ones under half of the queue, no sweep
+        final List<MessageExt> live = new ArrayList<MessageExt>();
+        final List<Long> generations = new ArrayList<Long>();
+        for (int i = 0; i < 10000; ++i) {
+            final MessageExt msg = message(target, 1, i, hour);
+            generations.add(msg.makeCancellable());
+            live.add(msg);
+            Assert.assertTrue(queue.enqueue(msg));
+        }
+        for (int i = 0; i < 2000; ++i) {
+            final MessageExt msg = message(target, 2, i, 1);
+            final long generation = msg.makeCancellable();
+            Assert.assertTrue(queue.enqueue(msg));
+            Assert.assertTrue(msg.cancel(generation));
+            queue.onCancelled();
+        }
+        now[0] = 1;
+        Assert.assertNull(queue.poll()); // dropped when due
+        Assert.assertEquals(10000, queue.size());
+
+        // once dropped they no longer count, these alone are under half of the queue
+        for (int i = 0; i < 3000; ++i) {
+            Assert.assertTrue(live.get(i).cancel(generations.get(i)));
+            queue.onCancelled();
+        }
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(10000, queue.size());
+    }
+
+    @Test
+    public void testTimerSlack() throws InterruptedException {
+        final long[] now = { 0 };
+        final MessageQueue queue = new MessageQueue(HeapTimerQueue.FACTORY, new Clock() {
+            @Override
+            public long uptimeNanos() {
+                return now[0];
+            }
+        });
+        final Handler target = newHandler();
+        final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        queue.setTimerSlack(50, TimeUnit.MILLISECONDS);
+
+        queue.enqueue(message(target, 1, 0, 10 * ms));
+        queue.enqueue(message(target, 2, 0, 20 * ms));
+        final Message precise = Message.obtain(3);
+        precise.setPrecise(true);
+        precise.ext.prepare(target, null, 15 * ms);
+        queue.enqueue(precise.ext);
+        queue.enqueue(message(target, 4, 0, 100 * ms));
+
+        // woken up for the precise message, the one whose window is open comes along
+        Assert.assertEquals(15 * ms, queue.nextWhen());
+        now[0] = 15 * ms;
+        Assert.assertEquals(3, queue.poll().message.what);
+        final MessageExt early = queue.poll();
+        Assert.assertEquals(1, early.message.what);
+        Assert.assertEquals(10 * ms, early.when);
+        Assert.assertNull(queue.poll());
+
+        // then once for the rest, at the latest deadline of the first
+        Assert.assertEquals(70 * ms, queue.nextWhen());
+        now[0] = 70 * ms;
+        Assert.assertEquals(2, queue.poll().message.what);
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(150 * ms, queue.nextWhen());
+    }
+
+    @Test
+    public void testIndexedRemovalIsScopedPerHandler() throws InterruptedException {
+        final MessageQueue queue = new MessageQueue();
+        final Handler h1 = newHandler();
+        final Handler h2 = newHandler();
+        final long later = TimeUtils.uptimeNanos() + TimeUnit.SECONDS.toNanos(60);
+        final Object token = new Object();
+        final Runnable r = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        for (int i = 0; i < 1000; ++i) {
+            queue.enqueue(message(h1, i % 10, i, later + i));
+            queue.enqueueImmediate(message(h2, i % 10, i, 0));
+        }
+        Message withToken = Message.obtain(3, token);
+        withToken.ext.prepare(h1, null, later);
+        queue.enqueue(withToken.ext);
+        MessageExt post = Message.obtain().ext;
+        post.prepare(h1, r, later);
+        queue.enqueue(post);
+        Assert.assertEquals(2002, queue.size());
+
+        // a posted Runnable is neither a message with what == 0 nor crashes the lookup
+        Assert.assertTrue(queue.hasCallbacks(h1, r));
+        Assert.assertFalse(queue.hasCallbacks(h2, r));
+        queue.removeMessages(h1, 0);
+        Assert.assertTrue(queue.hasCallbacks(h1, r));
+        Assert.assertFalse(queue.hasMessages(h1, 0));
+        Assert.assertTrue(queue.hasMessages(h2, 0)); // other handler untouched
+        Assert.assertEquals(1902, queue.size());
+
+        queue.removeMessages(h1, 3, token);
+        Assert.assertFalse(queue.hasMessages(h1, 3, token));
+        Assert.assertTrue(queue.hasMessages(h1, 3));
+        Assert.assertEquals(1901, queue.size());
+
+        queue.removeCallbacks(h1, r);
+        Assert.assertFalse(queue.hasCallbacks(h1, r));
+        Assert.assertEquals(1900, queue.size());
+
+        for (int what = 0; what < 10; ++what) {
+            queue.removeMessages(h2, what);
+        }
+        Assert.assertEquals(900, queue.size());
+        Assert.assertTrue(queue.hasMessages(h1, 1));
+        Assert.assertFalse(queue.hasMessages(h2, 1));
+    }
+
+    @Test
+    public void testBatchDrain() throws InterruptedException {
+        final MessageQueue queue = new MessageQueue();
+        final Handler target = newHandler();
+
+        MessageExt[] batch = new MessageExt[5];
+        for (int i = 0; i < batch.length; ++i) {
+            batch[i] = message(target, i, 0, TimeUtils.uptimeNanos());
+        }
+        Assert.assertTrue(queue.enqueueImmediate(batch, batch.length));
+        queue.setMaxBatchSize(3);
+
+        // takes 0, 1 and 2 under the lock
+        Assert.assertEquals(0, queue.next().message.what);
+        Assert.assertEquals(4, queue.size());
+
+        // still removable while waiting in the in-flight batch
+        Assert.assertTrue(queue.hasMessages(target, 1));
+        queue.removeMessages(target, 1);
+        Assert.assertFalse(queue.hasMessages(target, 1));
+        Assert.assertEquals(3, queue.size());
+
+        Assert.assertEquals(2, queue.next().message.what);
+        Assert.assertEquals(3, queue.next().message.what);
+        Assert.assertEquals(4, queue.next().message.what);
+        Assert.assertEquals(0, queue.size());
+    }
+
+    private static MessageQueue bounded(int capacity, OverflowPolicy policy, long blockMillis,
+            MessageQueue.Dispatcher dispatcher) {
+        final MessageQueue queue = new MessageQueue();
+        queue.setCapacity(capacity, policy, TimeUnit.MILLISECONDS.toNanos(blockMillis), dispatcher);
+        return queue;
+    }
+
+    @Test
+    public void testOverflowPolicies() throws InterruptedException {
+        final Handler target = newHandler();
+
+        MessageQueue queue = bounded(2, OverflowPolicy.REJECT, 0, null);
+        final QueueStats stats = new QueueStats();
+        queue.setStats(stats);
+        Assert.assertTrue(queue.enqueueImmediate(message(target, 1, 0, 0)));
+        Assert.assertTrue(queue.enqueue(message(target, 2, 0, TimeUtils.uptimeNanos())));
+        Assert.assertFalse(queue.enqueueImmediate(message(target, 3, 0, 0)));
+        Assert.assertEquals(1, queue.next().message.what);
+        Assert.assertTrue(queue.enqueueImmediate(message(target, 4, 0, 0)));
+        Assert.assertEquals(1, stats.rejected.sum());
+
+        queue = bounded(2, OverflowPolicy.DROP_NEWEST, 0, null);
+        queue.setStats(stats);
+        for (int what = 1; what <= 3; ++what) {
+            Assert.assertTrue(queue.enqueueImmediate(message(target, what, 0, 0)));
+        }
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(1, queue.next().message.what);
+        Assert.assertEquals(2, queue.next().message.what);
+        Assert.assertEquals(1, stats.dropped.sum());
+
+        queue = bounded(2, OverflowPolicy.DROP_OLDEST, 0, null);
+        for (int what = 1; what <= 3; ++what) {
+            Assert.assertTrue(queue.enqueueImmediate(message(target, what, 0, 0)));
+        }
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(2, queue.next().message.what);
+        // a batch makes room for all its messages at once
+        MessageExt[] batch = new MessageExt[] { message(target, 4, 0, 0), message(target, 5, 0, 0) };
+        Assert.assertTrue(queue.enqueueImmediate(batch, 2));
+        Assert.assertEquals(4, queue.next().message.what);
+        Assert.assertEquals(5, queue.next().message.what);
+        Assert.assertEquals(0, queue.size());
+
+        final List<Integer> ran = new ArrayList<Integer>();
+        queue = bounded(1, OverflowPolicy.CALLER_RUNS, 0, new MessageQueue.Dispatcher() {
+            @Override
+            public void dispatch(MessageExt msg) {
+                ran.add(msg.message.what);
+            }
+        });
+        Assert.assertTrue(queue.enqueueImmediate(message(target, 1, 0, 0)));
+        Assert.assertTrue(queue.enqueueImmediate(message(target, 2, 0, 0)));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(2, (int) ran.get(0));
+        // the looper thread's own sends are refused instead
+        Assert.assertEquals(1, queue.next().message.what);
+        Assert.assertTrue(queue.enqueueImmediate(message(target, 3, 0, 0)));
+        Assert.assertFalse(queue.enqueueImmediate(message(target, 4, 0, 0)));
+        Assert.assertEquals(1, ran.size());
+    }
+
+    @Test
+    public void testBlockingOverflowPolicy() throws InterruptedException {
+        final Handler target = newHandler();
+
+        // times out
+        MessageQueue queue = bounded(1, OverflowPolicy.BLOCK, 20, null);
+        Assert.assertTrue(queue.enqueueImmediate(message(target, 1, 0, 0)));
+        final long start = TimeUtils.uptimeNanos();
+        Assert.assertFalse(queue.enqueueImmediate(message(target, 2, 0, 0)));
+        Assert.assertTrue(TimeUtils.uptimeNanos() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        // unblocked by the consumer
+        final MessageQueue blocking = bounded(1, OverflowPolicy.BLOCK, 10000, null);
+        Assert.assertTrue(blocking.enqueueImmediate(message(target, 1, 0, 0)));
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                blocking.next();
+            }
+        };
+        consumer.start();
+        Assert.assertTrue(blocking.enqueueImmediate(message(target, 2, 0, 0)));
+        consumer.join();
+        Assert.assertEquals(1, blocking.size());
+    }
+
+    @Test
+    public void testWatermarks() throws InterruptedException {
+        final Handler target = newHandler();
+        final MessageQueue queue = new MessageQueue();
+        final List<String> events = new ArrayList<String>();
+        queue.setWatermarks(3, 1, new WatermarkListener() {
+            @Override
+            public void onHighWatermark(int size) {
+                events.add("high " + size);
+            }
+
+            @Override
+            public void onLowWatermark(int size) {
+                events.add("low " + size);
+            }
+        });
+
+        for (int what = 1; what <= 4; ++what) {
+            queue.enqueueImmediate(message(target, what, 0, 0));
+        }
+        queue.next();
+        queue.next();
+        queue.removeMessages(target, 3);
+        queue.enqueueImmediate(message(target, 5, 0, 0));
+        Assert.assertEquals("[high 3, low 1]", events.toString());
+    }
+
+    private static MessageExt message(Handler target, int what, int priority) {
+        Message msg = Message.obtain(what);
+        msg.setPriority(priority);
+        msg.ext.prepare(target, null, TimeUtils.uptimeNanos());
+        return msg.ext;
+    }
+
+    @Test
+    public void testPriorityLanes() throws InterruptedException {
+        final MessageQueue queue = new MessageQueue();
+        final Handler target = newHandler();
+
+        queue.enqueueImmediate(message(target, 1, Message.PRIORITY_BACKGROUND));
+        queue.enqueueImmediate(message(target, 2, Message.PRIORITY_NORMAL));
+        queue.enqueueImmediate(message(target, 3, Message.PRIORITY_CRITICAL));
+        queue.enqueueImmediate(message(target, 4, Message.PRIORITY_NORMAL));
+        queue.enqueue(message(target, 5, Message.PRIORITY_CRITICAL));
+        queue.enqueueAtFront(message(target, 6, Message.PRIORITY_NORMAL));
+
+        // by priority, in order within a priority, at front only within its priority
+        final int[] expected = { 3, 5, 6, 2, 4, 1 };
+        for (int what : expected) {
+            Assert.assertEquals(what, queue.next().message.what);
+        }
+
+        // a background message waiting longer than the aging limit goes first
+        final long now = TimeUtils.uptimeNanos();
+        MessageExt aged = message(target, 7, Message.PRIORITY_BACKGROUND);
+        aged.when = now - TimeUnit.SECONDS.toNanos(1);
+        queue.enqueue(aged);
+        queue.enqueueImmediate(message(target, 8, Message.PRIORITY_CRITICAL));
+        Assert.assertEquals(7, queue.next().message.what);
+        Assert.assertEquals(8, queue.next().message.what);
+
+        queue.setPriorityAging(1, TimeUnit.HOURS);
+        aged = message(target, 9, Message.PRIORITY_BACKGROUND);
+        aged.when = now - TimeUnit.SECONDS.toNanos(1);
+        queue.enqueue(aged);
+        queue.enqueueImmediate(message(target, 10, Message.PRIORITY_CRITICAL));
+        Assert.assertEquals(10, queue.next().message.what);
+        Assert.assertEquals(9, queue.next().message.what);
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testCancelledMessagesAreDroppedAndSwept() throws InterruptedException {
+        final MessageQueue queue = new MessageQueue();
+        final Handler target = newHandler();
+        final long later = TimeUtils.uptimeNanos() + TimeUnit.SECONDS.toNanos(60);
+
+        // dropped when due
+        MessageExt due = message(target, 1, 0, 0);
+        long generation = due.makeCancellable();
+        queue.enqueueImmediate(due);
+        queue.enqueueImmediate(message(target, 2, 0, 0));
+        Assert.assertTrue(due.cancel(generation));
+        Assert.assertFalse(due.cancel(generation));
+        Assert.assertFalse(queue.hasMessages(target, 1));
+        Assert.assertEquals(2, queue.next().message.what);
+        Assert.assertFalse(due.cancel(generation)); // recycled, a stale generation
+
+        // swept once they are many
+        for (int i = 0; i < 3000; ++i) {
+            final MessageExt msg = message(target, 3, i, later);
+            generation = msg.makeCancellable();
+            queue.enqueue(msg);
+            Assert.assertTrue(msg.cancel(generation));
+            queue.onCancelled();
+        }
+        queue.enqueueImmediate(message(target, 4, 0, 0));
+        Assert.assertEquals(4, queue.next().message.what);
+        Assert.assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,108 @@
+package jhandler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageTest {
+    @After
+    public void tearDown() {
+        Message.setDebugRecycle(false);
+    }
+
+    @Test
+    public void testObtainRecycle() {
+        Message m = Message.obtain(1, 2, 3, "obj");
+        Assert.assertEquals(1, m.what);
+        Assert.assertEquals(2, m.arg1);
+        Assert.assertEquals(3, m.arg2);
+        Assert.assertEquals("obj", m.obj);
+
+        m.recycle();
+        Assert.assertEquals(0, m.what);
+        Assert.assertNull(m.obj);
+
+        try {
+            m.recycle();
+            Assert.fail("recycled a pooled message");
+        } catch (IllegalStateException e) {
+        }
+
+        Message copy = Message.obtain(Message.obtain(7, "x"));
+        Assert.assertEquals(7, copy.what);
+        Assert.assertEquals("x", copy.obj);
+    }
+
+    @Test
+    public void testDebugCatchesUseAfterRecycle() {
+        Message.setDebugRecycle(true);
+
+        Message m = Message.obtain(1);
+        m.recycle();
+        Assert.assertNotSame(m, Message.obtain()); // never reused in debug mode
+
+        try {
+            m.recycle();
+            Assert.fail("recycled twice");
+        } catch (IllegalStateException e) {
+            Assert.assertNotNull(e.getCause()); // the first recycle
+        }
+
+        try {
+            Message.obtain(m);
+            Assert.fail("copied a recycled message");
+        } catch (IllegalStateException e) {
+            Assert.assertNotNull(e.getCause());
+        }
+    }
+
+    @Test
+    public void testRecycledAfterDispatch() throws InterruptedException {
+        final AtomicReference<Handler> handler = new AtomicReference<Handler>();
+        final AtomicReference<Message> handled = new AtomicReference<Message>();
+        final CountDownLatch ready = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                Looper.prepare();
+                handler.set(new Handler() {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        handled.set(msg);
+                        try {
+                            sendMessage(msg);
+                            Assert.fail("sent a message which is being handled");
+                        } catch (IllegalStateException e) {
+                        }
+                        Looper.myLooper().quit();
+                        done.countDown();
+                    }
+                });
+                ready.countDown();
+                Looper.loop();
+            }
+        };
+        t.start();
+        ready.await();
+
+        Message m = Message.obtain(42, "payload");
+        Assert.assertTrue(handler.get().sendMessage(m));
+        try {
+            handler.get().sendMessage(m);
+            Assert.fail("sent a queued message twice");
+        } catch (IllegalStateException e) {
+        }
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        t.join();
+        Assert.assertSame(m, handled.get());
+        Assert.assertEquals(0, m.what); // reset by the recycle
+        Assert.assertNull(m.obj);
+    }
+}
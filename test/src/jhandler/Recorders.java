@@ -0,0 +1,21 @@
+package jhandler;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/** Handlers recording the messages they handle, for the tests */
+final class Recorders {
+    /** A handler recording "what:arg1:arg2:obj" of the messages it handles, counting the latch down */
+    static Handler recorder(HandlerThread t, final List<String> handled, final CountDownLatch latch) {
+        return new Handler(t.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                handled.add(msg.what + ":" + msg.arg1 + ":" + msg.arg2 + ":" + msg.obj);
+                latch.countDown();
+            }
+        };
+    }
+
+    private Recorders() {
+    }
+}
@@ -0,0 +1,141 @@
+package jhandler;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RemoteHandlerTest {
+    @Test
+    public void testMessagesKeepTheirOrderPerHandler() throws Exception {
+        final int N = 20000;
+        final HandlerThread t = HandlerThread.start("remote");
+        final List<String> first = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> second = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(N + 1);
+        final RemoteHandlerServer server = RemoteHandlerServer.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), TestCodecs.STRINGS);
+        server.register(1, Recorders.recorder(t, first, done));
+        server.register(2, Recorders.recorder(t, second, done));
+
+        final RemoteConnection connection = RemoteConnection.connect(server.getLocalAddress(), TestCodecs.STRINGS);
+        final RemoteHandler one = connection.getHandler(1);
+        final RemoteHandler two = connection.getHandler(2);
+        final long start = System.nanoTime();
+        Assert.assertTrue(two.sendMessageDelayed(Message.obtain(-1, "late"), 200));
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < N; ++i) {
+            if (0 == i % 2) {
+                Assert.assertTrue(one.sendMessage(Message.obtain(i, i * 10, 0)));
+                expected.add(i + ":" + i * 10 + ":0:null");
+            } else {
+                Assert.assertTrue(two.sendMessage(Message.obtain(i, "message " + i)));
+            }
+        }
+        Assert.assertTrue(connection.getHandler(3).sendEmptyMessage(0)); // nobody registered, dropped
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        Assert.assertEquals(expected, first);
+        Assert.assertEquals(N / 2 + 1, second.size());
+        Assert.assertEquals("1:0:0:message 1", second.get(0));
+        Assert.assertEquals("-1:0:0:late", second.get(N / 2));
+
+        connection.close();
+        server.close();
+        t.quit();
+        t.join();
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        final HandlerThread t = HandlerThread.start("remote");
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch first = new CountDownLatch(1);
+        RemoteHandlerServer server = RemoteHandlerServer.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), TestCodecs.STRINGS);
+        final InetSocketAddress address = server.getLocalAddress();
+        server.register(1, Recorders.recorder(t, handled, first));
+
+        final RemoteConnection connection = RemoteConnection.connect(address, TestCodecs.STRINGS);
+        final RemoteHandler handler = connection.getHandler(1);
+        Assert.assertTrue(handler.sendMessage(Message.obtain(1, "before")));
+        Assert.assertTrue(first.await(10, TimeUnit.SECONDS));
+
+        // The server restarts, the connection notices and comes back
+        server.close();
+        while (connection.isConnected()) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(handler.sendMessage(Message.obtain(2, "while down")));
+        final CountDownLatch second = new CountDownLatch(1);
+        server = RemoteHandlerServer.open(address, TestCodecs.STRINGS);
+        server.register(1, Recorders.recorder(t, handled, second));
+        Assert.assertTrue(second.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[1:0:0:before, 2:0:0:while down]", handled.toString());
+
+        connection.close();
+        server.close();
+        t.quit();
+        t.join();
+    }
+
+    @Test
+    public void testRefusedMessagesWait() throws Exception {
+        final int N = 50;
+
+        // a bounded queue behind a busy looper refuses most of them at first
+        final HandlerThread t = HandlerThread.start("remote");
+        t.getLooper().setCapacity(1, OverflowPolicy.REJECT);
+        final CountDownLatch release = new CountDownLatch(1);
+        t.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(N);
+        final RemoteHandlerServer server = RemoteHandlerServer.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), TestCodecs.STRINGS);
+        server.register(1, Recorders.recorder(t, handled, done));
+
+        final RemoteConnection connection = RemoteConnection.connect(server.getLocalAddress(), TestCodecs.STRINGS);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < N; ++i) {
+            Assert.assertTrue(connection.getHandler(1).sendMessage(Message.obtain(i, "message " + i)));
+            expected.add(i + ":0:0:message " + i);
+        }
+
+        Thread.sleep(50);
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(expected, handled);
+
+        connection.close();
+        server.close();
+        t.quit();
+        t.join();
+    }
+
+    @Test
+    public void testUnresolvedAddress() throws Exception {
+        try {
+            RemoteConnection.connect(InetSocketAddress.createUnresolved("jhandler.invalid", 4242), TestCodecs.STRINGS);
+            Assert.fail("Connected to an unresolved address");
+        } catch (UnknownHostException e) {
+            Assert.assertEquals("jhandler.invalid", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package jhandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Both sides share the mappings of one process here, as two processes would */
+public class SharedMemoryHandlerTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testMessagesWrapAroundInOrder() throws Exception {
+        final File file = new File(mFolder.getRoot(), "ring");
+        final int N = 10000;
+
+        final HandlerThread t = HandlerThread.start("receiver");
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(N);
+        final SharedMemoryReceiver receiver = SharedMemoryReceiver.start(file, 4096,
+                Recorders.recorder(t, handled, done), TestCodecs.STRINGS,
+                WaitStrategy.spinThenPark(10, TimeUnit.MICROSECONDS));
+        final SharedMemoryHandler sender = SharedMemoryHandler.open(file, 4096, TestCodecs.STRINGS);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < N; ++i) {
+            if (0 == i % 3) {
+                Assert.assertTrue(sender.sendMessage(i, -i, i * 2));
+                expected.add(i + ":" + -i + ":" + i * 2 + ":null");
+            } else {
+                final String obj = "message " + i + (0 == i % 7 ? " with a longer body" : "");
+                Assert.assertTrue(sender.sendMessage(Message.obtain(i, obj)));
+                expected.add(i + ":0:0:" + obj);
+            }
+        }
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(expected, handled);
+        sender.close();
+        receiver.close();
+        t.quit();
+        t.join();
+    }
+
+    @Test
+    public void testRolesAndRestart() throws Exception {
+        final File file = new File(mFolder.getRoot(), "ring");
+        SharedMemoryHandler sender = SharedMemoryHandler.open(file, 1024, TestCodecs.STRINGS);
+        try {
+            SharedMemoryHandler.open(file, 1024, TestCodecs.STRINGS);
+            Assert.fail("A second sender must be refused");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // Nobody receives, the ring fills up
+        sender.setWaitStrategy(WaitStrategy.YIELDING, 10, TimeUnit.MILLISECONDS);
+        int sent = 0;
+        while (sender.sendMessage(Message.obtain(sent, "pending " + sent))) {
+            ++sent;
+        }
+        Assert.assertTrue(sent > 0);
+
+        // The sender restarts, and appends after what it sent
+        sender.close();
+        sender = SharedMemoryHandler.open(file, 1024, TestCodecs.STRINGS);
+        final HandlerThread t = HandlerThread.start("receiver");
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(sent + 1);
+        final SharedMemoryReceiver receiver = SharedMemoryReceiver.start(file, 1024,
+                Recorders.recorder(t, handled, done), TestCodecs.STRINGS, WaitStrategy.BLOCKING);
+        sender.setWaitStrategy(WaitStrategy.BLOCKING, 10, TimeUnit.SECONDS);
+        Assert.assertTrue(sender.sendEmptyMessage(-1));
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("0:0:0:pending 0", handled.get(0));
+        Assert.assertEquals("-1:0:0:null", handled.get(sent));
+        sender.close();
+        receiver.close();
+        t.quit();
+        t.join();
+    }
+
+    @Test
+    public void testRefusedMessagesStayInRing() throws Exception {
+        final File file = new File(mFolder.getRoot(), "ring");
+        final int N = 20;
+
+        // a bounded queue behind a busy looper refuses most of them at first
+        final HandlerThread t = HandlerThread.start("receiver");
+        t.getLooper().setCapacity(1, OverflowPolicy.REJECT);
+        final CountDownLatch release = new CountDownLatch(1);
+        t.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(N);
+        final SharedMemoryReceiver receiver = SharedMemoryReceiver.start(file, 4096,
+                Recorders.recorder(t, handled, done), TestCodecs.STRINGS, WaitStrategy.BLOCKING);
+        final SharedMemoryHandler sender = SharedMemoryHandler.open(file, 4096, TestCodecs.STRINGS);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < N; ++i) {
+            Assert.assertTrue(sender.sendMessage(i, i, i));
+            expected.add(i + ":" + i + ":" + i + ":null");
+        }
+
+        Thread.sleep(50);
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(expected, handled);
+        sender.close();
+        receiver.close();
+        t.quit();
+        t.join();
+    }
+}
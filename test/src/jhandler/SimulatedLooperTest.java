@@ -0,0 +1,123 @@
+package jhandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SimulatedLooperTest {
+    @Test
+    public void testAdvanceBy() {
+        final SimulatedLooper sim = SimulatedLooper.prepare();
+        try {
+            final List<String> log = new ArrayList<String>();
+            final Handler handler = new Handler() {
+                @Override
+                public void handleMessage(Message msg) {
+                    log.add(msg.what + "@" + TimeUnit.NANOSECONDS.toSeconds(sim.uptimeNanos()));
+                    if (msg.what == 1) {
+                        sendEmptyMessageDelayed(2, 1, TimeUnit.HOURS); // a retry
+                    }
+                }
+            };
+            handler.sendEmptyMessageDelayed(3, 2, TimeUnit.HOURS);
+            handler.sendEmptyMessageDelayed(1, 30, TimeUnit.MINUTES);
+            handler.sendEmptyMessage(0);
+
+            Assert.assertEquals(1, sim.runUntilIdle());
+            Assert.assertEquals(0, sim.uptimeNanos());
+
+            final long start = System.nanoTime();
+            Assert.assertEquals(1, sim.advanceBy(1, TimeUnit.HOURS));
+            Assert.assertEquals(TimeUnit.HOURS.toNanos(1), sim.uptimeNanos());
+            Assert.assertEquals(2, sim.advanceBy(1, TimeUnit.HOURS));
+            Assert.assertEquals(0, sim.advanceBy(1, TimeUnit.HOURS));
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+            final String[] expected = { "0@0", "1@1800", "2@5400", "3@7200" };
+            Assert.assertEquals(Arrays.asList(expected), log);
+        } finally {
+            sim.close();
+        }
+    }
+
+    @Test
+    public void testExecutorAndQuit() throws Exception {
+        final SimulatedLooper sim = SimulatedLooper.prepare();
+        try {
+            final LooperExecutor executor = new LooperExecutor(sim.getLooper());
+            final int[] ticks = { 0 };
+            final ScheduledFuture<?> periodic = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    ++ticks[0];
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+
+            sim.advanceBy(1, TimeUnit.DAYS);
+            Assert.assertEquals(24 * 3600, ticks[0]);
+            Assert.assertEquals(0, periodic.getDelay(TimeUnit.NANOSECONDS) % TimeUnit.SECONDS.toNanos(1));
+            periodic.cancel(false);
+
+            sim.getLooper().quit();
+            sim.advanceBy(1, TimeUnit.SECONDS);
+            Assert.assertTrue(sim.hasQuit());
+        } finally {
+            sim.close();
+        }
+
+        // the thread may prepare another looper once closed
+        SimulatedLooper.prepare().close();
+    }
+
+    @Test
+    public void testDeadlinesAndShedding() {
+        final SimulatedLooper sim = SimulatedLooper.prepare();
+        try {
+            final Looper looper = sim.getLooper();
+            looper.setMetricsEnabled(true);
+            final List<String> dropped = new ArrayList<String>();
+            looper.setExpiredMessageListener(new ExpiredMessageListener() {
+                @Override
+                public void onExpired(Handler target, Message msg, Runnable callback, long lagNanos) {
+                    dropped.add(msg.what + "+" + TimeUnit.NANOSECONDS.toMillis(lagNanos));
+                }
+            });
+            final List<Integer> log = new ArrayList<Integer>();
+            final Handler handler = new Handler() {
+                @Override
+                public void handleMessage(Message msg) {
+                    log.add(msg.what);
+                }
+            };
+
+            final Message stale = Message.obtain(1);
+            stale.setDeadline(5, TimeUnit.MILLISECONDS);
+            handler.sendMessageDelayed(stale, 10, TimeUnit.MILLISECONDS);
+            final Message fresh = Message.obtain(2);
+            fresh.setDeadline(20, TimeUnit.MILLISECONDS);
+            handler.sendMessageDelayed(fresh, 10, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(1, sim.advanceBy(100, TimeUnit.MILLISECONDS));
+
+            // now at 100 ms, shed what is more than 50 ms late unless critical
+            looper.setMaxLag(50, TimeUnit.MILLISECONDS);
+            handler.sendMessageAtTime(Message.obtain(3), 10, TimeUnit.MILLISECONDS);
+            handler.sendMessageAtTime(Message.obtain(4), 60, TimeUnit.MILLISECONDS);
+            final Message critical = Message.obtain(5);
+            critical.setPriority(Message.PRIORITY_CRITICAL);
+            handler.sendMessageAtTime(critical, 0, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(2, sim.runUntilIdle());
+
+            Assert.assertEquals(Arrays.asList(2, 5, 4), log);
+            Assert.assertEquals(Arrays.asList("1+0", "3+90"), dropped);
+            Assert.assertEquals(1, looper.getMetrics().getExpiredCount());
+            Assert.assertEquals(1, looper.getMetrics().getShedCount());
+        } finally {
+            sim.close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package jhandler;
+
+import java.nio.charset.StandardCharsets;
+
+/** Codecs shared by the tests of the handlers sending objects as bytes */
+final class TestCodecs {
+    /** Encodes String objects in UTF-8 */
+    static final ObjectCodec STRINGS = new ObjectCodec() {
+        @Override
+        public byte[] encode(Object obj) {
+            return ((String) obj).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Object decode(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private TestCodecs() {
+    }
+}
@@ -0,0 +1,123 @@
+package jhandler;
+
+import java.util.Random;
+
+import jhandler.internal.HeapTimerQueue;
+import jhandler.internal.MessageExt;
+import jhandler.internal.TimerQueue;
+import jhandler.internal.TimingWheelTimerQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimerQueueTest {
+    private static MessageExt message(long when, int what) {
+        Message msg = Message.obtain(what);
+        msg.ext.when = when;
+        return msg.ext;
+    }
+
+    private void checkSortedProperty(TimerQueue queue) {
+        Assert.assertEquals(0, queue.size());
+        Assert.assertNull(queue.peekFirst());
+
+        queue.add(message(5, 5));
+        queue.add(message(2, 2));
+        queue.add(message(3, 3));
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(2, queue.peekFirst().when);
+
+        Assert.assertEquals(2, queue.removeFirst().when);
+        Assert.assertEquals(3, queue.removeFirst().when);
+        Assert.assertEquals(5, queue.removeFirst().when);
+        Assert.assertEquals(0, queue.size());
+        Assert.assertNull(queue.peekFirst());
+    }
+
+    private void checkTiebreakerRule(TimerQueue queue) {
+        final int N = 100;
+        for (int i = 1; i <= N; ++i) {
+            queue.add(message(100, i)); // the same when, different what
+            Assert.assertEquals(1, queue.peekFirst().message.what);
+        }
+        for (int i = 1; i <= N; ++i) {
+            Assert.assertEquals(i, queue.removeFirst().message.what);
+        }
+    }
+
+    private void checkLongDelays(TimerQueue queue) {
+        // (int) (e1.when - e2.when) used to overflow and misorder these
+        queue.add(message(Long.MAX_VALUE, 3));
+        queue.add(message(1L << 40, 2));
+        queue.add(message(-1, 0));
+        queue.add(message(10, 1));
+
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertEquals(i, queue.removeFirst().message.what);
+        }
+    }
+
+    private void checkRandomOrder(TimerQueue queue) {
+        final Random random = new Random(42);
+        final int N = 10000;
+        long now = 0;
+        for (int i = 0; i < N; ++i) {
+            queue.add(message(now + random.nextInt(100000), i));
+            // interleave removals to exercise cascading with a moving head
+            if (i % 3 == 0) {
+                now = queue.removeFirst().when;
+            }
+        }
+
+        long last = Long.MIN_VALUE;
+        while (queue.size() > 0) {
+            final MessageExt msg = queue.removeFirst();
+            Assert.assertTrue(msg.when >= last);
+            last = msg.when;
+        }
+    }
+
+    private void checkRemove(TimerQueue queue) {
+        final MessageExt[] messages = new MessageExt[100];
+        for (int i = 0; i < 100; ++i) {
+            messages[i] = message(i * 1000, i % 2);
+            queue.add(messages[i]);
+        }
+
+        for (int i = 1; i < 100; i += 2) {
+            Assert.assertTrue(queue.remove(messages[i]));
+            Assert.assertFalse(queue.remove(messages[i]));
+        }
+        Assert.assertEquals(50, queue.size());
+
+        long last = Long.MIN_VALUE;
+        while (queue.size() > 0) {
+            final MessageExt msg = queue.removeFirst();
+            Assert.assertEquals(0, msg.message.what);
+            Assert.assertTrue(msg.when > last);
+            last = msg.when;
+        }
+        Assert.assertFalse(queue.remove(messages[0]));
+    }
+
+    @Test
+    public void testHeap() {
+        checkSortedProperty(new HeapTimerQueue());
+        checkTiebreakerRule(new HeapTimerQueue());
+        checkLongDelays(new HeapTimerQueue());
+        checkRandomOrder(new HeapTimerQueue());
+        checkRemove(new HeapTimerQueue());
+    }
+
+    @Test
+    public void testTimingWheel() {
+        checkSortedProperty(new TimingWheelTimerQueue());
+        checkTiebreakerRule(new TimingWheelTimerQueue());
+        checkLongDelays(new TimingWheelTimerQueue());
+        checkRandomOrder(new TimingWheelTimerQueue());
+        checkRandomOrder(new TimingWheelTimerQueue(1));
+        checkRandomOrder(new TimingWheelTimerQueue(7));
+        checkRemove(new TimingWheelTimerQueue());
+        checkRemove(new TimingWheelTimerQueue(1));
+    }
+}